@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.autoconfigure.collector.eventhub;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.collector.eventhub.EventHubMetrics;
+
+/** Reports Event Hub gauges and partition measurements alongside the server's collector metrics. */
+final class MicrometerEventHubMetrics implements EventHubMetrics {
+  static final Tags TAGS = Tags.of("transport", "eventhub");
+
+  final MeterRegistry registry;
+  // Micrometer only weakly references the state of a gauge
+  final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+  final ConcurrentMap<String, MicrometerPartitionMetrics> partitions = new ConcurrentHashMap<>();
+
+  MicrometerEventHubMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public void gauge(String name, Gauge gauge) {
+    gauges.add(gauge);
+    registry.gauge("zipkin_collector." + name, TAGS, gauge, Gauge::value);
+  }
+
+  @Override
+  public PartitionMetrics forPartition(String partitionId) {
+    return partitions.computeIfAbsent(
+        partitionId, id -> new MicrometerPartitionMetrics(registry, TAGS.and("partition", id)));
+  }
+
+  static final class MicrometerPartitionMetrics implements PartitionMetrics {
+    final AtomicLong lag, checkpointBatchSize, writeMaxSpans;
+    final DistributionSummary batchEvents, batchSpans;
+    final Timer decode, write, checkpoint, memoryWait;
+    final Counter checkpointFailures, dedupeChecked, dedupeDuplicates, groupTraces, groupRuns;
+    final Counter memoryShed;
+
+    MicrometerPartitionMetrics(MeterRegistry registry, Tags tags) {
+      lag = registry.gauge("zipkin_collector.lag", tags, new AtomicLong(), AtomicLong::get);
+      checkpointBatchSize = gauge(registry, "zipkin_collector.adaptive.checkpoint.spans", tags);
+      writeMaxSpans = gauge(registry, "zipkin_collector.adaptive.write.spans", tags);
+      batchEvents =
+          DistributionSummary.builder("zipkin_collector.batch.events").tags(tags).register(registry);
+      batchSpans =
+          DistributionSummary.builder("zipkin_collector.batch.spans").tags(tags).register(registry);
+      decode = Timer.builder("zipkin_collector.decode").tags(tags).register(registry);
+      write = Timer.builder("zipkin_collector.write").tags(tags).register(registry);
+      checkpoint = Timer.builder("zipkin_collector.checkpoint").tags(tags).register(registry);
+      checkpointFailures =
+          Counter.builder("zipkin_collector.checkpoint.failures").tags(tags).register(registry);
+      dedupeChecked =
+          Counter.builder("zipkin_collector.dedupe.checked").tags(tags).register(registry);
+      dedupeDuplicates =
+          Counter.builder("zipkin_collector.dedupe.duplicates").tags(tags).register(registry);
+      groupTraces = Counter.builder("zipkin_collector.group.traces").tags(tags).register(registry);
+      groupRuns = Counter.builder("zipkin_collector.group.runs").tags(tags).register(registry);
+      memoryWait = Timer.builder("zipkin_collector.memory.wait").tags(tags).register(registry);
+      memoryShed = Counter.builder("zipkin_collector.memory.shed").tags(tags).register(registry);
+    }
+
+    static AtomicLong gauge(MeterRegistry registry, String name, Tags tags) {
+      return registry.gauge(name, tags, new AtomicLong(), AtomicLong::get);
+    }
+
+    @Override
+    public void lag(long events) {
+      lag.set(events);
+    }
+
+    @Override
+    public void recordBatch(int events, int spans) {
+      batchEvents.record(events);
+      batchSpans.record(spans);
+    }
+
+    @Override
+    public void recordDecodeNanos(long nanos) {
+      decode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordWriteNanos(long nanos) {
+      write.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordCheckpointNanos(long nanos) {
+      checkpoint.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void incrementCheckpointFailures() {
+      checkpointFailures.increment();
+    }
+
+    @Override
+    public void recordDeduplication(int spans, int duplicates) {
+      dedupeChecked.increment(spans);
+      dedupeDuplicates.increment(duplicates);
+    }
+
+    @Override
+    public void recordTraceGrouping(int traces, int runs) {
+      groupTraces.increment(traces);
+      groupRuns.increment(runs);
+    }
+
+    @Override
+    public void recordMemoryWaitNanos(long nanos) {
+      memoryWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordShed(int spans) {
+      memoryShed.increment(spans);
+    }
+
+    @Override
+    public void adaptiveSizes(int checkpointBatchSize, int writeMaxSpans) {
+      this.checkpointBatchSize.set(checkpointBatchSize);
+      this.writeMaxSpans.set(writeMaxSpans);
+    }
+  }
+}
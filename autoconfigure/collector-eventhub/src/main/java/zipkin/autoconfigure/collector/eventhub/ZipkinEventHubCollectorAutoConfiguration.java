@@ -13,7 +13,10 @@
  */
 package zipkin.autoconfigure.collector.eventhub;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionOutcome;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.SpringBootCondition;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
@@ -24,6 +27,7 @@ import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
 import zipkin2.collector.eventhub.EventHubCollector;
+import zipkin2.collector.eventhub.EventHubMetrics;
 import zipkin2.storage.StorageComponent;
 
 @Configuration
@@ -36,15 +40,25 @@ class ZipkinEventHubCollectorAutoConfiguration {
       ZipkinEventHubCollectorProperties properties,
       CollectorSampler sampler,
       CollectorMetrics metrics,
-      StorageComponent storage) {
+      StorageComponent storage,
+      ObjectProvider<EventHubMetrics> eventHubMetrics) {
 
-    return properties
-        .toBuilder()
-        .sampler(sampler)
-        .storage(storage)
-        .metrics(metrics)
-        .build()
-        .start();
+    EventHubCollector.Builder builder =
+        properties.toBuilder().sampler(sampler).storage(storage).metrics(metrics);
+    EventHubMetrics maybeEventHubMetrics = eventHubMetrics.getIfAvailable();
+    if (maybeEventHubMetrics != null) builder.eventHubMetrics(maybeEventHubMetrics);
+    return builder.build().start();
+  }
+
+  @Configuration
+  @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+  static class MicrometerConfiguration {
+    @Bean
+    EventHubMetrics eventHubMetrics(ObjectProvider<MeterRegistry> registry) {
+      MeterRegistry maybeRegistry = registry.getIfAvailable();
+      if (maybeRegistry == null) return EventHubMetrics.NOOP_METRICS;
+      return new MicrometerEventHubMetrics(maybeRegistry);
+    }
   }
 
   static final class EventHubSetCondition extends SpringBootCondition {
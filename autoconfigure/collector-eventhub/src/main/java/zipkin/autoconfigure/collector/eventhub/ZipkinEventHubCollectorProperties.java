@@ -13,7 +13,11 @@
  */
 package zipkin.autoconfigure.collector.eventhub;
 
+import java.nio.file.Paths;
+import java.util.Locale;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.eventhub.CheckpointStore;
 import zipkin2.collector.eventhub.EventHubCollector;
 
 @ConfigurationProperties("zipkin.collector.eventhub")
@@ -22,8 +26,21 @@ class ZipkinEventHubCollectorProperties {
   private String consumerGroup;
   private String connectionString;
   private Integer checkpointBatchSize;
+  private Checkpoint checkpoint = new Checkpoint();
   private String processorHost;
+  private Integer decodeThreads;
+  private Integer dedupeMaxSpans;
+  private Long drainTimeoutMillis;
+  private String encoding;
+  private String encodingProperty;
+  private Receive receive = new Receive();
+  private Executor executor = new Executor();
   private Storage storage = new Storage();
+  private Write write = new Write();
+  private DeadLetter deadLetter = new DeadLetter();
+  private Adaptive adaptive = new Adaptive();
+  private Spool spool = new Spool();
+  private Memory memory = new Memory();
 
   public String getName() {
     return name;
@@ -57,6 +74,14 @@ class ZipkinEventHubCollectorProperties {
     if (checkpointBatchSize > 0) this.checkpointBatchSize = checkpointBatchSize;
   }
 
+  public Checkpoint getCheckpoint() {
+    return checkpoint;
+  }
+
+  public void setCheckpoint(Checkpoint checkpoint) {
+    if (checkpoint != null) this.checkpoint = checkpoint;
+  }
+
   public String getProcessorHost() {
     return processorHost;
   }
@@ -65,6 +90,64 @@ class ZipkinEventHubCollectorProperties {
     this.processorHost = emptyToNull(processorHost);
   }
 
+  public Integer getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(int decodeThreads) {
+    if (decodeThreads > 0) this.decodeThreads = decodeThreads;
+  }
+
+  public Integer getDedupeMaxSpans() {
+    return dedupeMaxSpans;
+  }
+
+  public void setDedupeMaxSpans(int dedupeMaxSpans) {
+    if (dedupeMaxSpans > 0) this.dedupeMaxSpans = dedupeMaxSpans;
+  }
+
+  public Long getDrainTimeoutMillis() {
+    return drainTimeoutMillis;
+  }
+
+  /** Zero doesn't wait for writes when a partition closes. Null leaves the default. */
+  public void setDrainTimeoutMillis(Long drainTimeoutMillis) {
+    this.drainTimeoutMillis = drainTimeoutMillis;
+  }
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /** A {@link SpanBytesDecoder} name, such as "PROTO3", pinning the encoding of all events. */
+  public void setEncoding(String encoding) {
+    this.encoding = emptyToNull(encoding);
+  }
+
+  public String getEncodingProperty() {
+    return encodingProperty;
+  }
+
+  public void setEncodingProperty(String encodingProperty) {
+    this.encodingProperty = emptyToNull(encodingProperty);
+  }
+
+  public Receive getReceive() {
+    return receive;
+  }
+
+  public void setReceive(Receive receive) {
+    if (receive != null) this.receive = receive;
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public void setExecutor(Executor executor) {
+    if (executor != null) this.executor = executor;
+  }
+
   public Storage getStorage() {
     return storage;
   }
@@ -73,6 +156,46 @@ class ZipkinEventHubCollectorProperties {
     if (storage != null) this.storage = storage;
   }
 
+  public Write getWrite() {
+    return write;
+  }
+
+  public void setWrite(Write write) {
+    if (write != null) this.write = write;
+  }
+
+  public DeadLetter getDeadLetter() {
+    return deadLetter;
+  }
+
+  public void setDeadLetter(DeadLetter deadLetter) {
+    if (deadLetter != null) this.deadLetter = deadLetter;
+  }
+
+  public Adaptive getAdaptive() {
+    return adaptive;
+  }
+
+  public void setAdaptive(Adaptive adaptive) {
+    if (adaptive != null) this.adaptive = adaptive;
+  }
+
+  public Spool getSpool() {
+    return spool;
+  }
+
+  public void setSpool(Spool spool) {
+    if (spool != null) this.spool = spool;
+  }
+
+  public Memory getMemory() {
+    return memory;
+  }
+
+  public void setMemory(Memory memory) {
+    if (memory != null) this.memory = memory;
+  }
+
   public static class Storage {
     private String connectionString;
     private String container;
@@ -103,16 +226,393 @@ class ZipkinEventHubCollectorProperties {
     }
   }
 
+  public static class Executor {
+    private Integer threads;
+    private String threadNamePrefix;
+
+    public Integer getThreads() {
+      return threads;
+    }
+
+    /**
+     * Unset keeps the Event Processor Host's own pool. Partitions block a thread while they wait on
+     * storage or the memory budget, so leave room for every partition the host may own.
+     */
+    public void setThreads(int threads) {
+      if (threads > 0) this.threads = threads;
+    }
+
+    public String getThreadNamePrefix() {
+      return threadNamePrefix;
+    }
+
+    public void setThreadNamePrefix(String threadNamePrefix) {
+      this.threadNamePrefix = emptyToNull(threadNamePrefix);
+    }
+  }
+
+  public static class Receive {
+    private Integer maxBatchSize;
+    private Integer prefetchCount;
+    private Long timeoutMillis;
+    private boolean invokeAfterTimeout;
+
+    public Integer getMaxBatchSize() {
+      return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+      if (maxBatchSize > 0) this.maxBatchSize = maxBatchSize;
+    }
+
+    public Integer getPrefetchCount() {
+      return prefetchCount;
+    }
+
+    public void setPrefetchCount(int prefetchCount) {
+      if (prefetchCount > 0) this.prefetchCount = prefetchCount;
+    }
+
+    public Long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+      if (timeoutMillis > 0) this.timeoutMillis = timeoutMillis;
+    }
+
+    public boolean isInvokeAfterTimeout() {
+      return invokeAfterTimeout;
+    }
+
+    public void setInvokeAfterTimeout(boolean invokeAfterTimeout) {
+      this.invokeAfterTimeout = invokeAfterTimeout;
+    }
+  }
+
+  public static class Checkpoint {
+    private Long batchBytes;
+    private Long intervalMillis;
+    private Long minIntervalMillis;
+    private Long flushMillis;
+    private String store;
+    private String file;
+
+    public Long getBatchBytes() {
+      return batchBytes;
+    }
+
+    public void setBatchBytes(long batchBytes) {
+      if (batchBytes > 0) this.batchBytes = batchBytes;
+    }
+
+    public Long getIntervalMillis() {
+      return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+      if (intervalMillis > 0) this.intervalMillis = intervalMillis;
+    }
+
+    public Long getMinIntervalMillis() {
+      return minIntervalMillis;
+    }
+
+    public void setMinIntervalMillis(long minIntervalMillis) {
+      if (minIntervalMillis > 0) this.minIntervalMillis = minIntervalMillis;
+    }
+
+    public Long getFlushMillis() {
+      return flushMillis;
+    }
+
+    public void setFlushMillis(long flushMillis) {
+      if (flushMillis > 0) this.flushMillis = flushMillis;
+    }
+
+    public String getStore() {
+      return store;
+    }
+
+    /** "blob" for Azure Storage, the default, "memory" or "file". */
+    public void setStore(String store) {
+      this.store = emptyToNull(store);
+    }
+
+    public String getFile() {
+      return file;
+    }
+
+    /** The path of the checkpoint file, when the store is "file". */
+    public void setFile(String file) {
+      this.file = emptyToNull(file);
+    }
+
+    /** Does nothing when checkpoints are in Azure Storage. A file is opened on build. */
+    void applyStore(EventHubCollector.Builder builder) {
+      if (store == null || store.equalsIgnoreCase("blob")) return;
+      if (store.equalsIgnoreCase("memory")) {
+        builder.checkpointStore(CheckpointStore.inMemory());
+      } else if (store.equalsIgnoreCase("file")) {
+        if (file == null) throw new IllegalArgumentException("checkpoint.file isn't set");
+        builder.checkpointFile(Paths.get(file));
+      } else {
+        throw new IllegalArgumentException("Unsupported checkpoint.store: " + store);
+      }
+    }
+  }
+
+  public static class Write {
+    private Integer maxSpans;
+    private Integer maxBytes;
+    private Long lingerMillis;
+    private Integer maxInFlight;
+    private boolean groupByTrace;
+
+    public Integer getMaxSpans() {
+      return maxSpans;
+    }
+
+    public void setMaxSpans(int maxSpans) {
+      if (maxSpans > 0) this.maxSpans = maxSpans;
+    }
+
+    public Integer getMaxBytes() {
+      return maxBytes;
+    }
+
+    public void setMaxBytes(int maxBytes) {
+      if (maxBytes > 0) this.maxBytes = maxBytes;
+    }
+
+    public Long getLingerMillis() {
+      return lingerMillis;
+    }
+
+    public void setLingerMillis(long lingerMillis) {
+      if (lingerMillis > 0) this.lingerMillis = lingerMillis;
+    }
+
+    public Integer getMaxInFlight() {
+      return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+      if (maxInFlight > 0) this.maxInFlight = maxInFlight;
+    }
+
+    public boolean isGroupByTrace() {
+      return groupByTrace;
+    }
+
+    public void setGroupByTrace(boolean groupByTrace) {
+      this.groupByTrace = groupByTrace;
+    }
+  }
+
+  public static class DeadLetter {
+    private String directory;
+    private Long maxFileBytes;
+    private Integer maxFiles;
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = emptyToNull(directory);
+    }
+
+    public Long getMaxFileBytes() {
+      return maxFileBytes;
+    }
+
+    public void setMaxFileBytes(long maxFileBytes) {
+      if (maxFileBytes > 0) this.maxFileBytes = maxFileBytes;
+    }
+
+    public Integer getMaxFiles() {
+      return maxFiles;
+    }
+
+    public void setMaxFiles(int maxFiles) {
+      if (maxFiles > 0) this.maxFiles = maxFiles;
+    }
+  }
+
+  public static class Adaptive {
+    private Integer minSpans;
+    private Integer maxSpans;
+    private Long writeTargetMillis;
+
+    public Integer getMinSpans() {
+      return minSpans;
+    }
+
+    public void setMinSpans(int minSpans) {
+      if (minSpans > 0) this.minSpans = minSpans;
+    }
+
+    public Integer getMaxSpans() {
+      return maxSpans;
+    }
+
+    public void setMaxSpans(int maxSpans) {
+      if (maxSpans > 0) this.maxSpans = maxSpans;
+    }
+
+    public Long getWriteTargetMillis() {
+      return writeTargetMillis;
+    }
+
+    public void setWriteTargetMillis(long writeTargetMillis) {
+      if (writeTargetMillis > 0) this.writeTargetMillis = writeTargetMillis;
+    }
+  }
+
+  public static class Spool {
+    private String directory;
+    private Integer segmentBytes;
+    private Integer maxSegments;
+    private Integer replaySpansPerSecond;
+    private Long stallMillis;
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = emptyToNull(directory);
+    }
+
+    public Integer getSegmentBytes() {
+      return segmentBytes;
+    }
+
+    public void setSegmentBytes(int segmentBytes) {
+      if (segmentBytes > 0) this.segmentBytes = segmentBytes;
+    }
+
+    public Integer getMaxSegments() {
+      return maxSegments;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+      if (maxSegments > 0) this.maxSegments = maxSegments;
+    }
+
+    public Integer getReplaySpansPerSecond() {
+      return replaySpansPerSecond;
+    }
+
+    public void setReplaySpansPerSecond(int replaySpansPerSecond) {
+      if (replaySpansPerSecond > 0) this.replaySpansPerSecond = replaySpansPerSecond;
+    }
+
+    public Long getStallMillis() {
+      return stallMillis;
+    }
+
+    /** Zero spools spans as soon as they wait for a write permit. Null leaves the default. */
+    public void setStallMillis(Long stallMillis) {
+      this.stallMillis = stallMillis;
+    }
+  }
+
+  public static class Memory {
+    private Long budgetBytes;
+    private Long waitMillis;
+    private boolean shed;
+
+    public Long getBudgetBytes() {
+      return budgetBytes;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+      if (budgetBytes > 0) this.budgetBytes = budgetBytes;
+    }
+
+    public Long getWaitMillis() {
+      return waitMillis;
+    }
+
+    /** Zero doesn't wait for the budget to free up. Null leaves the default. */
+    public void setWaitMillis(Long waitMillis) {
+      this.waitMillis = waitMillis;
+    }
+
+    public boolean isShed() {
+      return shed;
+    }
+
+    public void setShed(boolean shed) {
+      this.shed = shed;
+    }
+  }
+
   EventHubCollector.Builder toBuilder() {
     EventHubCollector.Builder result = EventHubCollector.newBuilder();
     if (name != null) result.name(name);
     if (consumerGroup != null) result.consumerGroup(consumerGroup);
     if (connectionString != null) result.connectionString(connectionString);
-    if (checkpointBatchSize != null) result.checkpointBatchSize(checkpointBatchSize);
+    if (checkpointBatchSize != null) {
+      result.checkpointBatchSize(checkpointBatchSize);
+    } else if (checkpoint.batchBytes != null || checkpoint.intervalMillis != null) {
+      result.checkpointBatchSize(0); // only checkpoint on what was configured
+    }
+    if (checkpoint.batchBytes != null) result.checkpointBatchBytes(checkpoint.batchBytes);
+    if (checkpoint.intervalMillis != null) {
+      result.checkpointIntervalMillis(checkpoint.intervalMillis);
+    }
+    if (checkpoint.minIntervalMillis != null) {
+      result.checkpointMinIntervalMillis(checkpoint.minIntervalMillis);
+    }
+    if (checkpoint.flushMillis != null) result.checkpointFlushMillis(checkpoint.flushMillis);
+    checkpoint.applyStore(result);
     if (processorHost != null) result.processorHost(processorHost);
+    if (decodeThreads != null) result.decodeThreads(decodeThreads);
+    if (dedupeMaxSpans != null) result.dedupeMaxSpans(dedupeMaxSpans);
+    if (drainTimeoutMillis != null) result.drainTimeoutMillis(drainTimeoutMillis);
+    if (encoding != null) {
+      result.encoding(SpanBytesDecoder.valueOf(encoding.trim().toUpperCase(Locale.ROOT)));
+    }
+    if (encodingProperty != null) result.encodingProperty(encodingProperty);
+    if (receive.maxBatchSize != null) result.maxBatchSize(receive.maxBatchSize);
+    if (receive.prefetchCount != null) result.prefetchCount(receive.prefetchCount);
+    if (receive.timeoutMillis != null) result.receiveTimeoutMillis(receive.timeoutMillis);
+    result.invokeProcessorAfterReceiveTimeout(receive.invokeAfterTimeout);
+    if (executor.threads != null) result.executorThreads(executor.threads);
+    if (executor.threadNamePrefix != null) {
+      result.executorThreadNamePrefix(executor.threadNamePrefix);
+    }
     if (storage.connectionString != null) result.storageConnectionString(storage.connectionString);
     if (storage.container != null) result.storageConnectionString(storage.container);
     if (storage.blobPrefix != null) result.storageConnectionString(storage.blobPrefix);
+    if (write.maxSpans != null) result.writeMaxSpans(write.maxSpans);
+    if (write.maxBytes != null) result.writeMaxBytes(write.maxBytes);
+    if (write.lingerMillis != null) result.writeLingerMillis(write.lingerMillis);
+    if (write.maxInFlight != null) result.writeMaxInFlight(write.maxInFlight);
+    result.writeGroupByTrace(write.groupByTrace);
+    if (deadLetter.directory != null) {
+      result.deadLetterDirectory(Paths.get(deadLetter.directory));
+    }
+    if (deadLetter.maxFileBytes != null) result.deadLetterMaxFileBytes(deadLetter.maxFileBytes);
+    if (deadLetter.maxFiles != null) result.deadLetterMaxFiles(deadLetter.maxFiles);
+    if (adaptive.minSpans != null) result.adaptiveMinSpans(adaptive.minSpans);
+    if (adaptive.maxSpans != null) result.adaptiveMaxSpans(adaptive.maxSpans);
+    if (adaptive.writeTargetMillis != null) {
+      result.adaptiveWriteTargetMillis(adaptive.writeTargetMillis);
+    }
+    if (spool.directory != null) result.spoolDirectory(Paths.get(spool.directory));
+    if (spool.segmentBytes != null) result.spoolSegmentBytes(spool.segmentBytes);
+    if (spool.maxSegments != null) result.spoolMaxSegments(spool.maxSegments);
+    if (spool.replaySpansPerSecond != null) {
+      result.spoolReplaySpansPerSecond(spool.replaySpansPerSecond);
+    }
+    if (spool.stallMillis != null) result.spoolStallMillis(spool.stallMillis);
+    if (memory.budgetBytes != null) result.memoryBudgetBytes(memory.budgetBytes);
+    if (memory.waitMillis != null) result.memoryBudgetWaitMillis(memory.waitMillis);
+    result.memoryBudgetShed(memory.shed);
     return result;
   }
 
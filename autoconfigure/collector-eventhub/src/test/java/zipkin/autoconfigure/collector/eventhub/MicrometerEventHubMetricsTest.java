@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.autoconfigure.collector.eventhub;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MicrometerEventHubMetricsTest {
+  MeterRegistry registry = new SimpleMeterRegistry();
+  MicrometerEventHubMetrics metrics = new MicrometerEventHubMetrics(registry);
+
+  @Test
+  public void forPartition_sameInstancePerPartition() {
+    assertThat(metrics.forPartition("1"))
+        .isSameAs(metrics.forPartition("1"))
+        .isNotSameAs(metrics.forPartition("2"));
+  }
+
+  @Test
+  public void forPartition_tagsMeasurements() {
+    PartitionMetrics partition = metrics.forPartition("1");
+
+    partition.lag(5);
+    partition.recordBatch(10, 30);
+    partition.recordCheckpointNanos(TimeUnit.MILLISECONDS.toNanos(20));
+    partition.incrementCheckpointFailures();
+    partition.recordDeduplication(10, 4);
+    partition.recordTraceGrouping(2, 6);
+    partition.recordShed(7);
+    partition.adaptiveSizes(100, 200);
+
+    assertThat(registry.find("zipkin_collector.lag").tag("partition", "1").gauge().value())
+        .isEqualTo(5.0);
+    assertThat(
+            registry
+                .find("zipkin_collector.batch.spans")
+                .tags("transport", "eventhub", "partition", "1")
+                .summary()
+                .totalAmount())
+        .isEqualTo(30.0);
+    assertThat(registry.find("zipkin_collector.checkpoint").timer().count()).isEqualTo(1L);
+    assertThat(registry.find("zipkin_collector.checkpoint.failures").counter().count())
+        .isEqualTo(1.0);
+    assertThat(registry.find("zipkin_collector.dedupe.duplicates").counter().count())
+        .isEqualTo(4.0);
+    assertThat(registry.find("zipkin_collector.memory.shed").counter().count()).isEqualTo(7.0);
+    assertThat(registry.find("zipkin_collector.group.runs").counter().count()).isEqualTo(6.0);
+    assertThat(registry.find("zipkin_collector.adaptive.write.spans").gauge().value())
+        .isEqualTo(200.0);
+  }
+}
@@ -13,6 +13,8 @@
  */
 package zipkin.autoconfigure.collector.eventhub;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
@@ -25,6 +27,7 @@ import org.springframework.context.annotation.Configuration;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
 import zipkin2.collector.eventhub.EventHubCollector;
+import zipkin2.collector.eventhub.EventHubMetrics;
 import zipkin2.storage.InMemoryStorage;
 import zipkin2.storage.StorageComponent;
 
@@ -75,6 +78,37 @@ public class ZipkinEventHubCollectorAutoConfigurationTest {
     assertThat(props.getStorage().getConnectionString()).isEqualTo(STORAGE_CONNECTION_STRING);
   }
 
+  @Test
+  public void reportsExecutorGauges_whenMeterRegistryPresent() {
+    addEnvironment(context, "zipkin.collector.eventhub.connection-string:" + CONNECTION_STRING);
+    addEnvironment(
+        context,
+        "zipkin.collector.eventhub.storage.connection-string:" + STORAGE_CONNECTION_STRING);
+    addEnvironment(context, "zipkin.collector.eventhub.executor.threads:4");
+    context.register(
+        PropertyPlaceholderAutoConfiguration.class,
+        ZipkinEventHubCollectorAutoConfiguration.class,
+        TestConfiguration.class,
+        MeterRegistryConfiguration.class);
+    context.refresh();
+
+    MeterRegistry registry = context.getBean(MeterRegistry.class);
+    assertThat(context.getBean(EventHubMetrics.class))
+        .isInstanceOf(MicrometerEventHubMetrics.class);
+    assertThat(
+            registry.find("zipkin_collector.executor.queue").tag("transport", "eventhub").gauge())
+        .isNotNull();
+    assertThat(registry.find("zipkin_collector.executor.active").gauge()).isNotNull();
+  }
+
+  @Configuration
+  static class MeterRegistryConfiguration {
+    @Bean
+    MeterRegistry registry() {
+      return new SimpleMeterRegistry();
+    }
+  }
+
   @Configuration
   static class TestConfiguration {
     @Bean
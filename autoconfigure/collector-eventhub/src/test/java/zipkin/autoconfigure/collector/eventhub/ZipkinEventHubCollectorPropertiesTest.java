@@ -54,9 +54,66 @@ public class ZipkinEventHubCollectorPropertiesTest {
           parameters("consumer-group", "zapkin", p -> p.getConsumerGroup()),
           parameters("name", "zapkin", p -> p.getName()),
           parameters("checkpoint-batch-size", 1000, p -> p.getCheckpointBatchSize()),
+          parameters(
+              "checkpoint.batch-bytes", 1_000_000L, p -> p.getCheckpoint().getBatchBytes()),
+          parameters(
+              "checkpoint.interval-millis", 5000L, p -> p.getCheckpoint().getIntervalMillis()),
+          parameters(
+              "checkpoint.min-interval-millis",
+              1000L,
+              p -> p.getCheckpoint().getMinIntervalMillis()),
+          parameters("checkpoint.flush-millis", 1000L, p -> p.getCheckpoint().getFlushMillis()),
+          parameters("checkpoint.store", "file", p -> p.getCheckpoint().getStore()),
+          parameters(
+              "checkpoint.file", "/var/lib/zipkin/checkpoints", p -> p.getCheckpoint().getFile()),
           parameters("processor-host", "my-host", p -> p.getProcessorHost()),
+          parameters("decode-threads", 4, p -> p.getDecodeThreads()),
+          parameters("dedupe-max-spans", 100000, p -> p.getDedupeMaxSpans()),
+          parameters("drain-timeout-millis", 30000L, p -> p.getDrainTimeoutMillis()),
+          parameters("drain-timeout-millis", 0L, p -> p.getDrainTimeoutMillis()),
+          parameters("encoding", "PROTO3", p -> p.getEncoding()),
+          parameters("encoding-property", "Content-Type", p -> p.getEncodingProperty()),
           parameters("storage.container", "storagecontainer", p -> p.getStorage().getContainer()),
-          parameters("storage.blob-prefix", "/prefix", p -> p.getStorage().getBlobPrefix())
+          parameters("storage.blob-prefix", "/prefix", p -> p.getStorage().getBlobPrefix()),
+          parameters("executor.threads", 8, p -> p.getExecutor().getThreads()),
+          parameters(
+              "executor.thread-name-prefix",
+              "eventhub-",
+              p -> p.getExecutor().getThreadNamePrefix()),
+          parameters("receive.max-batch-size", 500, p -> p.getReceive().getMaxBatchSize()),
+          parameters("receive.prefetch-count", 1000, p -> p.getReceive().getPrefetchCount()),
+          parameters("receive.timeout-millis", 5000L, p -> p.getReceive().getTimeoutMillis()),
+          parameters(
+              "receive.invoke-after-timeout", true, p -> p.getReceive().isInvokeAfterTimeout()),
+          parameters("write.max-spans", 1000, p -> p.getWrite().getMaxSpans()),
+          parameters("write.max-bytes", 5_000_000, p -> p.getWrite().getMaxBytes()),
+          parameters("write.linger-millis", 1000L, p -> p.getWrite().getLingerMillis()),
+          parameters("write.max-in-flight", 4, p -> p.getWrite().getMaxInFlight()),
+          parameters("write.group-by-trace", true, p -> p.getWrite().isGroupByTrace()),
+          parameters(
+              "dead-letter.directory",
+              "/var/lib/zipkin/dead-letters",
+              p -> p.getDeadLetter().getDirectory()),
+          parameters(
+              "dead-letter.max-file-bytes", 1_000_000L, p -> p.getDeadLetter().getMaxFileBytes()),
+          parameters("dead-letter.max-files", 5, p -> p.getDeadLetter().getMaxFiles()),
+          parameters("adaptive.min-spans", 100, p -> p.getAdaptive().getMinSpans()),
+          parameters("adaptive.max-spans", 10_000, p -> p.getAdaptive().getMaxSpans()),
+          parameters(
+              "adaptive.write-target-millis", 500L, p -> p.getAdaptive().getWriteTargetMillis()),
+          parameters("spool.directory", "/var/lib/zipkin/spool", p -> p.getSpool().getDirectory()),
+          parameters("spool.segment-bytes", 1_000_000, p -> p.getSpool().getSegmentBytes()),
+          parameters("spool.max-segments", 10, p -> p.getSpool().getMaxSegments()),
+          parameters(
+              "spool.replay-spans-per-second",
+              5_000,
+              p -> p.getSpool().getReplaySpansPerSecond()),
+          parameters("spool.stall-millis", 30_000L, p -> p.getSpool().getStallMillis()),
+          parameters("spool.stall-millis", 0L, p -> p.getSpool().getStallMillis()),
+          parameters("memory.budget-bytes", 256_000_000L, p -> p.getMemory().getBudgetBytes()),
+          parameters("memory.wait-millis", 500L, p -> p.getMemory().getWaitMillis()),
+          parameters("memory.wait-millis", 0L, p -> p.getMemory().getWaitMillis()),
+          parameters("memory.shed", true, p -> p.getMemory().isShed())
         });
   }
 
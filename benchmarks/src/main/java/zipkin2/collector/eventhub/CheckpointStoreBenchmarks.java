@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventprocessorhost.Checkpoint;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures a checkpoint written to a local {@link CheckpointStore}. Compare with the latency of a
+ * blob write, which is usually milliseconds.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class CheckpointStoreBenchmarks {
+
+  @Param({"memory", "file"})
+  public String store;
+
+  Path file;
+  CheckpointStore checkpointStore;
+  Checkpoint checkpoint = new Checkpoint("1", "0", 0L);
+  long sequenceNumber;
+
+  @Setup
+  public void setup() throws IOException {
+    if (store.equals("file")) {
+      file = Files.createTempFile("checkpoints", ".bin");
+      Files.delete(file);
+      checkpointStore = CheckpointStore.mappedFile(file);
+    } else {
+      checkpointStore = CheckpointStore.inMemory();
+    }
+  }
+
+  @TearDown
+  public void close() throws IOException {
+    checkpointStore.close();
+    if (file != null) Files.delete(file);
+  }
+
+  @Benchmark
+  public Object updateCheckpoint() throws Exception {
+    long next = ++sequenceNumber;
+    checkpoint.setSequenceNumber(next);
+    checkpoint.setOffset(Long.toString(next * 1024));
+    return checkpointStore.updateCheckpoint(null, checkpoint).get();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + CheckpointStoreBenchmarks.class.getSimpleName() + ".*")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
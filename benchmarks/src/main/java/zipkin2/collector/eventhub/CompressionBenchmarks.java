@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Compares the CPU cost of decompressing event bodies with the ingress bytes saved. An operation
+ * reads and decodes a batch of events. The "spans" counter reports spans per second, and the
+ * "ingressBytes" counter the event bytes per second that would be received from Event Hub.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class CompressionBenchmarks {
+
+  @Param({"JSON_V2", "PROTO3"})
+  public String encoding;
+
+  @Param({"identity", "gzip", "deflate"})
+  public String contentEncoding;
+
+  @Param({"10", "100"})
+  public int spansPerEvent;
+
+  static final int EVENTS_PER_BATCH = 100;
+
+  List<EventData> batch;
+  int batchBytes;
+  EventBodies bodies = new EventBodies();
+  EventEncodings.Declared detected = new EventEncodings(null, null, null).pinned;
+  List<Span> buffer = new ArrayList<>();
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class Counters {
+    public long spans, ingressBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      spans = ingressBytes = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    List<EventData> uncompressed =
+        EventDataBatches.newBatch(
+            SpanBytesEncoder.valueOf(encoding), spansPerEvent, EVENTS_PER_BATCH);
+    batch = new ArrayList<>(uncompressed.size());
+    batchBytes = 0;
+    for (int i = 0; i < uncompressed.size(); i++) {
+      byte[] body = compress(uncompressed.get(i).getBytes());
+      EventData event = EventDataBatches.message(String.valueOf(i), i, body);
+      event.getProperties().put(EventBodies.CONTENT_ENCODING, contentEncoding);
+      batch.add(event);
+      batchBytes += body.length;
+    }
+  }
+
+  /** Decompresses and decodes, as done when not decoding in parallel. */
+  @Benchmark
+  public List<Span> readAndDecode(Counters counters) {
+    buffer.clear();
+    for (int i = 0; i < EVENTS_PER_BATCH; i++) {
+      EventData event = batch.get(i);
+      detected.decodeList(bodies.read(event, event.getBytes()), buffer);
+    }
+    counters.spans += spansPerEvent * EVENTS_PER_BATCH;
+    counters.ingressBytes += batchBytes;
+    return buffer;
+  }
+
+  byte[] compress(byte[] body) throws IOException {
+    if (contentEncoding.equals("identity")) return body;
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (OutputStream out =
+        contentEncoding.equals("gzip")
+            ? new GZIPOutputStream(result)
+            : new DeflaterOutputStream(result)) {
+      out.write(body);
+    }
+    return result.toByteArray();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + CompressionBenchmarks.class.getSimpleName() + ".*")
+            .addProfiler("gc")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import com.microsoft.azure.eventprocessorhost.CloseReason;
+import com.microsoft.azure.eventprocessorhost.PartitionContext;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Runs partitions of {@link ZipkinEventProcessor} concurrently, each fed by a thread producing
+ * events of {@link TraceGenerator generated traces}, and reports spans per second, ingest latency,
+ * garbage collection and checkpoints. Unlike the JMH benchmarks, this includes everything between
+ * an event being enqueued and storage acknowledging its spans, so it can be used to size hosts.
+ *
+ * <p>Settings are system properties, for example:
+ *
+ * <pre>{@code
+ * java -Dpartitions=8 -DstorageLatencyMillis=20 -DwriteMaxSpans=1000 \
+ *   -cp benchmarks/target/benchmarks.jar zipkin2.collector.eventhub.EndToEndHarness
+ * }</pre>
+ */
+public final class EndToEndHarness {
+  final int partitions = Integer.getInteger("partitions", 4);
+  final long warmupSeconds = Long.getLong("warmupSeconds", 5L);
+  final long durationSeconds = Long.getLong("durationSeconds", 30L);
+  /** The shape of traces and events, read from system properties. */
+  final TraceGenerator.Builder payloads = TraceGenerator.newBuilder().realTime(true);
+  final long seed = payloads.seed;
+  /** Zero produces events as fast as the partition consumes them. */
+  final int eventsPerSecond = Integer.getInteger("eventsPerSecond", 0);
+  final int maxBatchSize = Integer.getInteger("maxBatchSize", 10);
+  final int prefetchCount = Integer.getInteger("prefetchCount", 300);
+  final String storageType = System.getProperty("storage", "noop");
+  final long storageLatencyMillis = Long.getLong("storageLatencyMillis", 0L);
+  final long checkpointLatencyMillis = Long.getLong("checkpointLatencyMillis", 0L);
+  final int checkpointBatchSize = Integer.getInteger("checkpointBatchSize", 10);
+  final int writeMaxSpans = Integer.getInteger("writeMaxSpans", 0);
+  final long writeLingerMillis = Long.getLong("writeLingerMillis", 0L);
+  final int writeMaxInFlight = Integer.getInteger("writeMaxInFlight", 10);
+  final int decodeThreads = Integer.getInteger("decodeThreads", 0);
+  final long memoryBudgetBytes = Long.getLong("memoryBudgetBytes", 0L);
+  final boolean memoryBudgetShed = Boolean.getBoolean("memoryBudgetShed");
+
+  final AtomicLong checkpoints = new AtomicLong(), events = new AtomicLong();
+  SimulatedStorage storage;
+  ParallelDecoder decoder;
+  MemoryBudget memoryBudget;
+  volatile boolean stopped;
+
+  public static void main(String[] args) throws Exception {
+    new EndToEndHarness().run();
+  }
+
+  void run() throws Exception {
+    StorageComponent delegate =
+        storageType.equals("memory") ? InMemoryStorage.newBuilder().build() : new NoopStorage();
+    storage = new SimulatedStorage(delegate, storageLatencyMillis);
+    decoder = decodeThreads > 0 ? new ParallelDecoder(decodeThreads) : null;
+    memoryBudget = memoryBudgetBytes > 0 ? new MemoryBudget(memoryBudgetBytes) : null;
+    EventHubCollector.Builder builder =
+        EventHubCollector.newBuilder()
+            .storage(storage)
+            .checkpointBatchSize(checkpointBatchSize)
+            .writeMaxSpans(writeMaxSpans)
+            .writeLingerMillis(writeLingerMillis)
+            .writeMaxInFlight(writeMaxInFlight)
+            .memoryBudgetShed(memoryBudgetShed);
+
+    List<Partition> running = new ArrayList<>();
+    for (int i = 0; i < partitions; i++) {
+      Partition partition = new Partition(String.valueOf(i), builder);
+      partition.start();
+      running.add(partition);
+    }
+
+    System.out.printf(
+        "%d partitions, %s events of %s spans, %s storage +%dms, warming up %ds%n",
+        partitions,
+        payloads.encoder,
+        payloads.spansPerEvent,
+        storageType,
+        storageLatencyMillis,
+        warmupSeconds);
+    awaitSeconds(warmupSeconds);
+
+    Snapshot start = new Snapshot();
+    storage.ingestMicros.reset();
+    awaitSeconds(durationSeconds);
+    Snapshot end = new Snapshot();
+    long ingestP50 = storage.ingestMicros.quantile(0.5);
+    long ingestP99 = storage.ingestMicros.quantile(0.99);
+    long ingestMax = storage.ingestMicros.max();
+
+    stopped = true;
+    for (Partition partition : running) partition.stop();
+    if (decoder != null) decoder.close();
+    storage.close();
+
+    // Throughput of the partitions left would look like a regression, rather than an error
+    for (Partition partition : running) {
+      if (partition.failure != null) {
+        throw new IllegalStateException(
+            "Partition " + partition.id + " failed, so the run is invalid", partition.failure);
+      }
+    }
+
+    double seconds = (end.nanos - start.nanos) / 1e9;
+    System.out.printf("spans/s:     %,.0f%n", (end.spans - start.spans) / seconds);
+    System.out.printf("events/s:    %,.0f%n", (end.events - start.events) / seconds);
+    System.out.printf("writes/s:    %,.1f%n", (end.writes - start.writes) / seconds);
+    System.out.printf(
+        "ingest:      p50 %.1fms, p99 %.1fms, max %.1fms%n",
+        ingestP50 / 1000.0, ingestP99 / 1000.0, ingestMax / 1000.0);
+    System.out.printf(
+        "checkpoints: %d (%.1f/s)%n",
+        end.checkpoints - start.checkpoints, (end.checkpoints - start.checkpoints) / seconds);
+    long gcMillis = end.gcMillis - start.gcMillis;
+    System.out.printf(
+        "gc:          %d collections, %dms (%.2f%% of the run)%n",
+        end.gcCount - start.gcCount, gcMillis, gcMillis / (seconds * 10));
+  }
+
+  /** Sleeps until the time elapses, or a partition failed and stopped the run. */
+  void awaitSeconds(long seconds) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    while (!stopped && System.nanoTime() - deadlineNanos < 0) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+  }
+
+  /** Counters at a point in time, so that the warmup can be excluded. */
+  final class Snapshot {
+    final long nanos = System.nanoTime();
+    final long spans = storage.spans.get(), writes = storage.writes.get();
+    final long events = EndToEndHarness.this.events.get();
+    final long checkpoints = EndToEndHarness.this.checkpoints.get();
+    long gcCount, gcMillis;
+
+    Snapshot() {
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcCount += Math.max(0L, gc.getCollectionCount());
+        gcMillis += Math.max(0L, gc.getCollectionTime());
+      }
+    }
+  }
+
+  /** A stand-in for an Event Hub partition and the Event Processor Host receiving from it. */
+  final class Partition {
+    final String id;
+    final BlockingQueue<EventData> queue = new ArrayBlockingQueue<>(prefetchCount);
+    final AtomicLong lastEnqueued = new AtomicLong(-1L);
+    final TraceGenerator generator;
+    final ZipkinEventProcessor processor;
+    final Thread producer, consumer;
+    volatile Throwable failure; // when set, the run was stopped
+
+    Partition(String id, EventHubCollector.Builder builder) {
+      this.id = id;
+      // Partitions get different traces, which are the same each run
+      this.generator = payloads.seed(seed + Integer.parseInt(id)).build();
+      this.processor =
+          new ZipkinEventProcessor(
+              builder, new HostResources().decoder(decoder).memoryBudget(memoryBudget)) {
+            @Override
+            String partitionId(PartitionContext context) {
+              return Partition.this.id;
+            }
+
+            @Override
+            void checkpoint(PartitionContext context, EventData data) {
+              if (checkpointLatencyMillis > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(checkpointLatencyMillis));
+              }
+              checkpoints.incrementAndGet();
+            }
+
+            @Override
+            long lastEnqueuedSequenceNumber(PartitionContext context) {
+              return lastEnqueued.get();
+            }
+          };
+      this.producer =
+          new Thread("producer-" + id) {
+            @Override
+            public void run() {
+              produce();
+            }
+          };
+      this.consumer =
+          new Thread("partition-" + id) {
+            @Override
+            public void run() {
+              consume();
+            }
+          };
+    }
+
+    void start() {
+      processor.onOpen(null);
+      producer.start();
+      consumer.start();
+    }
+
+    /** Enqueues events, waiting while the partition's prefetch queue is full. */
+    void produce() {
+      long intervalNanos = eventsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / eventsPerSecond : 0;
+      long nextNanos = System.nanoTime();
+      try {
+        for (long sequence = 0; !stopped; sequence++) {
+          if (intervalNanos > 0) {
+            nextNanos += intervalNanos;
+            long waitNanos = nextNanos - System.nanoTime();
+            if (waitNanos > 0) LockSupport.parkNanos(waitNanos);
+          }
+          queue.put(generator.nextEvent());
+          lastEnqueued.set(sequence);
+        }
+      } catch (InterruptedException e) {
+        // stopped
+      } catch (RuntimeException | Error e) {
+        fail(e);
+      }
+    }
+
+    /** Passes batches of up to {@link #maxBatchSize} events to the processor. */
+    void consume() {
+      List<EventData> batch = new ArrayList<>(maxBatchSize);
+      try {
+        while (!stopped) {
+          EventData first = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (first == null) continue;
+          batch.add(first);
+          queue.drainTo(batch, maxBatchSize - 1);
+          processor.onEvents(null, batch);
+          events.addAndGet(batch.size());
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        // stopped
+      } catch (Exception | Error e) {
+        fail(e);
+      }
+    }
+
+    void fail(Throwable error) {
+      if (failure == null) failure = error;
+      stopped = true;
+    }
+
+    /** Stops producing, then closes the processor, which drains it to storage. */
+    void stop() throws InterruptedException {
+      producer.interrupt();
+      producer.join();
+      consumer.join();
+      processor.onClose(null, CloseReason.Shutdown);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+/** Creates batches of events as they would be received from an Event Hub partition. */
+final class EventDataBatches {
+
+  /**
+   * Returns a batch of events, each holding a list of {@code spansPerEvent} distinct spans. Offsets
+   * and sequence numbers increase with each event.
+   */
+  static List<EventData> newBatch(SpanBytesEncoder encoder, int spansPerEvent, int eventsPerBatch) {
+    List<EventData> result = new ArrayList<>(eventsPerBatch);
+    for (int i = 0; i < eventsPerBatch; i++) {
+      int from = (i * spansPerEvent) % (LOTS_OF_SPANS.length - spansPerEvent);
+      List<Span> spans = Arrays.asList(LOTS_OF_SPANS).subList(from, from + spansPerEvent);
+      result.add(message(String.valueOf(i), i, encoder.encodeList(spans)));
+    }
+    return result;
+  }
+
+  /** Like a received message, this has an offset and sequence number. */
+  static EventData message(String offset, long sequenceNumber, byte[] message) {
+    EventData data = new EventData(message);
+    LinkedHashMap<String, Object> sysProps = new LinkedHashMap<>();
+    sysProps.put("x-opt-offset", offset);
+    sysProps.put("x-opt-sequence-number", sequenceNumber);
+    try {
+      Field field = EventData.class.getDeclaredField("systemProperties");
+      field.setAccessible(true);
+      field.set(data, new EventData.SystemProperties(sysProps));
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+    return data;
+  }
+
+  EventDataBatches() {}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets whose width grows with their value, so that percentiles are within
+ * about 3% of the recorded value, regardless of scale. Recording is lock-free.
+ */
+final class LatencyHistogram {
+  /** Values below {@code 1 << PRECISION_BITS} are exact. Above, buckets have this many bits. */
+  static final int PRECISION_BITS = 6;
+  static final int EXACT = 1 << PRECISION_BITS, HALF = EXACT >>> 1;
+
+  final AtomicLongArray counts = new AtomicLongArray(EXACT + 64 * HALF);
+
+  void record(long value) {
+    counts.incrementAndGet(index(Math.max(0L, value)));
+  }
+
+  /** Returns the value at the quantile, between 0.0 and 1.0, or zero if nothing was recorded. */
+  long quantile(double quantile) {
+    long total = count();
+    if (total == 0) return 0L;
+    long rank = Math.max(1L, (long) Math.ceil(quantile * total)), seen = 0;
+    for (int i = 0, length = counts.length(); i < length; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) return valueAt(i);
+    }
+    return max();
+  }
+
+  long max() {
+    for (int i = counts.length() - 1; i >= 0; i--) {
+      if (counts.get(i) != 0) return valueAt(i);
+    }
+    return 0L;
+  }
+
+  long count() {
+    long result = 0;
+    for (int i = 0, length = counts.length(); i < length; i++) result += counts.get(i);
+    return result;
+  }
+
+  /** Not atomic with regard to concurrent recording, which is fine between measurements. */
+  void reset() {
+    for (int i = 0, length = counts.length(); i < length; i++) counts.set(i, 0L);
+  }
+
+  static int index(long value) {
+    if (value < EXACT) return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION_BITS - 1);
+    int mantissa = (int) (value >>> shift); // between HALF and EXACT
+    return EXACT + (shift - 1) * HALF + mantissa - HALF;
+  }
+
+  /** Returns the middle of the bucket at the index. */
+  static long valueAt(int index) {
+    if (index < EXACT) return index;
+    int shift = (index - EXACT) / HALF + 1;
+    long mantissa = (index - EXACT) % HALF + HALF;
+    return (mantissa << shift) + ((1L << shift) >>> 1);
+  }
+}
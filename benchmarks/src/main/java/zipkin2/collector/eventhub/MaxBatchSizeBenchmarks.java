@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Shows how the Event Processor Host's max batch size affects spans per second. The same events
+ * are passed to {@link ZipkinEventProcessor#onEvents} in callbacks of {@code maxBatchSize} events,
+ * so per-callback overhead, such as storage writes and checkpoint accounting, is what varies.
+ *
+ * <p>An operation is {@link #EVENTS} events of 10 JSON spans each. Compare {@code writeMaxSpans=0},
+ * where each callback writes to storage, with a write limit that batches across callbacks.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class MaxBatchSizeBenchmarks {
+  static final int EVENTS = 1000, SPANS_PER_EVENT = 10;
+
+  @Param({"1", "10", "100", "1000"})
+  public int maxBatchSize;
+
+  @Param({"0", "1000"})
+  public int writeMaxSpans;
+
+  List<EventData> events;
+  ZipkinEventProcessor processor;
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class SpanCounter {
+    public long spans;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      spans = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    events = EventDataBatches.newBatch(SpanBytesEncoder.JSON_V2, SPANS_PER_EVENT, EVENTS);
+    processor =
+        ZipkinEventProcessorBenchmarks.newProcessor(
+            EventHubCollector.newBuilder()
+                .storage(new NoopStorage())
+                .checkpointBatchSize(10)
+                .writeMaxSpans(writeMaxSpans),
+            null);
+  }
+
+  @Benchmark
+  public void onEvents(SpanCounter counter) throws Exception {
+    for (int i = 0; i < EVENTS; i += maxBatchSize) {
+      processor.onEvents(null, events.subList(i, Math.min(i + maxBatchSize, EVENTS)));
+    }
+    counter.spans += EVENTS * SPANS_PER_EVENT;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + MaxBatchSizeBenchmarks.class.getSimpleName() + ".*")
+            .addProfiler("gc")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.List;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/** Drops all spans, so that benchmarks measure the collector as opposed to storage. */
+final class NoopStorage extends StorageComponent {
+  @Override
+  public SpanStore spanStore() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public SpanConsumer spanConsumer() {
+    return new SpanConsumer() {
+      @Override
+      public Call<Void> accept(List<Span> spans) {
+        return Call.create(null);
+      }
+    };
+  }
+}
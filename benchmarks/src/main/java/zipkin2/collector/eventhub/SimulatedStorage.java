@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Acknowledges writes after a fixed latency, like a remote cluster would, then passes them to
+ * another storage component. On acknowledgement, this records how long ago each span finished, per
+ * {@link TraceGenerator#nowMicros()}.
+ */
+final class SimulatedStorage extends StorageComponent {
+  final StorageComponent delegate;
+  final long latencyMillis;
+  final ScheduledExecutorService scheduler; // null when there's no latency
+  final LatencyHistogram ingestMicros = new LatencyHistogram();
+  final AtomicLong spans = new AtomicLong(), writes = new AtomicLong();
+
+  SimulatedStorage(StorageComponent delegate, long latencyMillis) {
+    this.delegate = delegate;
+    this.latencyMillis = latencyMillis;
+    this.scheduler =
+        latencyMillis > 0
+            ? Executors.newScheduledThreadPool(2, new NamedThreadFactory("simulated-storage-"))
+            : null;
+  }
+
+  @Override
+  public SpanStore spanStore() {
+    return delegate.spanStore();
+  }
+
+  @Override
+  public SpanConsumer spanConsumer() {
+    return new SpanConsumer() {
+      @Override
+      public Call<Void> accept(List<Span> spans) {
+        return new SimulatedCall(spans);
+      }
+    };
+  }
+
+  void acknowledged(List<Span> spans) throws IOException {
+    delegate.spanConsumer().accept(spans).execute();
+    long now = TraceGenerator.nowMicros();
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      ingestMicros.record(now - (span.timestampAsLong() + span.durationAsLong()));
+    }
+    this.spans.addAndGet(spans.size());
+    writes.incrementAndGet();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (scheduler != null) scheduler.shutdownNow();
+    delegate.close();
+  }
+
+  final class SimulatedCall extends Call.Base<Void> {
+    final List<Span> spans;
+
+    SimulatedCall(List<Span> spans) {
+      this.spans = spans;
+    }
+
+    @Override
+    protected Void doExecute() throws IOException {
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      acknowledged(spans);
+      return null;
+    }
+
+    @Override
+    protected void doEnqueue(final Callback<Void> callback) {
+      Runnable write =
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                acknowledged(spans);
+              } catch (IOException | RuntimeException e) {
+                callback.onError(e);
+                return;
+              }
+              callback.onSuccess(null);
+            }
+          };
+      if (scheduler == null) {
+        write.run();
+      } else {
+        scheduler.schedule(write, latencyMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    @Override
+    public Call<Void> clone() {
+      return new SimulatedCall(spans);
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Generates traces shaped like those of a microservice architecture, and groups their spans into
+ * messages as the reporter of each service would. A trace is a tree of RPCs, so its spans are
+ * spread across messages of several services, interleaved with spans of other traces.
+ *
+ * <p>Output only depends on the seed and settings, except timestamps when {@link
+ * Builder#realTime} is set. Then each span finishes when its message is taken, so that {@code
+ * timestamp + duration} tells how long ago it was reported, in the clock of {@link #nowMicros()}.
+ *
+ * <p>Run {@link #main} to write messages to files, for replay by other tools.
+ */
+final class TraceGenerator {
+  static final String[] SERVICES = {
+    "frontend", "gateway", "auth", "search", "catalog", "recommendations", "cart", "pricing",
+    "inventory", "checkout", "payments", "shipping"
+  };
+  static final String[] METHODS = {"GET", "GET", "GET", "POST"};
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /** Timestamps start here when not in real time, so that output doesn't depend on the clock. */
+  static final long VIRTUAL_EPOCH_MICROS = 1538352000000000L; // 2018-10-01T00:00:00Z
+
+  static final long EPOCH_MICROS = System.currentTimeMillis() * 1000L;
+  static final long EPOCH_NANOS = System.nanoTime();
+
+  /** Like {@link System#currentTimeMillis()}, except in microseconds with nanosecond ticks. */
+  static long nowMicros() {
+    return EPOCH_MICROS + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - EPOCH_NANOS);
+  }
+
+  static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Settings of the generator, which default to the system properties of the same name. */
+  static final class Builder {
+    long seed = Long.getLong("seed", 0L);
+    SpanBytesEncoder encoder =
+        SpanBytesEncoder.valueOf(System.getProperty("encoding", "PROTO3").toUpperCase(Locale.ROOT));
+    Range spansPerEvent = Range.parse(System.getProperty("spansPerEvent", "20"));
+    Range tagsPerSpan = Range.parse(System.getProperty("tagsPerSpan", "3-6"));
+    Range annotationsPerSpan = Range.parse(System.getProperty("annotationsPerSpan", "0"));
+    Range annotationBytes = Range.parse(System.getProperty("annotationBytes", "16-64"));
+    Range fanOut = Range.parse(System.getProperty("fanOut", "0-3"));
+    int maxDepth = Integer.getInteger("maxDepth", 4);
+    int maxSpansPerTrace = Integer.getInteger("maxSpansPerTrace", 64);
+    boolean realTime;
+
+    Builder seed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    Builder encoder(SpanBytesEncoder encoder) {
+      this.encoder = encoder;
+      return this;
+    }
+
+    /** Spans a service reports in one message. */
+    Builder spansPerEvent(Range spansPerEvent) {
+      this.spansPerEvent = spansPerEvent;
+      return this;
+    }
+
+    /** Tags of a span, starting with "http.method", "http.path" and "http.status_code". */
+    Builder tagsPerSpan(Range tagsPerSpan) {
+      this.tagsPerSpan = tagsPerSpan;
+      return this;
+    }
+
+    Builder annotationsPerSpan(Range annotationsPerSpan) {
+      this.annotationsPerSpan = annotationsPerSpan;
+      return this;
+    }
+
+    /** Length of the value of each annotation. */
+    Builder annotationBytes(Range annotationBytes) {
+      this.annotationBytes = annotationBytes;
+      return this;
+    }
+
+    /** Downstream calls each server span makes, until {@link #maxDepth}. */
+    Builder fanOut(Range fanOut) {
+      this.fanOut = fanOut;
+      return this;
+    }
+
+    Builder maxDepth(int maxDepth) {
+      this.maxDepth = maxDepth;
+      return this;
+    }
+
+    Builder maxSpansPerTrace(int maxSpansPerTrace) {
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    /** When true, spans finish when their message is taken, instead of on a virtual clock. */
+    Builder realTime(boolean realTime) {
+      this.realTime = realTime;
+      return this;
+    }
+
+    TraceGenerator build() {
+      return new TraceGenerator(this);
+    }
+  }
+
+  /** Values between a minimum and maximum, inclusive, each as likely. */
+  static final class Range {
+    final int min, max;
+
+    Range(int min, int max) {
+      if (min < 0 || max < min) throw new IllegalArgumentException(min + "-" + max);
+      this.min = min;
+      this.max = max;
+    }
+
+    /** Parses "10" as exactly 10, and "1-50" as between 1 and 50. */
+    static Range parse(String value) {
+      int dash = value.indexOf('-');
+      if (dash == -1) {
+        int exactly = Integer.parseInt(value.trim());
+        return new Range(exactly, exactly);
+      }
+      return new Range(
+          Integer.parseInt(value.substring(0, dash).trim()),
+          Integer.parseInt(value.substring(dash + 1).trim()));
+    }
+
+    int next(Random random) {
+      return min == max ? min : min + random.nextInt(max - min + 1);
+    }
+
+    @Override
+    public String toString() {
+      return min == max ? String.valueOf(min) : min + "-" + max;
+    }
+  }
+
+  static final class Pending {
+    final Span.Builder span;
+    final long duration;
+    final String[] annotations; // spread over the span once it is timestamped
+
+    Pending(Span.Builder span, long duration, String[] annotations) {
+      this.span = span;
+      this.duration = duration;
+      this.annotations = annotations;
+    }
+
+    Span build(long endMicros) {
+      long timestamp = endMicros - duration;
+      span.timestamp(timestamp);
+      for (int i = 0; i < annotations.length; i++) {
+        long offset = duration * (i + 1) / (annotations.length + 1);
+        span.addAnnotation(timestamp + offset, annotations[i]);
+      }
+      return span.build();
+    }
+  }
+
+  final Random random; // not thread-safe, so use one generator per thread
+  final SpanBytesEncoder encoder;
+  final Range spansPerEvent, tagsPerSpan, annotationsPerSpan, annotationBytes, fanOut;
+  final int maxDepth, maxSpansPerTrace;
+  final boolean realTime;
+  final Endpoint[] endpoints = new Endpoint[SERVICES.length];
+  final List<List<Pending>> pending = new ArrayList<>(); // by service
+  final int[] messageSizes = new int[SERVICES.length]; // by service
+  final ArrayDeque<Integer> ready = new ArrayDeque<>(); // services with a full message
+  long virtualMicros = VIRTUAL_EPOCH_MICROS, sequence;
+  int spansInTrace;
+
+  TraceGenerator(Builder builder) {
+    this.random = new Random(builder.seed);
+    this.encoder = builder.encoder;
+    this.spansPerEvent = builder.spansPerEvent;
+    this.tagsPerSpan = builder.tagsPerSpan;
+    this.annotationsPerSpan = builder.annotationsPerSpan;
+    this.annotationBytes = builder.annotationBytes;
+    this.fanOut = builder.fanOut;
+    this.maxDepth = builder.maxDepth;
+    this.maxSpansPerTrace = builder.maxSpansPerTrace;
+    this.realTime = builder.realTime;
+    for (int i = 0; i < SERVICES.length; i++) {
+      endpoints[i] = Endpoint.newBuilder().serviceName(SERVICES[i]).ip("10.0.0." + (i + 1)).build();
+      pending.add(new ArrayList<Pending>());
+      messageSizes[i] = Math.max(1, spansPerEvent.next(random));
+    }
+  }
+
+  /** Returns the next message of encoded spans, as reported by one service. */
+  byte[] nextMessage() {
+    while (ready.isEmpty()) nextTrace();
+    int service = ready.poll();
+    List<Pending> spans = pending.get(service), taken = spans.subList(0, messageSizes[service]);
+    long now = realTime ? nowMicros() : (virtualMicros += 1000L);
+    List<Span> message = new ArrayList<>(taken.size());
+    for (int i = 0, length = taken.size(); i < length; i++) {
+      message.add(taken.get(i).build(now));
+    }
+    taken.clear(); // spans added while the message was ready go in the next one
+    messageSizes[service] = Math.max(1, spansPerEvent.next(random));
+    if (spans.size() >= messageSizes[service]) ready.add(service);
+    return encoder.encodeList(message);
+  }
+
+  /** Like {@link #nextMessage()}, except as a received event, with an offset and sequence. */
+  EventData nextEvent() {
+    long sequenceNumber = sequence++;
+    return EventDataBatches.message(String.valueOf(sequenceNumber), sequenceNumber, nextMessage());
+  }
+
+  List<EventData> nextEvents(int count) {
+    List<EventData> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) result.add(nextEvent());
+    return result;
+  }
+
+  /** Adds the spans of a new trace to the messages of their services. */
+  void nextTrace() {
+    long traceIdHigh = random.nextLong(), traceIdLow = random.nextLong() | 1L;
+    spansInTrace = 0;
+    long duration = 5_000L + (long) (Math.abs(random.nextGaussian()) * 50_000L);
+    server(traceIdHigh, traceIdLow, null, 0, duration, 0);
+  }
+
+  /** Adds a server span, and client spans for the calls it makes to services after it. */
+  void server(
+      long traceIdHigh, long traceIdLow, Long parentId, int service, long duration, int depth) {
+    long id = nextId();
+    String method = METHODS[random.nextInt(METHODS.length)];
+    Span.Builder span =
+        newSpan(traceIdHigh, traceIdLow, parentId, id, Span.Kind.SERVER, service, method);
+    add(service, span, duration);
+
+    int calls = depth < maxDepth ? fanOut.next(random) : 0;
+    for (int i = 0; i < calls && spansInTrace + 2 <= maxSpansPerTrace; i++) {
+      int remaining = SERVICES.length - service - 1;
+      if (remaining <= 0) break;
+      int callee = service + 1 + random.nextInt(remaining);
+      long clientDuration = Math.max(1L, duration / (calls + 1));
+      long clientId = nextId();
+      Span.Builder client =
+          newSpan(traceIdHigh, traceIdLow, id, clientId, Span.Kind.CLIENT, service, method)
+              .remoteEndpoint(endpoints[callee]);
+      add(service, client, clientDuration);
+      server(traceIdHigh, traceIdLow, clientId, callee, clientDuration * 9 / 10, depth + 1);
+    }
+  }
+
+  Span.Builder newSpan(
+      long traceIdHigh,
+      long traceIdLow,
+      Long parentId,
+      long id,
+      Span.Kind kind,
+      int service,
+      String method) {
+    Span.Builder result =
+        Span.newBuilder()
+            .traceId(traceIdHigh, traceIdLow)
+            .id(id)
+            .kind(kind)
+            .name(method.toLowerCase(Locale.ROOT) + " /" + SERVICES[service])
+            .localEndpoint(endpoints[service]);
+    if (parentId != null) result.parentId(parentId);
+
+    int tags = tagsPerSpan.next(random);
+    if (tags > 0) result.putTag("http.method", method);
+    if (tags > 1) result.putTag("http.path", "/" + SERVICES[service] + "/" + random.nextInt(100));
+    if (tags > 2) result.putTag("http.status_code", random.nextInt(100) == 0 ? "500" : "200");
+    for (int i = 3; i < tags; i++) result.putTag("app.tag" + (i - 3), hex(8));
+    return result;
+  }
+
+  void add(int service, Span.Builder span, long duration) {
+    spansInTrace++;
+    duration = Math.max(1L, duration);
+    String[] annotations = new String[annotationsPerSpan.next(random)];
+    for (int i = 0; i < annotations.length; i++) annotations[i] = hex(annotationBytes.next(random));
+    List<Pending> spans = pending.get(service);
+    spans.add(new Pending(span.duration(duration), duration, annotations));
+    if (spans.size() == messageSizes[service]) ready.add(service); // only once per message
+  }
+
+  long nextId() {
+    long result;
+    do {
+      result = random.nextLong();
+    } while (result == 0L);
+    return result;
+  }
+
+  String hex(int length) {
+    char[] result = new char[length];
+    for (int i = 0; i < length; i++) result[i] = HEX_DIGITS[random.nextInt(16)];
+    return new String(result);
+  }
+
+  /**
+   * Writes each message to a file in the directory given, named by its sequence and encoding, like
+   * "00000042.proto3". Settings are read from system properties of the same names as {@link
+   * Builder} methods, for example:
+   *
+   * <pre>{@code
+   * java -Dseed=1 -Dencoding=JSON_V2 -DspansPerEvent=5-50 -cp benchmarks/target/benchmarks.jar \
+   *   zipkin2.collector.eventhub.TraceGenerator /tmp/payloads 10000
+   * }</pre>
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: TraceGenerator <directory> <count of messages>");
+      System.exit(1);
+    }
+    Path directory = Files.createDirectories(Paths.get(args[0]));
+    int count = Integer.parseInt(args[1]);
+    TraceGenerator generator = newBuilder().build();
+    String extension = generator.encoder.name().toLowerCase(Locale.ROOT);
+    for (int i = 0; i < count; i++) {
+      Files.write(
+          directory.resolve(String.format("%08d.%s", i, extension)), generator.nextMessage());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+/**
+ * Compares sampling spans after they are decoded with dropping them before, by peeking at their
+ * trace IDs. An operation is one list of 100 spans.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class TraceIdSamplerBenchmarks {
+
+  @Param({"JSON_V2", "PROTO3", "THRIFT"})
+  public String encoding;
+
+  @Param({"0.01", "0.1", "0.5"})
+  public float sampleRate;
+
+  byte[] list;
+  SpanBytesDecoder decoder;
+  CollectorSampler collectorSampler;
+  EventEncodings.Declared sampleBeforeDecode;
+  List<Span> buffer = new ArrayList<>();
+
+  @Setup
+  public void setup() {
+    List<Span> spans = Arrays.asList(LOTS_OF_SPANS).subList(0, 100);
+    list = SpanBytesEncoder.valueOf(encoding).encodeList(spans);
+    decoder = SpanBytesDecoder.valueOf(encoding);
+    collectorSampler = CollectorSampler.create(sampleRate);
+    TraceIdSampler sampler = TraceIdSampler.create(collectorSampler, CollectorMetrics.NOOP_METRICS);
+    sampleBeforeDecode = new EventEncodings(decoder, null, sampler).pinned;
+  }
+
+  /** What happens without {@link TraceIdSampler} */
+  @Benchmark
+  public List<Span> sampleAfterDecode() {
+    buffer.clear();
+    for (Span span : decoder.decodeList(list)) {
+      if (collectorSampler.isSampled(span.traceId(), Boolean.TRUE.equals(span.debug()))) {
+        buffer.add(span);
+      }
+    }
+    return buffer;
+  }
+
+  @Benchmark
+  public List<Span> sampleBeforeDecode() {
+    buffer.clear();
+    sampleBeforeDecode.decodeList(list, buffer);
+    return buffer;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + TraceIdSamplerBenchmarks.class.getSimpleName() + ".*")
+            .addProfiler("gc")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
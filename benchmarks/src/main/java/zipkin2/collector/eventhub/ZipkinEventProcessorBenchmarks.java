@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import com.microsoft.azure.eventprocessorhost.PartitionContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static zipkin2.SpanBytesDecoderDetector.decoderForListMessage;
+
+/**
+ * Drives {@link ZipkinEventProcessor#onEvents} with batches of events, writing to storage that
+ * drops spans. Besides the end-to-end path, each stage of {@code onEvents} is measured separately,
+ * so that regressions can be attributed to decoding, buffering or checkpoint accounting.
+ *
+ * <p>An operation is one batch of {@code eventsPerBatch} events. Run with the gc profiler, and
+ * divide {@code gc.alloc.rate.norm} by {@code spansPerEvent * eventsPerBatch} for bytes allocated
+ * per span. The "spans" counter reports spans per second.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class ZipkinEventProcessorBenchmarks {
+
+  @Param({"JSON_V2", "PROTO3", "THRIFT"})
+  public String encoding;
+
+  @Param({"1", "10", "100"})
+  public int spansPerEvent;
+
+  @Param({"10", "100"})
+  public int eventsPerBatch;
+
+  List<EventData> batch, generatedBatch;
+  int bytesPerEvent;
+  ZipkinEventProcessor processor;
+  ParallelDecoder decoder;
+  ZipkinEventProcessor parallelDecodeProcessor;
+  ZipkinEventProcessor fixedEncodingProcessor;
+  List<Span> buffer = new ArrayList<>();
+
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class SpanCounter {
+    public long spans;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      spans = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    batch =
+        EventDataBatches.newBatch(
+            SpanBytesEncoder.valueOf(encoding), spansPerEvent, eventsPerBatch);
+    bytesPerEvent = batch.get(0).getBytes().length;
+    generatedBatch =
+        TraceGenerator.newBuilder()
+            .seed(1L)
+            .encoder(SpanBytesEncoder.valueOf(encoding))
+            .spansPerEvent(new TraceGenerator.Range(spansPerEvent, spansPerEvent))
+            .build()
+            .nextEvents(eventsPerBatch);
+    processor = newProcessor(null);
+    decoder = new ParallelDecoder(4);
+    parallelDecodeProcessor = newProcessor(decoder);
+    fixedEncodingProcessor =
+        newProcessor(
+            EventHubCollector.newBuilder()
+                .storage(new NoopStorage())
+                .checkpointBatchSize(10)
+                .encoding(SpanBytesDecoder.valueOf(encoding)),
+            null);
+  }
+
+  @TearDown
+  public void closeDecoder() {
+    decoder.close();
+  }
+
+  /** The whole path, including storage calls and checkpoint accounting. */
+  @Benchmark
+  public void onEvents(SpanCounter counter) throws Exception {
+    processor.onEvents(null, batch);
+    counter.spans += spansPerEvent * eventsPerBatch;
+  }
+
+  /**
+   * Like {@link #onEvents}, except spans are of {@link TraceGenerator generated traces}, which have
+   * more varied sizes, tags and IDs than the test fixtures.
+   */
+  @Benchmark
+  public void onEvents_generated(SpanCounter counter) throws Exception {
+    processor.onEvents(null, generatedBatch);
+    counter.spans += spansPerEvent * eventsPerBatch;
+  }
+
+  /** Like {@link #onEvents}, except events in the batch are decoded by 4 threads. */
+  @Benchmark
+  public void onEvents_parallelDecode(SpanCounter counter) throws Exception {
+    parallelDecodeProcessor.onEvents(null, batch);
+    counter.spans += spansPerEvent * eventsPerBatch;
+  }
+
+  /** Like {@link #onEvents}, except the encoding is pinned instead of detected per event. */
+  @Benchmark
+  public void onEvents_fixedEncoding(SpanCounter counter) throws Exception {
+    fixedEncodingProcessor.onEvents(null, batch);
+    counter.spans += spansPerEvent * eventsPerBatch;
+  }
+
+  /** Just {@code decoderForListMessage} and {@code decodeList} */
+  @Benchmark
+  public void decode(Blackhole bh, SpanCounter counter) {
+    for (int i = 0, length = batch.size(); i < length; i++) {
+      byte[] bytes = batch.get(i).getBytes();
+      BytesDecoder<Span> decoder = decoderForListMessage(bytes);
+      bh.consume(decoder.decodeList(bytes));
+    }
+    counter.spans += spansPerEvent * eventsPerBatch;
+  }
+
+  /** Like {@link #decode}, except spans are buffered as they are in {@code onEvents} */
+  @Benchmark
+  public List<Span> decode_addAll(SpanCounter counter) {
+    buffer.clear();
+    for (int i = 0, length = batch.size(); i < length; i++) {
+      byte[] bytes = batch.get(i).getBytes();
+      BytesDecoder<Span> decoder = decoderForListMessage(bytes);
+      buffer.addAll(decoder.decodeList(bytes));
+    }
+    counter.spans += spansPerEvent * eventsPerBatch;
+    return buffer;
+  }
+
+  /**
+   * Like {@link #decode_addAll}, except spans are decoded directly into the buffer. Compare {@code
+   * gc.alloc.rate.norm} to see the allocation saved by not making a list per event.
+   */
+  @Benchmark
+  public List<Span> decode_intoBuffer(SpanCounter counter) {
+    buffer.clear();
+    for (int i = 0, length = batch.size(); i < length; i++) {
+      byte[] bytes = batch.get(i).getBytes();
+      BytesDecoder<Span> decoder = decoderForListMessage(bytes);
+      decoder.decodeList(bytes, buffer);
+    }
+    counter.spans += spansPerEvent * eventsPerBatch;
+    return buffer;
+  }
+
+  /** The synchronized accounting done once per event to decide whether to checkpoint. */
+  @Benchmark
+  public void shouldCheckPoint(Blackhole bh) {
+    for (int i = 0; i < eventsPerBatch; i++) {
+      bh.consume(processor.shouldCheckPoint(spansPerEvent, bytesPerEvent, System.nanoTime()));
+    }
+  }
+
+  /** Shows the cost of checkpoint accounting when callbacks for a partition hop threads. */
+  @Benchmark
+  @Threads(4)
+  public void shouldCheckPoint_contended(SharedProcessor shared, Blackhole bh) {
+    for (int i = 0; i < eventsPerBatch; i++) {
+      bh.consume(
+          shared.processor.shouldCheckPoint(spansPerEvent, bytesPerEvent, System.nanoTime()));
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class SharedProcessor {
+    ZipkinEventProcessor processor;
+
+    @Setup
+    public void setup() {
+      processor = newProcessor(null);
+    }
+  }
+
+  /**
+   * Checkpoints are blob writes, which are out of scope of a microbenchmark. This overrides them
+   * and the partition ID lookup so that a partition context isn't needed.
+   */
+  static ZipkinEventProcessor newProcessor(ParallelDecoder decoder) {
+    return newProcessor(
+        EventHubCollector.newBuilder().storage(new NoopStorage()).checkpointBatchSize(10), decoder);
+  }
+
+  static ZipkinEventProcessor newProcessor(
+      EventHubCollector.Builder builder, ParallelDecoder decoder) {
+    return new ZipkinEventProcessor(builder, new HostResources().decoder(decoder)) {
+      @Override
+      String partitionId(PartitionContext context) {
+        return "1";
+      }
+
+      @Override
+      void checkpoint(PartitionContext context, EventData data) {}
+
+      @Override
+      long lastEnqueuedSequenceNumber(PartitionContext context) {
+        return -1L;
+      }
+    };
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt =
+        new OptionsBuilder()
+            .include(".*" + ZipkinEventProcessorBenchmarks.class.getSimpleName() + ".*")
+            .addProfiler("gc")
+            .build();
+
+    new Runner(opt).run();
+  }
+}
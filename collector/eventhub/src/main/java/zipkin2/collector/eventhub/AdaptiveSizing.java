@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.TimeUnit;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+/**
+ * Tunes the checkpoint batch size and write batch size of a partition, in spans, between bounds.
+ * Sizes grow by a small step while things are healthy and jump when they are not, similar to TCP
+ * congestion control:
+ *
+ * <ul>
+ *   <li>A full write acknowledged within the target grows the write size by a step. A slower or
+ *       failed write halves it, as storage is pushing back.
+ *   <li>A checkpoint that took more than a tenth of the time since the last one doubles the
+ *       checkpoint batch size. Growing lag adds a step to it, and no lag removes one, so that less
+ *       is redelivered when a lease moves.
+ * </ul>
+ *
+ * <p>This is per partition, and starts over when a lease is acquired.
+ */
+final class AdaptiveSizing {
+  static final int STEPS = 32; // between the minimum and maximum
+  static final int CHECKPOINT_TIME_DIVISOR = 10;
+
+  final int minSpans, maxSpans, step;
+  final long writeTargetNanos;
+
+  int checkpointBatchSize, writeMaxSpans; // guarded by this
+  long lastCheckpointNanos = System.nanoTime(), lastLag = -1L; // guarded by this
+
+  AdaptiveSizing(
+      int minSpans,
+      int maxSpans,
+      long writeTargetMillis,
+      int initialCheckpointBatchSize,
+      int initialWriteMaxSpans) {
+    if (minSpans <= 0) throw new IllegalArgumentException("adaptiveMinSpans <= 0");
+    if (maxSpans < minSpans) {
+      throw new IllegalArgumentException("adaptiveMaxSpans < adaptiveMinSpans");
+    }
+    this.minSpans = minSpans;
+    this.maxSpans = maxSpans;
+    this.step = Math.max(1, (maxSpans - minSpans) / STEPS);
+    this.writeTargetNanos = TimeUnit.MILLISECONDS.toNanos(writeTargetMillis);
+    this.checkpointBatchSize = bound(initialCheckpointBatchSize);
+    this.writeMaxSpans = bound(initialWriteMaxSpans);
+  }
+
+  synchronized int checkpointBatchSize() {
+    return checkpointBatchSize;
+  }
+
+  synchronized int writeMaxSpans() {
+    return writeMaxSpans;
+  }
+
+  /** Called when storage acknowledged a write of the given spans. */
+  synchronized void onWrite(int spans, long nanos, PartitionMetrics partitionMetrics) {
+    if (nanos > writeTargetNanos) {
+      writeMaxSpans = bound(writeMaxSpans / 2);
+    } else if (spans >= writeMaxSpans) { // only grow when the size was what limited the write
+      writeMaxSpans = bound(writeMaxSpans + step);
+    } else {
+      return;
+    }
+    report(partitionMetrics);
+  }
+
+  synchronized void onWriteFailed(PartitionMetrics partitionMetrics) {
+    writeMaxSpans = bound(writeMaxSpans / 2);
+    report(partitionMetrics);
+  }
+
+  /** Called after a checkpoint, whether or not it succeeded. */
+  synchronized void onCheckpoint(long nanos, long nanoTime, PartitionMetrics partitionMetrics) {
+    long sinceLastCheckpoint = nanoTime - lastCheckpointNanos;
+    lastCheckpointNanos = nanoTime;
+    if (nanos * CHECKPOINT_TIME_DIVISOR <= sinceLastCheckpoint) return;
+    checkpointBatchSize = bound(checkpointBatchSize * 2);
+    report(partitionMetrics);
+  }
+
+  /** Called with the lag measured after each batch of events. */
+  synchronized void onLag(long lag, PartitionMetrics partitionMetrics) {
+    long lastLag = this.lastLag;
+    this.lastLag = lag;
+    if (lastLag < 0) return; // first measurement
+    if (lag > lastLag) { // falling behind, so spend less time checkpointing
+      checkpointBatchSize = bound(checkpointBatchSize + step);
+    } else if (lag == 0) { // caught up, so checkpoint more often to redeliver less
+      checkpointBatchSize = bound(checkpointBatchSize - step);
+    } else {
+      return;
+    }
+    report(partitionMetrics);
+  }
+
+  void report(PartitionMetrics partitionMetrics) {
+    assert Thread.holdsLock(this);
+    partitionMetrics.adaptiveSizes(checkpointBatchSize, writeMaxSpans);
+  }
+
+  int bound(long spans) {
+    return (int) Math.max(minSpans, Math.min(maxSpans, spans));
+  }
+
+  /** Due once at least the current checkpoint batch size of spans were read. */
+  CheckpointPolicy checkpointPolicy() {
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        return spansRead >= checkpointBatchSize();
+      }
+
+      @Override
+      public String toString() {
+        return "adaptiveSpans(" + minSpans + ", " + maxSpans + ")";
+      }
+    };
+  }
+}
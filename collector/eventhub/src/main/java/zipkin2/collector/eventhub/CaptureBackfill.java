@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Loads spans from Event Hubs Capture files into storage, without a hub. Use this to rebuild
+ * storage from captured events, for example after a disaster.
+ *
+ * <p>Files are Avro, as written by Capture, and are split across a pool of threads. Event bodies
+ * are decoded like {@link EventHubCollector} does, honoring {@link Builder#encoding}, {@link
+ * Builder#encodingProperty} and compression, and spans are written in batches of {@link
+ * Builder#writeMaxSpans}. Reading Avro requires "org.apache.avro:avro" on the classpath.
+ */
+public final class CaptureBackfill {
+  static final Logger LOG = Logger.getLogger(CaptureBackfill.class.getName());
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    StorageComponent storage;
+    CollectorSampler sampler = CollectorSampler.ALWAYS_SAMPLE;
+    CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    SpanBytesDecoder encoding;
+    String encodingProperty;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int writeMaxSpans = 5000;
+    long progressIntervalMillis = 10_000;
+
+    Builder() {}
+
+    public Builder storage(StorageComponent storage) {
+      if (storage == null) throw new NullPointerException("storage == null");
+      this.storage = storage;
+      return this;
+    }
+
+    public Builder metrics(CollectorMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Builder sampler(CollectorSampler sampler) {
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      this.sampler = sampler;
+      return this;
+    }
+
+    /** See {@link EventHubCollector.Builder#encoding}. */
+    public Builder encoding(SpanBytesDecoder encoding) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      this.encoding = encoding;
+      return this;
+    }
+
+    /** See {@link EventHubCollector.Builder#encodingProperty}. */
+    public Builder encodingProperty(String encodingProperty) {
+      if (encodingProperty == null) throw new NullPointerException("encodingProperty == null");
+      this.encodingProperty = encodingProperty;
+      return this;
+    }
+
+    /** How many files are read at the same time. Defaults to the count of cores. */
+    public Builder threads(int threads) {
+      if (threads <= 0) throw new IllegalArgumentException("threads <= 0");
+      this.threads = threads;
+      return this;
+    }
+
+    /**
+     * Spans of a file are written to storage once this many are decoded. Each thread buffers up to
+     * this many. Default 5000.
+     */
+    public Builder writeMaxSpans(int writeMaxSpans) {
+      if (writeMaxSpans <= 0) throw new IllegalArgumentException("writeMaxSpans <= 0");
+      this.writeMaxSpans = writeMaxSpans;
+      return this;
+    }
+
+    /** How often progress is logged while files are loaded. Default 10 seconds. */
+    public Builder progressIntervalMillis(long progressIntervalMillis) {
+      if (progressIntervalMillis <= 0) {
+        throw new IllegalArgumentException("progressIntervalMillis <= 0");
+      }
+      this.progressIntervalMillis = progressIntervalMillis;
+      return this;
+    }
+
+    public CaptureBackfill build() {
+      return new CaptureBackfill(this);
+    }
+  }
+
+  final StorageComponent storage;
+  final CollectorSampler sampler; // null when all spans are sampled
+  final CollectorMetrics metrics;
+  final EventEncodings encodings;
+  final int threads, writeMaxSpans;
+  final long progressIntervalMillis;
+
+  CaptureBackfill(Builder builder) {
+    if (builder.storage == null) throw new NullPointerException("storage == null");
+    this.storage = builder.storage;
+    this.metrics = builder.metrics;
+    TraceIdSampler traceIdSampler = TraceIdSampler.create(builder.sampler, builder.metrics);
+    this.sampler = traceIdSampler != null ? builder.sampler : null;
+    this.encodings =
+        new EventEncodings(builder.encoding, builder.encodingProperty, traceIdSampler);
+    this.threads = builder.threads;
+    this.writeMaxSpans = builder.writeMaxSpans;
+    this.progressIntervalMillis = builder.progressIntervalMillis;
+  }
+
+  /**
+   * Loads all ".avro" files under the directory, returning when they were. A file which couldn't be
+   * read or written is logged and listed in {@link Progress#failedFiles()}, so that it can be
+   * loaded again. Spans written before the failure are not rolled back.
+   */
+  public Progress run(Path directory) throws IOException, InterruptedException {
+    List<Path> files = captureFiles(directory);
+    final Progress progress = new Progress(files.size());
+    ExecutorService pool =
+        Executors.newFixedThreadPool(threads, new NamedThreadFactory("zipkin-eventhub-backfill-"));
+    try {
+      for (final Path file : files) {
+        pool.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  load(file, progress);
+                } catch (IOException | RuntimeException e) {
+                  progress.failedFiles.add(file);
+                  LOG.log(Level.WARNING, "Cannot backfill " + file, e);
+                }
+                progress.filesDone.incrementAndGet();
+              }
+            });
+      }
+      pool.shutdown();
+      while (!pool.awaitTermination(progressIntervalMillis, TimeUnit.MILLISECONDS)) {
+        LOG.info("Backfilled " + progress);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    progress.finished();
+    LOG.info("Backfilled " + progress);
+    return progress;
+  }
+
+  static List<Path> captureFiles(Path directory) throws IOException {
+    List<Path> result = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Iterator<Path> i = files.iterator(); i.hasNext(); ) {
+        Path file = i.next();
+        if (file.getFileName().toString().endsWith(".avro") && Files.isRegularFile(file)) {
+          result.add(file);
+        }
+      }
+    }
+    Collections.sort(result); // Capture names files by partition and time
+    return result;
+  }
+
+  /** Decodes the events in the file, writing their spans to storage in batches. */
+  void load(Path file, Progress progress) throws IOException {
+    EventBodies bodies = new EventBodies(); // not thread-safe, so one per file
+    List<Span> spans = new ArrayList<>(writeMaxSpans);
+    GenericRecord record = null;
+    try (DataFileReader<GenericRecord> reader =
+        new DataFileReader<>(file.toFile(), new GenericDatumReader<GenericRecord>())) {
+      while (reader.hasNext()) {
+        record = reader.next(record); // reuses the record and its body buffer
+        byte[] bytes = bytes((ByteBuffer) record.get("Body"));
+        Map<String, Object> properties = properties(record.get("Properties"));
+        metrics.incrementMessages();
+        metrics.incrementBytes(bytes.length);
+        progress.events.incrementAndGet();
+        progress.bytes.addAndGet(bytes.length);
+
+        int before = spans.size();
+        try {
+          encodings.encoding(properties).decodeList(bodies.read(properties, bytes), spans);
+          // spans skipped before decoding were already counted
+          metrics.incrementSpans(spans.size() - before);
+        } catch (RuntimeException e) {
+          spans.subList(before, spans.size()).clear(); // don't write part of a malformed event
+          metrics.incrementMessagesDropped();
+          progress.eventsDropped.incrementAndGet();
+          if (LOG.isLoggable(Level.WARNING)) {
+            LOG.log(
+                Level.WARNING,
+                "Backfill of "
+                    + file
+                    + " dropped an event which couldn't be decoded at "
+                    + record.get("Offset")
+                    + ": "
+                    + e.getMessage());
+          }
+        }
+        if (spans.size() >= writeMaxSpans) write(spans, progress);
+      }
+    }
+    if (!spans.isEmpty()) write(spans, progress);
+  }
+
+  /** Writes the spans synchronously, then clears them so that the list can be reused. */
+  void write(List<Span> spans, Progress progress) throws IOException {
+    removeUnsampled(spans);
+    if (spans.isEmpty()) return;
+    try {
+      storage.spanConsumer().accept(spans).execute();
+    } catch (IOException | RuntimeException e) {
+      metrics.incrementSpansDropped(spans.size());
+      throw e;
+    }
+    progress.spans.addAndGet(spans.size());
+    spans.clear();
+  }
+
+  /** Drops spans of lists which couldn't be sampled before decoding, counting them. */
+  void removeUnsampled(List<Span> spans) {
+    if (sampler == null) return;
+    int length = spans.size(), kept = 0;
+    for (int i = 0; i < length; i++) {
+      Span s = spans.get(i);
+      if (sampler.isSampled(s.traceId(), Boolean.TRUE.equals(s.debug()))) spans.set(kept++, s);
+    }
+    if (kept == length) return;
+    metrics.incrementSpansDropped(length - kept);
+    spans.subList(kept, length).clear();
+  }
+
+  /** Avoids a copy when the buffer wraps an array of exactly its contents. */
+  static byte[] bytes(ByteBuffer body) {
+    if (body == null) return new byte[0];
+    if (body.hasArray()
+        && body.arrayOffset() == 0
+        && body.position() == 0
+        && body.remaining() == body.array().length) {
+      return body.array();
+    }
+    byte[] result = new byte[body.remaining()];
+    body.duplicate().get(result);
+    return result;
+  }
+
+  /** Converts Avro strings in the application properties, as encodings are matched by name. */
+  static Map<String, Object> properties(Object avroMap) {
+    if (!(avroMap instanceof Map) || ((Map<?, ?>) avroMap).isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) avroMap).entrySet()) {
+      Object value = entry.getValue();
+      result.put(entry.getKey().toString(), value instanceof Utf8 ? value.toString() : value);
+    }
+    return result;
+  }
+
+  /** Counts of a backfill, which are updated while it runs. */
+  public static final class Progress {
+    final int files;
+    final AtomicLong filesDone = new AtomicLong();
+    final ConcurrentLinkedQueue<Path> failedFiles = new ConcurrentLinkedQueue<>();
+    final AtomicLong events = new AtomicLong(), eventsDropped = new AtomicLong();
+    final AtomicLong spans = new AtomicLong(), bytes = new AtomicLong();
+    final long startNanos = System.nanoTime();
+    volatile long finishedNanos;
+
+    Progress(int files) {
+      this.files = files;
+    }
+
+    /** Capture files found under the directory. */
+    public int files() {
+      return files;
+    }
+
+    /** Files which were loaded or failed. */
+    public long filesDone() {
+      return filesDone.get();
+    }
+
+    /** Files which couldn't be read, or whose spans storage didn't accept. */
+    public List<Path> failedFiles() {
+      return new ArrayList<>(failedFiles);
+    }
+
+    public long events() {
+      return events.get();
+    }
+
+    /** Events which couldn't be decoded. */
+    public long eventsDropped() {
+      return eventsDropped.get();
+    }
+
+    /** Spans accepted by storage. */
+    public long spans() {
+      return spans.get();
+    }
+
+    /** Bytes of event bodies read, before decompression. */
+    public long bytes() {
+      return bytes.get();
+    }
+
+    public long elapsedMillis() {
+      long finished = finishedNanos != 0 ? finishedNanos : System.nanoTime();
+      return TimeUnit.NANOSECONDS.toMillis(finished - startNanos);
+    }
+
+    public double spansPerSecond() {
+      long elapsedMillis = elapsedMillis();
+      return elapsedMillis > 0 ? spans() * 1000.0 / elapsedMillis : 0.0;
+    }
+
+    void finished() {
+      finishedNanos = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+      return filesDone()
+          + "/"
+          + files
+          + " files ("
+          + failedFiles.size()
+          + " failed), "
+          + events()
+          + " events ("
+          + eventsDropped()
+          + " dropped), "
+          + spans()
+          + " spans at "
+          + Math.round(spansPerSecond())
+          + " spans/s";
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a partition is due a checkpoint, based on what it read since the last one was due.
+ *
+ * <p>Policies compose. For example, to checkpoint every 1000 spans or 1MiB, but not more than
+ * once a second:
+ *
+ * <pre>{@code
+ * policy = allOf(anyOf(afterSpans(1000), afterBytes(1024 * 1024)), afterMillis(1000));
+ * }</pre>
+ *
+ * <p>A checkpoint never advances past spans that storage has not acknowledged. When a checkpoint is
+ * due before that, it is deferred until a write completes.
+ */
+public abstract class CheckpointPolicy {
+
+  /** Due once at least this many spans were read. */
+  public static CheckpointPolicy afterSpans(final long spans) {
+    if (spans <= 0) throw new IllegalArgumentException("spans <= 0");
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        return spansRead >= spans;
+      }
+
+      @Override
+      public String toString() {
+        return "afterSpans(" + spans + ")";
+      }
+    };
+  }
+
+  /** Due once at least this many bytes of encoded events were read. */
+  public static CheckpointPolicy afterBytes(final long bytes) {
+    if (bytes <= 0) throw new IllegalArgumentException("bytes <= 0");
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        return bytesRead >= bytes;
+      }
+
+      @Override
+      public String toString() {
+        return "afterBytes(" + bytes + ")";
+      }
+    };
+  }
+
+  /**
+   * Due once at least this much time elapsed. Used with {@link #allOf}, this caps the rate of
+   * checkpoints.
+   */
+  public static CheckpointPolicy afterMillis(final long millis) {
+    if (millis <= 0) throw new IllegalArgumentException("millis <= 0");
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        return millisElapsed >= millis;
+      }
+
+      @Override
+      public String toString() {
+        return "afterMillis(" + millis + ")";
+      }
+    };
+  }
+
+  /** Due when any of the policies are due. */
+  public static CheckpointPolicy anyOf(final CheckpointPolicy... policies) {
+    if (policies.length == 0) throw new IllegalArgumentException("policies are empty");
+    if (policies.length == 1) return policies[0];
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        for (CheckpointPolicy policy : policies) {
+          if (policy.isDue(spansRead, bytesRead, millisElapsed)) return true;
+        }
+        return false;
+      }
+
+      @Override
+      public String toString() {
+        return "anyOf" + Arrays.toString(policies);
+      }
+    };
+  }
+
+  /** Due when all of the policies are due. */
+  public static CheckpointPolicy allOf(final CheckpointPolicy... policies) {
+    if (policies.length == 0) throw new IllegalArgumentException("policies are empty");
+    if (policies.length == 1) return policies[0];
+    return new CheckpointPolicy() {
+      @Override
+      public boolean isDue(long spansRead, long bytesRead, long millisElapsed) {
+        for (CheckpointPolicy policy : policies) {
+          if (!policy.isDue(spansRead, bytesRead, millisElapsed)) return false;
+        }
+        return true;
+      }
+
+      @Override
+      public String toString() {
+        return "allOf" + Arrays.toString(policies);
+      }
+    };
+  }
+
+  /**
+   * Returns true if a checkpoint is due. Implementations must be thread-safe, as they are shared by
+   * all partitions.
+   *
+   * @param spansRead spans read since a checkpoint was last due
+   * @param bytesRead encoded bytes of events read since a checkpoint was last due
+   * @param millisElapsed milliseconds since a checkpoint was last due, or the partition was opened
+   */
+  public abstract boolean isDue(long spansRead, long bytesRead, long millisElapsed);
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventprocessorhost.Checkpoint;
+import com.microsoft.azure.eventprocessorhost.ICheckpointManager;
+import com.microsoft.azure.eventprocessorhost.ILeaseManager;
+import com.microsoft.azure.eventprocessorhost.Lease;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps checkpoints and partition leases on this host, instead of in Azure Storage blobs. This
+ * removes a blob round-trip from each checkpoint, and allows running without a storage account,
+ * such as in tests.
+ *
+ * <p>Leases are only kept in memory, so a store must not be shared by hosts reading the same
+ * consumer group. This is meant for a single collector, which owns all partitions.
+ */
+public abstract class CheckpointStore implements ICheckpointManager, ILeaseManager, Closeable {
+  static final int LEASE_RENEW_INTERVAL_MILLIS = 10_000, LEASE_DURATION_MILLIS = 30_000;
+
+  /** Checkpoints are lost when the collector stops, so it restarts at the oldest event. */
+  public static CheckpointStore inMemory() {
+    return new InMemoryCheckpointStore();
+  }
+
+  /**
+   * Checkpoints are written to a memory-mapped file, which is created if it doesn't exist. They
+   * survive restarts of the collector, but may be lost if the operating system crashes before
+   * writing them back. The file is locked, so that only one collector can use it.
+   */
+  public static CheckpointStore mappedFile(Path path) throws IOException {
+    return new MappedFileCheckpointStore(path);
+  }
+
+  final Map<String, LocalLease> leases = new LinkedHashMap<>(); // guarded by this
+  volatile String hostName;
+
+  CheckpointStore() {}
+
+  /** Leases are owned by this name, which must be the same as the event processor host's. */
+  void initialize(String hostName) {
+    this.hostName = hostName;
+  }
+
+  /** Returns the checkpoint of the partition, or null if there is none. */
+  abstract Checkpoint read(String partitionId);
+
+  abstract void write(Checkpoint checkpoint);
+
+  abstract void delete(String partitionId);
+
+  abstract void deleteAll();
+
+  @Override
+  public Future<Boolean> checkpointStoreExists() {
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public Future<Boolean> createCheckpointStoreIfNotExists() {
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public Future<Boolean> deleteCheckpointStore() {
+    synchronized (this) {
+      deleteAll();
+    }
+    return CompletableFuture.completedFuture(true);
+  }
+
+  /** Unknown partitions read from the start of the stream, as they would on first use. */
+  @Override
+  public Future<Checkpoint> getCheckpoint(String partitionId) {
+    Checkpoint result;
+    synchronized (this) {
+      result = read(partitionId);
+    }
+    return CompletableFuture.completedFuture(result != null ? result : new Checkpoint(partitionId));
+  }
+
+  @Override
+  @Deprecated
+  public Future<Void> updateCheckpoint(Checkpoint checkpoint) {
+    synchronized (this) {
+      write(checkpoint);
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public Future<Void> updateCheckpoint(Lease lease, Checkpoint checkpoint) {
+    return updateCheckpoint(checkpoint);
+  }
+
+  @Override
+  public Future<Void> deleteCheckpoint(String partitionId) {
+    synchronized (this) {
+      delete(partitionId);
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public Future<Checkpoint> createCheckpointIfNotExists(String partitionId) {
+    Checkpoint result;
+    synchronized (this) {
+      result = read(partitionId);
+      if (result == null) write(result = new Checkpoint(partitionId));
+    }
+    return CompletableFuture.completedFuture(result);
+  }
+
+  @Override
+  public int getLeaseRenewIntervalInMilliseconds() {
+    return LEASE_RENEW_INTERVAL_MILLIS;
+  }
+
+  @Override
+  public int getLeaseDurationInMilliseconds() {
+    return LEASE_DURATION_MILLIS;
+  }
+
+  @Override
+  public Future<Boolean> leaseStoreExists() {
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public Future<Boolean> createLeaseStoreIfNotExists() {
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public synchronized Future<Boolean> deleteLeaseStore() {
+    leases.clear();
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public synchronized Future<Lease> getLease(String partitionId) {
+    LocalLease lease = leases.get(partitionId);
+    return CompletableFuture.completedFuture(lease != null ? new LocalLease(lease) : null);
+  }
+
+  @Override
+  public synchronized Iterable<Future<Lease>> getAllLeases() {
+    List<Future<Lease>> result = new ArrayList<>(leases.size());
+    for (LocalLease lease : leases.values()) {
+      result.add(CompletableFuture.<Lease>completedFuture(new LocalLease(lease)));
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized Future<Lease> createLeaseIfNotExists(String partitionId) {
+    LocalLease lease = leases.get(partitionId);
+    if (lease == null) leases.put(partitionId, lease = new LocalLease(partitionId));
+    return CompletableFuture.<Lease>completedFuture(new LocalLease(lease));
+  }
+
+  @Override
+  public synchronized Future<Void> deleteLease(Lease lease) {
+    leases.remove(lease.getPartitionId());
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /** Leases are always acquired, as the host decides whether to take one from another owner. */
+  @Override
+  public synchronized Future<Boolean> acquireLease(Lease lease) {
+    String hostName = this.hostName;
+    if (hostName == null) throw new IllegalStateException("initialize wasn't called");
+    LocalLease stored = leases.get(lease.getPartitionId());
+    if (stored == null) return CompletableFuture.completedFuture(false);
+    stored.setOwner(hostName);
+    stored.setToken(UUID.randomUUID().toString());
+    stored.incrementEpoch();
+    stored.expirationMillis = System.currentTimeMillis() + LEASE_DURATION_MILLIS;
+    copy(stored, lease);
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public synchronized Future<Boolean> renewLease(Lease lease) {
+    LocalLease stored = owned(lease);
+    if (stored == null) return CompletableFuture.completedFuture(false);
+    stored.expirationMillis = System.currentTimeMillis() + LEASE_DURATION_MILLIS;
+    copy(stored, lease);
+    return CompletableFuture.completedFuture(true);
+  }
+
+  @Override
+  public synchronized Future<Boolean> releaseLease(Lease lease) {
+    LocalLease stored = owned(lease);
+    if (stored == null) return CompletableFuture.completedFuture(false);
+    stored.setOwner("");
+    stored.setToken("");
+    stored.expirationMillis = 0L;
+    copy(stored, lease);
+    return CompletableFuture.completedFuture(true);
+  }
+
+  /** There is nothing to update but the expiration, as checkpoints are kept separately. */
+  @Override
+  public Future<Boolean> updateLease(Lease lease) {
+    return renewLease(lease);
+  }
+
+  /** Returns the stored lease, if the caller holds it. */
+  LocalLease owned(Lease lease) {
+    assert Thread.holdsLock(this);
+    LocalLease stored = leases.get(lease.getPartitionId());
+    if (stored == null || stored.isExpired()) return null;
+    if (!stored.getOwner().equals(hostName) || !stored.getToken().equals(lease.getToken())) {
+      return null;
+    }
+    return stored;
+  }
+
+  static void copy(LocalLease source, Lease target) {
+    target.setOwner(source.getOwner());
+    target.setToken(source.getToken());
+    target.setEpoch(source.getEpoch());
+    if (target instanceof LocalLease) {
+      ((LocalLease) target).expirationMillis = source.expirationMillis;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {}
+
+  static final class LocalLease extends Lease {
+    long expirationMillis;
+
+    LocalLease(String partitionId) {
+      super(partitionId);
+      setOwner("");
+      setToken("");
+    }
+
+    LocalLease(LocalLease source) {
+      super(source);
+      expirationMillis = source.expirationMillis;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return System.currentTimeMillis() >= expirationMillis;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules checkpoint flushes of all partitions on one thread, so that blob storage round-trips
+ * happen off the receive path. Each partition only keeps its latest checkpoint between flushes.
+ */
+final class CheckpointWriter {
+  final ScheduledExecutorService scheduler;
+  final long flushMillis;
+
+  CheckpointWriter(long flushMillis) {
+    this(
+        Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("zipkin-eventhub-checkpoint-")),
+        flushMillis);
+  }
+
+  CheckpointWriter(ScheduledExecutorService scheduler, long flushMillis) {
+    if (flushMillis <= 0) throw new IllegalArgumentException("flushMillis <= 0");
+    this.scheduler = scheduler;
+    this.flushMillis = flushMillis;
+  }
+
+  /** Runs the flush every interval until the result is cancelled. */
+  ScheduledFuture<?> schedule(Runnable flush) {
+    return scheduler.scheduleWithFixedDelay(
+        flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void close() {
+    scheduler.shutdownNow();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the bodies of events which couldn't be decoded, so that they can be inspected after the
+ * fact instead of being redelivered forever. Records are appended to files in a directory, which
+ * roll over at a maximum size. Only the newest files are kept, so the spool is bounded.
+ *
+ * <p>Each record is a line of metadata, then the body as received, then a newline. For example:
+ *
+ * <pre>{@code
+ * partition=1 offset=1024 sequenceNumber=10 size=42 error=IllegalArgumentException: ...
+ * <42 bytes>
+ * }</pre>
+ */
+final class DeadLetterSpool implements Closeable {
+  static final String PREFIX = "dead-letter-", SUFFIX = ".log";
+
+  final Path directory;
+  final long maxFileBytes;
+  final int maxFiles;
+  ArrayDeque<Path> files; // guarded by this, oldest first, null until the first record
+  int nextIndex; // guarded by this
+  OutputStream out; // guarded by this, null until the first record
+  long written; // guarded by this
+
+  /** The directory is only read or created once there's a record to write. */
+  DeadLetterSpool(Path directory, long maxFileBytes, int maxFiles) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    if (maxFileBytes <= 0) throw new IllegalArgumentException("maxFileBytes <= 0");
+    if (maxFiles <= 0) throw new IllegalArgumentException("maxFiles <= 0");
+    this.directory = directory;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  /** Appends the event, flushing it before returning. */
+  synchronized void write(String partitionId, EventData event, Throwable error)
+      throws IOException {
+    byte[] body = event.getBytes();
+    ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 256);
+    byte[] header = header(partitionId, event, body.length, error);
+    record.write(header, 0, header.length);
+    record.write(body, 0, body.length);
+    record.write('\n');
+
+    if (files == null) files = existingFiles();
+    if (out == null || (written > 0 && written + record.size() > maxFileBytes)) roll();
+    record.writeTo(out);
+    out.flush();
+    written += record.size();
+  }
+
+  /**
+   * Files left by a prior run count towards the limit, and numbering continues after them. This
+   * sets {@link #nextIndex}.
+   */
+  ArrayDeque<Path> existingFiles() throws IOException {
+    Files.createDirectories(directory);
+    List<Integer> indexes = new ArrayList<>();
+    String glob = PREFIX + "*" + SUFFIX;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+      for (Path file : stream) {
+        int index = index(file.getFileName().toString());
+        if (index >= 0) indexes.add(index);
+      }
+    }
+    Collections.sort(indexes);
+    ArrayDeque<Path> result = new ArrayDeque<>();
+    for (int index : indexes) result.add(file(index));
+    nextIndex = indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1) + 1;
+    return result;
+  }
+
+  void roll() throws IOException {
+    assert Thread.holdsLock(this);
+    if (out != null) out.close();
+    out = null; // in case the next file can't be opened
+    Path file = file(nextIndex++);
+    out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    written = 0;
+    files.add(file);
+    while (files.size() > maxFiles) Files.deleteIfExists(files.poll());
+  }
+
+  Path file(int index) {
+    return directory.resolve(String.format("%s%06d%s", PREFIX, index, SUFFIX));
+  }
+
+  /** Returns the index of a spool file name, or -1 if it isn't one. */
+  static int index(String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) return -1;
+    String digits = fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length());
+    try {
+      return Integer.parseInt(digits);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  static byte[] header(String partitionId, EventData event, int size, Throwable error) {
+    StringBuilder result = new StringBuilder("partition=").append(partitionId);
+    EventData.SystemProperties properties = event.getSystemProperties();
+    if (properties != null) {
+      result.append(" offset=").append(properties.getOffset());
+      result.append(" sequenceNumber=").append(properties.getSequenceNumber());
+    }
+    result.append(" size=").append(size);
+    String message = error.getMessage();
+    result.append(" error=").append(error.getClass().getSimpleName());
+    // The header is one line, so that the body starts after the first newline
+    if (message != null) result.append(": ").append(message.replaceAll("[\\r\\n]+", " "));
+    return result.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) out.close();
+    out = null;
+  }
+}
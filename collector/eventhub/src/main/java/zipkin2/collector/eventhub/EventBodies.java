@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads event bodies, decompressing those that producers compressed. The compression is read from
+ * the "Content-Encoding" application property of the event. When absent, gzip is detected by its
+ * magic bytes, which no span encoding starts with.
+ *
+ * <p>This isn't thread-safe. Each partition or decode thread keeps its own instance, so that
+ * inflaters and buffers are reused across events.
+ */
+final class EventBodies {
+  static final String CONTENT_ENCODING = "Content-Encoding";
+  /** Bounds memory used for one event, as gzip declares its size, and deflate ratios are high. */
+  static final int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+  static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+  Inflater gzip, deflate; // lazy, as most hubs use neither
+  final CRC32 crc = new CRC32();
+  byte[] scratch = new byte[0]; // grows to the largest deflated event
+
+  /** Returns the body of the event, decompressing it if needed. */
+  byte[] read(EventData event, byte[] body) {
+    return read(event.getProperties(), body);
+  }
+
+  /** Like {@link #read(EventData, byte[])}, except for the application properties of an event. */
+  byte[] read(Map<String, Object> properties, byte[] body) {
+    String encoding = contentEncoding(properties);
+    if (encoding == null) {
+      if (isGzip(body)) return gunzip(body);
+      if (isZstd(body)) throw new IllegalArgumentException("zstd encoding is not supported");
+      return body;
+    }
+    if (encoding.equalsIgnoreCase("identity")) return body;
+    if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+      return gunzip(body);
+    }
+    if (encoding.equalsIgnoreCase("deflate")) return inflate(body);
+    throw new IllegalArgumentException("Unsupported " + CONTENT_ENCODING + ": " + encoding);
+  }
+
+  static String contentEncoding(Map<String, Object> properties) {
+    if (properties == null || properties.isEmpty()) return null;
+    Object encoding = properties.get(CONTENT_ENCODING);
+    return encoding != null ? encoding.toString() : null;
+  }
+
+  static boolean isGzip(byte[] body) {
+    return body.length >= 2 && body[0] == (byte) 0x1f && body[1] == (byte) 0x8b;
+  }
+
+  static boolean isZstd(byte[] body) {
+    return body.length >= 4
+        && body[0] == (byte) 0x28
+        && body[1] == (byte) 0xb5
+        && body[2] == (byte) 0x2f
+        && body[3] == (byte) 0xfd;
+  }
+
+  /** Inflates a single gzip member directly into an array of its declared size. */
+  byte[] gunzip(byte[] body) {
+    if (body.length < 18 || !isGzip(body) || body[2] != 8) throw malformed("gzip", null);
+    int flags = body[3] & 0xff, pos = 10;
+    if ((flags & FEXTRA) != 0) pos += 2 + readUnsignedShortLE(body, pos);
+    if ((flags & FNAME) != 0) pos = skipZeroTerminated(body, pos);
+    if ((flags & FCOMMENT) != 0) pos = skipZeroTerminated(body, pos);
+    if ((flags & FHCRC) != 0) pos += 2;
+    int trailer = body.length - 8;
+    if (pos > trailer) throw malformed("gzip", null);
+
+    long expectedCrc = readIntLE(body, trailer) & 0xffffffffL;
+    int size = readIntLE(body, trailer + 4);
+    if (size < 0 || size > MAX_INFLATED_SIZE) throw tooLarge();
+
+    if (gzip == null) gzip = new Inflater(true);
+    gzip.reset();
+    gzip.setInput(body, pos, trailer - pos);
+    byte[] result = new byte[size];
+    try {
+      int length = 0;
+      while (length < size) {
+        int count = gzip.inflate(result, length, size - length);
+        if (count == 0) break; // finished early, or truncated
+        length += count;
+      }
+      // The end of the stream may only be read once there is space for more output
+      if (length != size || (!gzip.finished() && gzip.inflate(scratch(1), 0, 1) != 0)) {
+        throw malformed("gzip", null);
+      }
+    } catch (DataFormatException e) {
+      throw malformed("gzip", e);
+    }
+    if (!gzip.finished()) throw malformed("gzip", null);
+
+    crc.reset();
+    crc.update(result, 0, size);
+    if (crc.getValue() != expectedCrc) throw malformed("gzip", null);
+    return result;
+  }
+
+  /** Inflates a zlib stream, which has no declared size, via the scratch buffer. */
+  byte[] inflate(byte[] body) {
+    if (deflate == null) deflate = new Inflater();
+    deflate.reset();
+    deflate.setInput(body);
+    byte[] buffer = scratch(Math.min(Math.max(body.length * 4, 1024), MAX_INFLATED_SIZE));
+    int length = 0;
+    try {
+      while (!deflate.finished()) {
+        if (length == buffer.length) {
+          if (length == MAX_INFLATED_SIZE) throw tooLarge();
+          buffer = scratch(Math.min(length * 2, MAX_INFLATED_SIZE));
+        }
+        int count = deflate.inflate(buffer, length, buffer.length - length);
+        if (count == 0
+            && !deflate.finished()
+            && (deflate.needsInput() || deflate.needsDictionary())) {
+          throw malformed("deflate", null);
+        }
+        length += count;
+      }
+    } catch (DataFormatException e) {
+      throw malformed("deflate", e);
+    }
+    return Arrays.copyOf(buffer, length);
+  }
+
+  /** Returns the scratch buffer, growing it to at least the size given, keeping its contents. */
+  byte[] scratch(int minSize) {
+    if (scratch.length < minSize) scratch = Arrays.copyOf(scratch, minSize);
+    return scratch;
+  }
+
+  static int readUnsignedShortLE(byte[] bytes, int pos) {
+    if (pos + 2 > bytes.length) throw malformed("gzip", null);
+    return (bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8;
+  }
+
+  static int readIntLE(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xff)
+        | (bytes[pos + 1] & 0xff) << 8
+        | (bytes[pos + 2] & 0xff) << 16
+        | (bytes[pos + 3] & 0xff) << 24;
+  }
+
+  static int skipZeroTerminated(byte[] bytes, int pos) {
+    while (pos < bytes.length && bytes[pos] != 0) pos++;
+    return pos + 1;
+  }
+
+  static IllegalArgumentException malformed(String encoding, Throwable cause) {
+    IllegalArgumentException result =
+        new IllegalArgumentException("Malformed " + encoding + " event body");
+    if (cause != null) result.initCause(cause);
+    return result;
+  }
+
+  static IllegalArgumentException tooLarge() {
+    return new IllegalArgumentException(
+        "Event body inflates to more than " + MAX_INFLATED_SIZE + " bytes");
+  }
+}
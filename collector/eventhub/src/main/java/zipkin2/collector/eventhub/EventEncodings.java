@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import zipkin2.Span;
+import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static zipkin2.SpanBytesDecoderDetector.decoderForListMessage;
+
+/**
+ * Resolves how the spans in an event are encoded, so that the encoding needn't be detected from
+ * each message. An encoding declared by the event's application property wins over one pinned for
+ * the hub. When neither is present, the encoding is detected from the message.
+ *
+ * <p>Property values are {@link SpanBytesDecoder} names, such as "PROTO3", or the media types
+ * "application/x-protobuf" and "application/x-thrift". As "application/json" doesn't say whether
+ * spans are in v1 or v2 format, json is still detected.
+ */
+final class EventEncodings {
+  final Declared pinned; // decoder is null when detected
+  final String encodingProperty; // null when not read
+  final TraceIdSampler sampler; // null when all spans are sampled
+  // Events usually carry one of a few values, so we avoid parsing each time
+  final Map<String, Declared> declared = new ConcurrentHashMap<>();
+
+  EventEncodings(SpanBytesDecoder encoding, String encodingProperty, TraceIdSampler sampler) {
+    this.sampler = sampler;
+    this.pinned = new Declared(encoding, null, sampler);
+    this.encodingProperty = encodingProperty;
+  }
+
+  /**
+   * Returns the encoding declared for the event. The same instance is returned for events with the
+   * same encoding, so that they can be grouped by identity.
+   */
+  Declared encoding(EventData event) {
+    return encoding(event.getProperties());
+  }
+
+  /** Like {@link #encoding(EventData)}, except for the application properties of an event. */
+  Declared encoding(Map<String, Object> properties) {
+    if (encodingProperty != null) {
+      Object value = properties != null ? properties.get(encodingProperty) : null;
+      if (value != null) return declared(value.toString());
+    }
+    return pinned;
+  }
+
+  Declared declared(String value) {
+    Declared result = declared.get(value);
+    if (result != null) return result;
+    try {
+      result = new Declared(parse(value), null, sampler);
+    } catch (IllegalArgumentException e) {
+      result = new Declared(null, e, sampler); // raised when an event with this value is decoded
+    }
+    if (declared.size() < 64) declared.put(value, result); // bound garbage values
+    return result;
+  }
+
+  /** Returns null when json, as the version is detected from the body */
+  SpanBytesDecoder parse(String value) {
+    String lowerCase = value.trim().toLowerCase(Locale.ROOT);
+    switch (lowerCase) {
+      case "application/x-protobuf":
+      case "application/protobuf":
+        return SpanBytesDecoder.PROTO3;
+      case "application/x-thrift":
+        return SpanBytesDecoder.THRIFT;
+      case "application/json":
+        SpanBytesDecoder pinned = this.pinned.decoder;
+        return pinned != null && pinned.name().startsWith("JSON") ? pinned : null;
+      default:
+        for (SpanBytesDecoder decoder : SpanBytesDecoder.values()) {
+          if (decoder.name().equalsIgnoreCase(lowerCase)) return decoder;
+        }
+        throw new IllegalArgumentException("Unsupported " + encodingProperty + ": " + value);
+    }
+  }
+
+  static final class Declared {
+    final SpanBytesDecoder decoder; // null when detected from each message
+    final IllegalArgumentException unsupported;
+    final TraceIdSampler sampler;
+
+    Declared(
+        SpanBytesDecoder decoder,
+        IllegalArgumentException unsupported,
+        TraceIdSampler sampler) {
+      this.decoder = decoder;
+      this.unsupported = unsupported;
+      this.sampler = sampler;
+    }
+
+    /**
+     * Decodes the spans in the body into the list given, skipping those that wouldn't be sampled.
+     *
+     * @return the count of spans read, including those skipped
+     */
+    int decodeList(byte[] body, List<Span> out) {
+      BytesDecoder<Span> decoder = decoder(body);
+      int skipped = 0;
+      if (sampler != null) {
+        TraceIdSampler.Sampled sampled = sampler.sample(decoder, body);
+        if (sampled != null) {
+          skipped = sampled.dropped;
+          if (sampled.keptCount == 0) return skipped;
+          body = sampled.list();
+        }
+      }
+      int before = out.size();
+      decoder.decodeList(body, out);
+      return out.size() - before + skipped;
+    }
+
+    BytesDecoder<Span> decoder(byte[] body) {
+      if (unsupported != null) throw unsupported;
+      return decoder != null ? decoder : decoderForListMessage(body);
+    }
+  }
+}
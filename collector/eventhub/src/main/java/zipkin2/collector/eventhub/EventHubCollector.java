@@ -14,12 +14,16 @@
 package zipkin2.collector.eventhub;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import zipkin2.CheckResult;
-import zipkin2.collector.Collector;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.CollectorComponent;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
@@ -32,15 +36,48 @@ public final class EventHubCollector extends CollectorComponent {
   }
 
   public static final class Builder extends CollectorComponent.Builder {
-    Collector.Builder delegate = Collector.newBuilder(EventHubCollector.class);
+    StorageComponent storage;
+    CollectorSampler sampler = CollectorSampler.ALWAYS_SAMPLE;
+    CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    EventHubMetrics eventHubMetrics = EventHubMetrics.NOOP_METRICS;
     String name = "zipkin";
     String consumerGroup = "$Default";
     String connectionString;
     String processorHost = UUID.randomUUID().toString();
     int checkpointBatchSize = 10;
+    long checkpointBatchBytes, checkpointIntervalMillis, checkpointMinIntervalMillis;
+    long checkpointFlushMillis;
+    int maxBatchSize, prefetchCount;
+    long receiveTimeoutMillis;
+    boolean invokeProcessorAfterReceiveTimeout;
+    CheckpointPolicy checkpointPolicy;
+    int writeMaxSpans, writeMaxBytes, writeMaxInFlight = 10;
+    long drainTimeoutMillis = 10_000;
+    int decodeThreads;
+    int dedupeMaxSpans;
+    int adaptiveMinSpans = 10, adaptiveMaxSpans;
+    long adaptiveWriteTargetMillis = 1000;
+    SpanBytesDecoder encoding;
+    String encodingProperty;
+    ExecutorService executor;
+    int executorThreads;
+    String executorThreadNamePrefix = "zipkin-eventhub-";
+    long writeLingerMillis;
+    boolean writeGroupByTrace;
     String storageConnectionString;
     String storageContainer = "zipkin";
     String storageBlobPrefix = "zipkin_checkpoint_store"; // TODO: integration testing
+    CheckpointStore checkpointStore;
+    Path checkpointFile;
+    Path deadLetterDirectory;
+    long deadLetterMaxFileBytes = 10 * 1024 * 1024;
+    int deadLetterMaxFiles = 10;
+    Path spoolDirectory;
+    int spoolSegmentBytes = 16 * 1024 * 1024, spoolMaxSegments = 64;
+    int spoolReplaySpansPerSecond = 1000;
+    long spoolStallMillis = 10_000;
+    long memoryBudgetBytes, memoryBudgetWaitMillis = 1000;
+    boolean memoryBudgetShed;
 
     Builder() {}
 
@@ -54,11 +91,257 @@ public final class EventHubCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * A checkpoint is due after this many spans are read from a partition. Zero disables this.
+     * Default 10.
+     */
     public Builder checkpointBatchSize(int size) {
       this.checkpointBatchSize = size;
       return this;
     }
 
+    /** When positive, a checkpoint is due after this many encoded bytes are read. */
+    public Builder checkpointBatchBytes(long checkpointBatchBytes) {
+      this.checkpointBatchBytes = checkpointBatchBytes;
+      return this;
+    }
+
+    /** When positive, a checkpoint is due after this much time elapsed. */
+    public Builder checkpointIntervalMillis(long checkpointIntervalMillis) {
+      this.checkpointIntervalMillis = checkpointIntervalMillis;
+      return this;
+    }
+
+    /**
+     * When positive, checkpoints of a partition are at least this far apart, regardless of other
+     * settings. This caps the rate of checkpoint writes.
+     */
+    public Builder checkpointMinIntervalMillis(long checkpointMinIntervalMillis) {
+      this.checkpointMinIntervalMillis = checkpointMinIntervalMillis;
+      return this;
+    }
+
+    /**
+     * When positive, checkpoints are written by a background thread at this interval, instead of on
+     * the thread receiving events. Only the latest checkpoint of a partition is written, and it is
+     * flushed when the partition closes.
+     */
+    public Builder checkpointFlushMillis(long checkpointFlushMillis) {
+      this.checkpointFlushMillis = checkpointFlushMillis;
+      return this;
+    }
+
+    /**
+     * Overrides the policy built from {@link #checkpointBatchSize}, {@link #checkpointBatchBytes},
+     * {@link #checkpointIntervalMillis} and {@link #checkpointMinIntervalMillis}.
+     */
+    public Builder checkpointPolicy(CheckpointPolicy checkpointPolicy) {
+      if (checkpointPolicy == null) throw new NullPointerException("checkpointPolicy == null");
+      this.checkpointPolicy = checkpointPolicy;
+      return this;
+    }
+
+    /**
+     * When positive, the maximum events passed to a partition at a time. Larger batches amortize
+     * per-batch overhead on high-throughput hubs.
+     */
+    public Builder maxBatchSize(int maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * When positive, the number of events each partition receiver fetches ahead of processing. This
+     * should be at least {@link #maxBatchSize}.
+     */
+    public Builder prefetchCount(int prefetchCount) {
+      this.prefetchCount = prefetchCount;
+      return this;
+    }
+
+    /** When positive, how long a partition receiver waits for events before giving up. */
+    public Builder receiveTimeoutMillis(long receiveTimeoutMillis) {
+      this.receiveTimeoutMillis = receiveTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * When true, a partition is passed an empty batch when its receive times out. This lets write
+     * linger and checkpoint intervals elapse on idle partitions. Default false.
+     */
+    public Builder invokeProcessorAfterReceiveTimeout(boolean invokeProcessorAfterReceiveTimeout) {
+      this.invokeProcessorAfterReceiveTimeout = invokeProcessorAfterReceiveTimeout;
+      return this;
+    }
+
+    /**
+     * Runs Event Processor Host work, including callbacks to process events. This executor isn't
+     * shut down when the collector closes.
+     */
+    public Builder executor(ExecutorService executor) {
+      if (executor == null) throw new NullPointerException("executor == null");
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * When positive, and no {@link #executor} is set, Event Processor Host callbacks run on a fixed
+     * pool of this many threads. By default, the host uses its own pool.
+     */
+    public Builder executorThreads(int executorThreads) {
+      this.executorThreads = executorThreads;
+      return this;
+    }
+
+    /** Prefix of thread names when {@link #executorThreads} are set. Default "zipkin-eventhub-". */
+    public Builder executorThreadNamePrefix(String executorThreadNamePrefix) {
+      if (executorThreadNamePrefix == null) {
+        throw new NullPointerException("executorThreadNamePrefix == null");
+      }
+      this.executorThreadNamePrefix = executorThreadNamePrefix;
+      return this;
+    }
+
+    /**
+     * Maximum spans to buffer per partition before writing to storage. When no write limits are
+     * set, spans are written each time a checkpoint is due and at the end of each batch of events.
+     *
+     * <p>Checkpoints only advance past events whose spans were written. Hence, write limits also
+     * bound how often checkpoints can occur.
+     */
+    public Builder writeMaxSpans(int writeMaxSpans) {
+      this.writeMaxSpans = writeMaxSpans;
+      return this;
+    }
+
+    /** Maximum encoded size of events to buffer per partition before writing to storage. */
+    public Builder writeMaxBytes(int writeMaxBytes) {
+      this.writeMaxBytes = writeMaxBytes;
+      return this;
+    }
+
+    /** Maximum time a span is buffered before writing to storage. */
+    public Builder writeLingerMillis(long writeLingerMillis) {
+      this.writeLingerMillis = writeLingerMillis;
+      return this;
+    }
+
+    /**
+     * When positive, each partition tunes its checkpoint batch size and {@link #writeMaxSpans}
+     * between {@link #adaptiveMinSpans} and this. Starting from the configured values, sizes grow
+     * while storage keeps up and shrink when writes are slow or fail. Checkpoints are made less
+     * often when they take a significant share of time or lag grows, and more often when there is
+     * no lag. Default 0 uses fixed sizes.
+     *
+     * <p>The adaptive write size is a write limit, so spans are buffered across callbacks until it
+     * is reached. Set {@link #writeLingerMillis} to bound how long they wait. The checkpoint batch
+     * size only adapts when no {@link #checkpointPolicy} is set.
+     */
+    public Builder adaptiveMaxSpans(int adaptiveMaxSpans) {
+      this.adaptiveMaxSpans = adaptiveMaxSpans;
+      return this;
+    }
+
+    /** The smallest batch size when {@link #adaptiveMaxSpans} is set. Default 10. */
+    public Builder adaptiveMinSpans(int adaptiveMinSpans) {
+      if (adaptiveMinSpans <= 0) throw new IllegalArgumentException("adaptiveMinSpans <= 0");
+      this.adaptiveMinSpans = adaptiveMinSpans;
+      return this;
+    }
+
+    /**
+     * When {@link #adaptiveMaxSpans} is set, a write acknowledged after longer than this halves the
+     * write batch size. Default 1000.
+     */
+    public Builder adaptiveWriteTargetMillis(long adaptiveWriteTargetMillis) {
+      if (adaptiveWriteTargetMillis <= 0) {
+        throw new IllegalArgumentException("adaptiveWriteTargetMillis <= 0");
+      }
+      this.adaptiveWriteTargetMillis = adaptiveWriteTargetMillis;
+      return this;
+    }
+
+    /**
+     * When true, spans in each write are reordered so that those of the same trace are adjacent.
+     * This improves locality for storage which clusters by trace ID, such as Cassandra and
+     * Elasticsearch. Spans are only grouped within a partition's buffer, so set write limits, such
+     * as {@link #writeLingerMillis}, to group more. Default false.
+     */
+    public Builder writeGroupByTrace(boolean writeGroupByTrace) {
+      this.writeGroupByTrace = writeGroupByTrace;
+      return this;
+    }
+
+    /**
+     * Maximum storage writes that can be in flight per partition. When reached, the partition stops
+     * processing events until a write completes. Default 10.
+     *
+     * <p>Checkpoints only advance past events whose spans were acknowledged by storage.
+     */
+    public Builder writeMaxInFlight(int writeMaxInFlight) {
+      if (writeMaxInFlight <= 0) throw new IllegalArgumentException("writeMaxInFlight <= 0");
+      this.writeMaxInFlight = writeMaxInFlight;
+      return this;
+    }
+
+    /**
+     * When a partition closes, other than by losing its lease, buffered spans are written and the
+     * last event acknowledged by storage is checkpointed. This bounds how long to wait for storage.
+     * Default 10000. Zero only checkpoints what was already acknowledged.
+     *
+     * <p>This happens on {@link EventHubCollector#close()}, before leases are released, so the next
+     * owner of a partition doesn't redeliver what this host already stored.
+     */
+    public Builder drainTimeoutMillis(long drainTimeoutMillis) {
+      if (drainTimeoutMillis < 0) throw new IllegalArgumentException("drainTimeoutMillis < 0");
+      this.drainTimeoutMillis = drainTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * When positive, events in a batch are decoded in parallel by a pool of this many threads,
+     * shared by all partitions. Spans are still written and checkpointed in offset order. Default 0
+     * decodes on the thread that received the events.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
+    /**
+     * When positive, each partition remembers this many spans it stored, and drops them if they
+     * are redelivered. This happens when the partition's lease returns to this host, as events
+     * since the last checkpoint are delivered again. Each span remembered costs 24 to 40 bytes.
+     * Spans redelivered to another host are not detected. Those of a partition which closed cleanly
+     * are forgotten after a minute, and those of a lost lease at once. Default 0 writes redelivered
+     * spans again.
+     */
+    public Builder dedupeMaxSpans(int dedupeMaxSpans) {
+      this.dedupeMaxSpans = dedupeMaxSpans;
+      return this;
+    }
+
+    /**
+     * Pins the encoding of spans in events, instead of detecting it from each message. Use this
+     * when all producers of the hub use the same encoding. By default, the encoding is detected.
+     */
+    public Builder encoding(SpanBytesDecoder encoding) {
+      if (encoding == null) throw new NullPointerException("encoding == null");
+      this.encoding = encoding;
+      return this;
+    }
+
+    /**
+     * When set, the encoding of an event is read from this application property, overriding {@link
+     * #encoding}. Values are {@link SpanBytesDecoder} names, like "PROTO3", or the media types
+     * "application/x-protobuf", "application/x-thrift" and "application/json".
+     */
+    public Builder encodingProperty(String encodingProperty) {
+      if (encodingProperty == null) throw new NullPointerException("encodingProperty == null");
+      this.encodingProperty = encodingProperty;
+      return this;
+    }
+
     public Builder connectionString(String connectionString) {
       this.connectionString = connectionString;
       return this;
@@ -79,6 +362,141 @@ public final class EventHubCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * Keeps checkpoints and partition leases in this store, instead of Azure Storage. When set,
+     * {@link #storageConnectionString}, {@link #storageContainer} and {@link #storageBlobPrefix}
+     * are ignored. The store is closed with the collector.
+     */
+    public Builder checkpointStore(CheckpointStore checkpointStore) {
+      if (checkpointStore == null) throw new NullPointerException("checkpointStore == null");
+      this.checkpointStore = checkpointStore;
+      return this;
+    }
+
+    /**
+     * Keeps checkpoints and partition leases in a {@link CheckpointStore#mappedFile memory-mapped
+     * file} at this path, which is opened when the collector is built. Ignored when {@link
+     * #checkpointStore} is set.
+     */
+    public Builder checkpointFile(Path checkpointFile) {
+      if (checkpointFile == null) throw new NullPointerException("checkpointFile == null");
+      this.checkpointFile = checkpointFile;
+      return this;
+    }
+
+    /**
+     * Events which can't be decoded are dropped and counted as dropped messages. When set, their
+     * bodies are also appended to files in this directory, with their partition, offset and
+     * sequence number. By default, they are only logged.
+     */
+    public Builder deadLetterDirectory(Path deadLetterDirectory) {
+      if (deadLetterDirectory == null) {
+        throw new NullPointerException("deadLetterDirectory == null");
+      }
+      this.deadLetterDirectory = deadLetterDirectory;
+      return this;
+    }
+
+    /** Size at which a new dead letter file is started. Default 10MiB. */
+    public Builder deadLetterMaxFileBytes(long deadLetterMaxFileBytes) {
+      if (deadLetterMaxFileBytes <= 0) {
+        throw new IllegalArgumentException("deadLetterMaxFileBytes <= 0");
+      }
+      this.deadLetterMaxFileBytes = deadLetterMaxFileBytes;
+      return this;
+    }
+
+    /** How many dead letter files are kept. Default 10. */
+    public Builder deadLetterMaxFiles(int deadLetterMaxFiles) {
+      if (deadLetterMaxFiles <= 0) throw new IllegalArgumentException("deadLetterMaxFiles <= 0");
+      this.deadLetterMaxFiles = deadLetterMaxFiles;
+      return this;
+    }
+
+    /**
+     * When set, spans that storage doesn't accept, or that wait on {@link #writeMaxInFlight} while
+     * storage is failing or longer than {@link #spoolStallMillis}, are appended to memory-mapped
+     * files in this directory instead. Partitions then checkpoint past them, rather than stalling,
+     * and a background thread replays them into storage once it recovers. By default, partitions
+     * wait for storage.
+     */
+    public Builder spoolDirectory(Path spoolDirectory) {
+      if (spoolDirectory == null) throw new NullPointerException("spoolDirectory == null");
+      this.spoolDirectory = spoolDirectory;
+      return this;
+    }
+
+    /** Size of each spool file. Default 16MiB. */
+    public Builder spoolSegmentBytes(int spoolSegmentBytes) {
+      if (spoolSegmentBytes <= 0) throw new IllegalArgumentException("spoolSegmentBytes <= 0");
+      this.spoolSegmentBytes = spoolSegmentBytes;
+      return this;
+    }
+
+    /**
+     * How many spool files can exist. When all are full, partitions wait for storage. Default 64.
+     */
+    public Builder spoolMaxSegments(int spoolMaxSegments) {
+      if (spoolMaxSegments <= 0) throw new IllegalArgumentException("spoolMaxSegments <= 0");
+      this.spoolMaxSegments = spoolMaxSegments;
+      return this;
+    }
+
+    /**
+     * Minimum spans replayed from the spool into storage each second. Otherwise, replay keeps to
+     * half the rate partitions write to storage, so that it doesn't crowd them out. Default 1000.
+     */
+    public Builder spoolReplaySpansPerSecond(int spoolReplaySpansPerSecond) {
+      if (spoolReplaySpansPerSecond <= 0) {
+        throw new IllegalArgumentException("spoolReplaySpansPerSecond <= 0");
+      }
+      this.spoolReplaySpansPerSecond = spoolReplaySpansPerSecond;
+      return this;
+    }
+
+    /**
+     * How long spans can wait on {@link #writeMaxInFlight} before they are spooled, while storage
+     * is slow but not failing. Once a write fails, waiting spans are spooled right away. Default
+     * 10 seconds.
+     */
+    public Builder spoolStallMillis(long spoolStallMillis) {
+      if (spoolStallMillis < 0) throw new IllegalArgumentException("spoolStallMillis < 0");
+      this.spoolStallMillis = spoolStallMillis;
+      return this;
+    }
+
+    /**
+     * Maximum encoded size of events to buffer across all partitions of this host. This bounds
+     * memory when write limits, such as {@link #writeMaxSpans}, let many partitions buffer at once.
+     * Events count until storage acknowledges their spans. When exhausted, a partition writes what
+     * it buffered, then waits for storage to acknowledge writes. Disabled by default.
+     */
+    public Builder memoryBudgetBytes(long memoryBudgetBytes) {
+      this.memoryBudgetBytes = memoryBudgetBytes;
+      return this;
+    }
+
+    /**
+     * How long a partition waits for the {@link #memoryBudgetBytes memory budget} before it
+     * continues over budget, or sheds spans. Default 1000.
+     */
+    public Builder memoryBudgetWaitMillis(long memoryBudgetWaitMillis) {
+      if (memoryBudgetWaitMillis < 0) {
+        throw new IllegalArgumentException("memoryBudgetWaitMillis < 0");
+      }
+      this.memoryBudgetWaitMillis = memoryBudgetWaitMillis;
+      return this;
+    }
+
+    /**
+     * When true, spans of events that can't fit the {@link #memoryBudgetBytes memory budget} after
+     * waiting are dropped, except debug spans and errors. By default, they are buffered anyway.
+     */
+    public Builder memoryBudgetShed(boolean memoryBudgetShed) {
+      this.memoryBudgetShed = memoryBudgetShed;
+      return this;
+    }
+
     public Builder processorHost(String processorHost) {
       this.processorHost = processorHost;
       return this;
@@ -86,22 +504,56 @@ public final class EventHubCollector extends CollectorComponent {
 
     @Override
     public Builder storage(StorageComponent storage) {
-      delegate.storage(storage);
+      if (storage == null) throw new NullPointerException("storage == null");
+      this.storage = storage;
       return this;
     }
 
     @Override
     public Builder metrics(CollectorMetrics metrics) {
-      delegate.metrics(metrics);
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    /** Receives gauges and other values which {@link #metrics} can't represent. */
+    public Builder eventHubMetrics(EventHubMetrics eventHubMetrics) {
+      if (eventHubMetrics == null) throw new NullPointerException("eventHubMetrics == null");
+      this.eventHubMetrics = eventHubMetrics;
       return this;
     }
 
     @Override
     public Builder sampler(CollectorSampler sampler) {
-      delegate.sampler(sampler);
+      if (sampler == null) throw new NullPointerException("sampler == null");
+      this.sampler = sampler;
       return this;
     }
 
+    CheckpointPolicy buildCheckpointPolicy() {
+      return buildCheckpointPolicy(
+          checkpointBatchSize > 0 ? CheckpointPolicy.afterSpans(checkpointBatchSize) : null);
+    }
+
+    /** Builds the policy using the given one for spans read, or null when spans don't matter. */
+    CheckpointPolicy buildCheckpointPolicy(CheckpointPolicy afterSpans) {
+      if (checkpointPolicy != null) return checkpointPolicy;
+      List<CheckpointPolicy> anyOf = new ArrayList<>();
+      if (afterSpans != null) anyOf.add(afterSpans);
+      if (checkpointBatchBytes > 0) anyOf.add(CheckpointPolicy.afterBytes(checkpointBatchBytes));
+      if (checkpointIntervalMillis > 0) {
+        anyOf.add(CheckpointPolicy.afterMillis(checkpointIntervalMillis));
+      }
+      if (anyOf.isEmpty()) {
+        throw new IllegalArgumentException(
+            "Set checkpointBatchSize, checkpointBatchBytes or checkpointIntervalMillis");
+      }
+      CheckpointPolicy result = CheckpointPolicy.anyOf(anyOf.toArray(new CheckpointPolicy[0]));
+      if (checkpointMinIntervalMillis <= 0) return result;
+      return CheckpointPolicy.allOf(
+          result, CheckpointPolicy.afterMillis(checkpointMinIntervalMillis));
+    }
+
     @Override
     public EventHubCollector build() {
       return new EventHubCollector(this);
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import zipkin2.collector.CollectorMetrics;
+
+/**
+ * Instrumentation specific to the Event Hub collector. {@link CollectorMetrics} only has counters,
+ * so values such as queue depth are reported here.
+ */
+public interface EventHubMetrics {
+  EventHubMetrics NOOP_METRICS =
+      new EventHubMetrics() {
+        @Override
+        public void gauge(String name, Gauge gauge) {}
+
+        @Override
+        public String toString() {
+          return "NoopEventHubMetrics";
+        }
+      };
+
+  /** A value read each time metrics are reported. */
+  interface Gauge {
+    double value();
+  }
+
+  /**
+   * Registers a gauge, such as "executor.queue". The caller doesn't keep a reference to the gauge,
+   * so implementations must.
+   */
+  void gauge(String name, Gauge gauge);
+
+  /**
+   * Returns metrics of a partition, which may be called more than once for the same partition.
+   * Defaults to not recording them.
+   */
+  default PartitionMetrics forPartition(String partitionId) {
+    return PartitionMetrics.NOOP_METRICS;
+  }
+
+  /** Measurements of one partition, used to tell whether Event Hub, decoding or storage is slow. */
+  interface PartitionMetrics {
+    PartitionMetrics NOOP_METRICS =
+        new PartitionMetrics() {
+          @Override
+          public void lag(long events) {}
+
+          @Override
+          public void recordBatch(int events, int spans) {}
+
+          @Override
+          public void recordDecodeNanos(long nanos) {}
+
+          @Override
+          public void recordWriteNanos(long nanos) {}
+
+          @Override
+          public void recordCheckpointNanos(long nanos) {}
+
+          @Override
+          public void incrementCheckpointFailures() {}
+
+          @Override
+          public void recordDeduplication(int spans, int duplicates) {}
+
+          @Override
+          public void recordTraceGrouping(int traces, int runs) {}
+
+          @Override
+          public void recordMemoryWaitNanos(long nanos) {}
+
+          @Override
+          public void recordShed(int spans) {}
+
+          @Override
+          public void adaptiveSizes(int checkpointBatchSize, int writeMaxSpans) {}
+
+          @Override
+          public String toString() {
+            return "NoopPartitionMetrics";
+          }
+        };
+
+    /** Events enqueued to the partition, but not yet processed. */
+    void lag(long events);
+
+    /** The events and spans passed in one callback. */
+    void recordBatch(int events, int spans);
+
+    /** Time to decode one event. */
+    void recordDecodeNanos(long nanos);
+
+    /** Time until storage acknowledged a write, or failed it. */
+    void recordWriteNanos(long nanos);
+
+    /** Time to write a checkpoint, whether or not it succeeded. */
+    void recordCheckpointNanos(long nanos);
+
+    void incrementCheckpointFailures();
+
+    /** Spans checked for redelivery, and how many of those were dropped as duplicates. */
+    void recordDeduplication(int spans, int duplicates);
+
+    /**
+     * Traces in a write grouped by trace ID, and how many runs of adjacent spans they were split
+     * into before grouping.
+     */
+    void recordTraceGrouping(int traces, int runs);
+
+    /** Time waited for the memory budget, including writing what the partition buffered. */
+    void recordMemoryWaitNanos(long nanos);
+
+    /** Spans dropped as they didn't fit the memory budget. */
+    void recordShed(int spans);
+
+    /** The current batch sizes, in spans, each time they adapt. */
+    void adaptiveSizes(int checkpointBatchSize, int writeMaxSpans);
+  }
+}
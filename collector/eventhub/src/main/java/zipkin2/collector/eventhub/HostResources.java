@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+/**
+ * What the processors of a host share, which isn't configuration on {@link
+ * EventHubCollector.Builder}. Each is null when its feature is off, such as in tests.
+ */
+final class HostResources {
+  ParallelDecoder decoder; // null when decoding on the callback thread
+  CheckpointWriter checkpointWriter; // null when checkpointing on the callback thread
+  DeadLetterSpool deadLetters; // null when malformed events are only logged and counted
+  OwnedPartitions ownedPartitions; // null when not tracked
+  WriteAheadSpool spool; // null when writes wait for storage to recover
+  MemoryBudget memoryBudget; // null when buffered bytes are bounded per partition only
+
+  HostResources decoder(ParallelDecoder decoder) {
+    this.decoder = decoder;
+    return this;
+  }
+
+  HostResources checkpointWriter(CheckpointWriter checkpointWriter) {
+    this.checkpointWriter = checkpointWriter;
+    return this;
+  }
+
+  HostResources deadLetters(DeadLetterSpool deadLetters) {
+    this.deadLetters = deadLetters;
+    return this;
+  }
+
+  HostResources ownedPartitions(OwnedPartitions ownedPartitions) {
+    this.ownedPartitions = ownedPartitions;
+    return this;
+  }
+
+  HostResources spool(WriteAheadSpool spool) {
+    this.spool = spool;
+    return this;
+  }
+
+  HostResources memoryBudget(MemoryBudget memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    return this;
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Writes spans of a partition to storage, bounding how many writes can be in flight. This tracks
+ * the last event whose spans, and those of all events before it, were acknowledged by storage.
+ * Checkpoints never pass that event, so spans are not lost when storage is slow or failing.
+ *
+ * <p>A failed write keeps its place and its permit until it is retried by the partition's thread.
+ * When storage is down, writes stop completing, which pushes back on the receive loop. With a
+ * {@link WriteAheadSpool}, the partition's thread spools failed writes instead, which acknowledges
+ * them, until the spool is full. Writes waiting on a permit are also spooled while storage is
+ * failing, or once they waited longer than the stall allowed.
+ */
+final class InFlightWrites {
+  static final long RETRY_INTERVAL_MILLIS = 100;
+
+  final Logger logger;
+  final StorageComponent storage;
+  final CollectorSampler sampler;
+  final CollectorMetrics metrics;
+  final Semaphore permits;
+  final AdaptiveSizing sizing; // null when write sizes are fixed
+  final WriteAheadSpool spool; // null when writes wait for storage to recover
+  final long spoolStallNanos;
+  final MemoryBudget budget; // null when memory isn't bounded
+  volatile boolean failing; // true when the last write to storage failed
+  // Assigned when the partition opens, as it may be reused from a prior lease
+  volatile SpanDeduplicator deduplicator; // null when redelivered spans are written again
+
+  final ArrayDeque<Write> pending = new ArrayDeque<>(); // guarded by this, in order issued
+  final List<Write> failed = new ArrayList<>(); // guarded by this
+  EventData lastAcknowledged; // guarded by this
+
+  InFlightWrites(
+      Logger logger,
+      StorageComponent storage,
+      CollectorSampler sampler,
+      CollectorMetrics metrics,
+      int maxInFlight,
+      AdaptiveSizing sizing,
+      WriteAheadSpool spool,
+      long spoolStallMillis,
+      MemoryBudget budget) {
+    this.logger = logger;
+    this.storage = storage;
+    this.sampler = sampler;
+    this.metrics = metrics;
+    this.permits = new Semaphore(maxInFlight);
+    this.sizing = sizing;
+    this.spool = spool;
+    this.spoolStallNanos = TimeUnit.MILLISECONDS.toNanos(spoolStallMillis);
+    this.budget = budget;
+  }
+
+  /**
+   * Writes the spans decoded from events up to and including the one given, blocking while the
+   * maximum writes are in flight.
+   *
+   * @param reservedBytes reserved from the budget for the spans, released once they are stored,
+   *     or if they won't be written
+   */
+  void write(
+      List<Span> spans, EventData lastEvent, long reservedBytes, PartitionMetrics partitionMetrics)
+      throws InterruptedException {
+    long startNanos = System.nanoTime();
+    try {
+      while (!permits.tryAcquire(RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        retryFailed();
+        // Rather than stall the partition while storage is down, spool the spans if there's room
+        if (spool != null
+            && (failing || System.nanoTime() - startNanos >= spoolStallNanos)
+            && trySpool(spans, lastEvent, reservedBytes, partitionMetrics)) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      release(reservedBytes);
+      throw e;
+    }
+    issue(spans, lastEvent, reservedBytes, partitionMetrics);
+  }
+
+  /** Spools the spans instead of writing them, returning false if the spool is full. */
+  boolean trySpool(
+      List<Span> spans,
+      EventData lastEvent,
+      long reservedBytes,
+      PartitionMetrics partitionMetrics) {
+    List<Span> sampled = sample(spans);
+    if (!sampled.isEmpty() && !spool(sampled)) return false;
+    metrics.incrementSpans(spans.size());
+    if (sampled.size() < spans.size()) {
+      metrics.incrementSpansDropped(spans.size() - sampled.size());
+    }
+    Write write = new Write(sampled, lastEvent, reservedBytes, partitionMetrics);
+    synchronized (this) {
+      pending.add(write);
+    }
+    write.stored();
+    write.acknowledged(); // no permit to release, as none was acquired
+    return true;
+  }
+
+  /** Returns true if the spans were spooled, to be replayed into storage later. */
+  boolean spool(List<Span> spans) {
+    if (spool == null) return false;
+    try {
+      return spool.append(spans);
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Cannot spool " + spans.size() + " spans", e);
+      return false;
+    }
+  }
+
+  /** Like {@link #write}, except this gives up, returning false, at the deadline. */
+  boolean tryWrite(
+      List<Span> spans,
+      EventData lastEvent,
+      long reservedBytes,
+      PartitionMetrics partitionMetrics,
+      long deadlineNanos)
+      throws InterruptedException {
+    try {
+      while (!permits.tryAcquire(RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        retryFailed();
+        if (System.nanoTime() - deadlineNanos >= 0) {
+          release(reservedBytes);
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      release(reservedBytes);
+      throw e;
+    }
+    issue(spans, lastEvent, reservedBytes, partitionMetrics);
+    return true;
+  }
+
+  /**
+   * Waits until all writes are acknowledged, retrying failed ones. Returns false if some weren't by
+   * the deadline.
+   */
+  boolean awaitAcknowledged(long deadlineNanos) throws InterruptedException {
+    while (true) {
+      retryFailed();
+      synchronized (this) {
+        if (pending.isEmpty()) return true;
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remainingMillis <= 0) return false;
+        wait(Math.min(remainingMillis, RETRY_INTERVAL_MILLIS));
+      }
+    }
+  }
+
+  void issue(
+      List<Span> spans,
+      EventData lastEvent,
+      long reservedBytes,
+      PartitionMetrics partitionMetrics) {
+    Write write = new Write(spans, lastEvent, reservedBytes, partitionMetrics);
+    synchronized (this) {
+      pending.add(write);
+    }
+
+    metrics.incrementSpans(spans.size());
+    write.spans = sample(spans);
+    if (write.spans.size() < spans.size()) {
+      metrics.incrementSpansDropped(spans.size() - write.spans.size());
+    }
+    if (write.spans.isEmpty()) {
+      write.onSuccess(null);
+    } else {
+      write.issue();
+    }
+  }
+
+  /** Spools writes which failed, or re-issues them when there's no room. */
+  void retryFailed() {
+    List<Write> toRetry;
+    synchronized (this) {
+      if (failed.isEmpty()) return;
+      toRetry = new ArrayList<>(failed);
+      failed.clear();
+    }
+    for (Write write : toRetry) {
+      if (!write.trySpool()) write.issue();
+    }
+  }
+
+  void release(long reservedBytes) {
+    if (reservedBytes != 0) budget.release(reservedBytes);
+  }
+
+  /**
+   * Releases what writes reserved from the budget, as the partition closed and won't wait for
+   * them. Failed writes are not retried.
+   */
+  void discard() {
+    List<Write> toRelease;
+    synchronized (this) {
+      failed.clear();
+      toRelease = new ArrayList<>(pending);
+    }
+    for (Write write : toRelease) write.releaseReservation();
+  }
+
+  /** Returns the last event whose spans, and all those before it, were stored, or null. */
+  synchronized EventData lastAcknowledged() {
+    return lastAcknowledged;
+  }
+
+  /** Returns the count of writes that are not yet acknowledged, including failed ones. */
+  synchronized int inFlight() {
+    return pending.size();
+  }
+
+  // Same as Collector.sample, which is not visible, except this doesn't copy when all are sampled.
+  // Unlike that, the caller counts dropped spans.
+  List<Span> sample(List<Span> input) {
+    int length = input.size(), i = 0;
+    while (i < length && isSampled(input.get(i))) i++;
+    if (i == length) return input;
+
+    List<Span> sampled = new ArrayList<>(input.subList(0, i));
+    for (i++; i < length; i++) {
+      Span s = input.get(i);
+      if (isSampled(s)) sampled.add(s);
+    }
+    return sampled;
+  }
+
+  boolean isSampled(Span s) {
+    return sampler.isSampled(s.traceId(), Boolean.TRUE.equals(s.debug()));
+  }
+
+  final class Write implements Callback<Void> {
+    final EventData lastEvent;
+    final PartitionMetrics partitionMetrics;
+    final int spanCount; // before sampling, as that's what the write size limits
+    List<Span> spans;
+    long issuedNanos;
+    long reservedBytes; // guarded by InFlightWrites.this, until stored or spooled
+    boolean done; // guarded by InFlightWrites.this
+
+    Write(
+        List<Span> spans,
+        EventData lastEvent,
+        long reservedBytes,
+        PartitionMetrics partitionMetrics) {
+      this.spans = spans;
+      this.spanCount = spans.size();
+      this.lastEvent = lastEvent;
+      this.reservedBytes = reservedBytes;
+      this.partitionMetrics = partitionMetrics;
+    }
+
+    void issue() {
+      issuedNanos = System.nanoTime();
+      try {
+        storage.spanConsumer().accept(spans).enqueue(this);
+      } catch (RuntimeException e) {
+        onError(e);
+      }
+    }
+
+    @Override
+    public void onSuccess(Void value) {
+      if (issuedNanos != 0L) {
+        long nanos = System.nanoTime() - issuedNanos;
+        partitionMetrics.recordWriteNanos(nanos);
+        if (sizing != null) sizing.onWrite(spanCount, nanos, partitionMetrics);
+        if (spool != null) spool.storedSpans.addAndGet(spans.size());
+        failing = false;
+      }
+      stored();
+      acknowledged();
+      permits.release();
+    }
+
+    /** Remembers the spans, which are now in storage or the spool, to drop them if redelivered. */
+    void stored() {
+      SpanDeduplicator deduplicator = InFlightWrites.this.deduplicator;
+      if (deduplicator != null && !spans.isEmpty()) deduplicator.stored(spans);
+    }
+
+    /** Releases the bytes reserved for the spans, which are no longer held. */
+    void releaseReservation() {
+      long bytes;
+      synchronized (InFlightWrites.this) {
+        bytes = reservedBytes;
+        reservedBytes = 0;
+      }
+      release(bytes);
+    }
+
+    /**
+     * Marks this done, advancing the last acknowledged event when all writes before it are. This
+     * also releases the reservation, as the spans are in storage or the spool.
+     */
+    void acknowledged() {
+      releaseReservation();
+      synchronized (InFlightWrites.this) {
+        done = true;
+        while (!pending.isEmpty() && pending.peek().done) {
+          lastAcknowledged = pending.poll().lastEvent;
+        }
+        if (pending.isEmpty()) InFlightWrites.this.notifyAll(); // wakes awaitAcknowledged
+      }
+    }
+
+    /** Spools the spans of this failed write, acknowledging it, unless there's no room. */
+    boolean trySpool() {
+      if (!spool(spans)) return false;
+      stored();
+      acknowledged();
+      permits.release();
+      return true;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      partitionMetrics.recordWriteNanos(System.nanoTime() - issuedNanos);
+      if (sizing != null) sizing.onWriteFailed(partitionMetrics);
+      failing = true;
+      if (logger.isLoggable(Level.WARNING)) {
+        String action = spool != null ? "; will spool or retry" : "; will retry";
+        logger.log(Level.WARNING, "Cannot store " + spans.size() + " spans" + action, t);
+      }
+      // Spooling forces a file to disk, so it is left to the partition's thread, not this one
+      synchronized (InFlightWrites.this) {
+        failed.add(this);
+      }
+    }
+  }
+}
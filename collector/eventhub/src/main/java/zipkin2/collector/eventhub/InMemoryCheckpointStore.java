@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventprocessorhost.Checkpoint;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class InMemoryCheckpointStore extends CheckpointStore {
+  final Map<String, Checkpoint> checkpoints = new LinkedHashMap<>(); // guarded by this
+
+  @Override
+  Checkpoint read(String partitionId) {
+    Checkpoint result = checkpoints.get(partitionId);
+    return result != null ? new Checkpoint(result) : null;
+  }
+
+  @Override
+  void write(Checkpoint checkpoint) {
+    checkpoints.put(checkpoint.getPartitionId(), new Checkpoint(checkpoint));
+  }
+
+  @Override
+  void delete(String partitionId) {
+    checkpoints.remove(partitionId);
+  }
+
+  @Override
+  void deleteAll() {
+    checkpoints.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryCheckpointStore";
+  }
+}
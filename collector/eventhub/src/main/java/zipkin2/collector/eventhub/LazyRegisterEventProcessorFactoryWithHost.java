@@ -13,15 +13,26 @@
  */
 package zipkin2.collector.eventhub;
 
+import com.microsoft.azure.eventhubs.RetryPolicy;
 import com.microsoft.azure.eventprocessorhost.EventProcessorHost;
+import com.microsoft.azure.eventprocessorhost.EventProcessorOptions;
 import com.microsoft.azure.eventprocessorhost.IEventProcessor;
 import com.microsoft.azure.eventprocessorhost.IEventProcessorFactory;
 import com.microsoft.azure.eventprocessorhost.PartitionContext;
+import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.storage.StorageComponent;
 
 /**
  * This registers an event processor factory on the first call to get {@link #get()}. If an event
@@ -30,28 +41,214 @@ import java.util.concurrent.Future;
 // not final for testing
 class LazyRegisterEventProcessorFactoryWithHost {
   final EventProcessorHost host;
+  final ExecutorService executor; // null when the host uses its own
+  final boolean ownsExecutor;
   final IEventProcessorFactory<?> factory;
-  final ConcurrentMap<String, IEventProcessor> hosts = new ConcurrentHashMap<>();
+  final EventProcessorOptions options;
+  final OwnedPartitions ownedPartitions;
+  final ParallelDecoder decoder; // null when decoding on the callback thread
+  final CheckpointWriter checkpointWriter; // null when checkpointing on the callback thread
+  final CheckpointStore checkpointStore; // null when checkpoints are in Azure Storage
+  final DeadLetterSpool deadLetters; // null when malformed events are not kept
+  final WriteAheadSpool spool; // null when writes wait for storage to recover
+  final ScheduledExecutorService spoolReplayer; // null when there's no spool
+  final MemoryBudget memoryBudget; // null when buffered bytes are bounded per partition only
   volatile Future<?> future;
 
   LazyRegisterEventProcessorFactoryWithHost(EventHubCollector.Builder builder) {
-    host = newEventProcessorHost(builder);
+    ownsExecutor = builder.executor == null && builder.executorThreads > 0;
+    try {
+      executor =
+          ownsExecutor
+              ? Executors.newFixedThreadPool(
+                  builder.executorThreads, new NamedThreadFactory(builder.executorThreadNamePrefix))
+              : builder.executor;
+      if (executor instanceof ThreadPoolExecutor) {
+        registerGauges(builder.eventHubMetrics, (ThreadPoolExecutor) executor);
+      }
+      ownedPartitions = new OwnedPartitions(builder.dedupeMaxSpans);
+      ownedPartitions.registerGauges(builder.eventHubMetrics);
+      checkpointStore = newCheckpointStore(builder);
+      deadLetters =
+          builder.deadLetterDirectory != null
+              ? new DeadLetterSpool(
+                  builder.deadLetterDirectory,
+                  builder.deadLetterMaxFileBytes,
+                  builder.deadLetterMaxFiles)
+              : null;
+      if (builder.spoolDirectory != null) {
+        spool =
+            new WriteAheadSpool(
+                Logger.getLogger(WriteAheadSpool.class.getName()),
+                builder.spoolDirectory,
+                builder.spoolSegmentBytes,
+                builder.spoolMaxSegments);
+        registerGauges(builder.eventHubMetrics, spool);
+        spoolReplayer =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("zipkin-eventhub-spool-"));
+        scheduleReplay(spoolReplayer, spool, builder.storage, builder.spoolReplaySpansPerSecond);
+      } else {
+        spool = null;
+        spoolReplayer = null;
+      }
+      if (builder.memoryBudgetBytes > 0) {
+        memoryBudget = new MemoryBudget(builder.memoryBudgetBytes);
+        memoryBudget.registerGauges(builder.eventHubMetrics);
+      } else {
+        memoryBudget = null;
+      }
+      host = newEventProcessorHost(builder);
+      options = newEventProcessorOptions(builder);
+      decoder = builder.decodeThreads > 0 ? new ParallelDecoder(builder.decodeThreads) : null;
+      checkpointWriter =
+          builder.checkpointFlushMillis > 0
+              ? new CheckpointWriter(builder.checkpointFlushMillis)
+              : null;
+      final HostResources resources =
+          new HostResources()
+              .decoder(decoder)
+              .checkpointWriter(checkpointWriter)
+              .deadLetters(deadLetters)
+              .ownedPartitions(ownedPartitions)
+              .spool(spool)
+              .memoryBudget(memoryBudget);
+
+      // NOTE: for some reason using lambdas occasionally giving java.lang.NoSuchMethodError
+      // exceptions
+      factory =
+          new IEventProcessorFactory<IEventProcessor>() {
+            @Override
+            public IEventProcessor createEventProcessor(PartitionContext context) throws Exception {
+              // Called each time a lease is acquired. The processor registers itself when opened.
+              return new ZipkinEventProcessor(builder, resources);
+            }
+          };
+    } catch (RuntimeException | Error e) {
+      // The caller has nothing to close, so release what was made before the failure
+      try {
+        closeResources();
+      } catch (IOException | RuntimeException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
 
-    // NOTE: for some reason using lambdas occasionally giving java.lang.NoSuchMethodError
-    // exceptions
-    factory =
-        new IEventProcessorFactory<IEventProcessor>() {
+  static void registerGauges(EventHubMetrics metrics, final ThreadPoolExecutor executor) {
+    metrics.gauge(
+        "executor.queue",
+        new EventHubMetrics.Gauge() {
           @Override
-          public IEventProcessor createEventProcessor(PartitionContext context) throws Exception {
-            hosts.putIfAbsent(
-                context.getPartitionId(),
-                new ZipkinEventProcessor(builder.delegate.build(), builder.checkpointBatchSize));
-            return hosts.get(context.getPartitionId());
+          public double value() {
+            return executor.getQueue().size();
           }
-        };
+        });
+    metrics.gauge(
+        "executor.active",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            return executor.getActiveCount();
+          }
+        });
+  }
+
+  static void registerGauges(EventHubMetrics metrics, final WriteAheadSpool spool) {
+    metrics.gauge(
+        "spool.spans",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            return spool.spans();
+          }
+        });
+    metrics.gauge(
+        "spool.bytes",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            return spool.bytes();
+          }
+        });
+  }
+
+  /** Each second, replays up to the given spans from the spool into storage. */
+  static void scheduleReplay(
+      ScheduledExecutorService replayer,
+      final WriteAheadSpool spool,
+      final StorageComponent storage,
+      final int minSpansPerSecond) {
+    replayer.scheduleWithFixedDelay(
+        new Runnable() {
+          long lastNanos = System.nanoTime();
+
+          @Override
+          public void run() {
+            long nanos = System.nanoTime();
+            double storedPerSecond =
+                spool.storedSpans.getAndSet(0) * 1e9 / Math.max(1L, nanos - lastNanos);
+            lastNanos = nanos;
+            // Replay at half the rate partitions write, so that it doesn't crowd them out
+            int maxSpans = (int) Math.min(Integer.MAX_VALUE, storedPerSecond / 2);
+            try {
+              spool.replay(storage, Math.max(minSpansPerSecond, maxSpans));
+            } catch (RuntimeException e) {
+              // don't let an unexpected error stop the schedule
+              spool.logger.log(Level.WARNING, "Cannot replay spool", e);
+            }
+          }
+        },
+        1,
+        1,
+        TimeUnit.SECONDS);
+  }
+
+  static CheckpointStore newCheckpointStore(EventHubCollector.Builder builder) {
+    if (builder.checkpointStore != null || builder.checkpointFile == null) {
+      return builder.checkpointStore;
+    }
+    try {
+      return CheckpointStore.mappedFile(builder.checkpointFile);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   EventProcessorHost newEventProcessorHost(EventHubCollector.Builder builder) {
+    CheckpointStore store = checkpointStore;
+    if (store != null) {
+      store.initialize(builder.processorHost); // the store acquires leases in the host's name
+      if (executor != null) {
+        return new EventProcessorHost(
+            builder.processorHost,
+            builder.name,
+            builder.consumerGroup,
+            builder.connectionString,
+            store,
+            store,
+            executor,
+            RetryPolicy.getDefault());
+      }
+      return new EventProcessorHost(
+          builder.processorHost,
+          builder.name,
+          builder.consumerGroup,
+          builder.connectionString,
+          store,
+          store);
+    }
+    if (executor != null) {
+      return new EventProcessorHost(
+          builder.processorHost,
+          builder.name,
+          builder.consumerGroup,
+          builder.connectionString,
+          builder.storageConnectionString,
+          builder.storageContainer,
+          builder.storageBlobPrefix,
+          executor);
+    }
     return new EventProcessorHost(
         builder.processorHost,
         builder.name,
@@ -62,6 +259,19 @@ class LazyRegisterEventProcessorFactoryWithHost {
         builder.storageBlobPrefix);
   }
 
+  static EventProcessorOptions newEventProcessorOptions(EventHubCollector.Builder builder) {
+    EventProcessorOptions result = EventProcessorOptions.getDefaultOptions();
+    if (builder.maxBatchSize > 0) result.setMaxBatchSize(builder.maxBatchSize);
+    if (builder.prefetchCount > 0) result.setPrefetchCount(builder.prefetchCount);
+    if (builder.receiveTimeoutMillis > 0) {
+      result.setReceiveTimeOut(Duration.ofMillis(builder.receiveTimeoutMillis));
+    }
+    result.setInvokeProcessorAfterReceiveTimeout(builder.invokeProcessorAfterReceiveTimeout);
+    // Needed to report lag, which is the last enqueued sequence number minus the processed one
+    result.setReceiverRuntimeMetricEnabled(true);
+    return result;
+  }
+
   Future<?> get() {
     if (future == null) {
       synchronized (this) {
@@ -83,11 +293,12 @@ class LazyRegisterEventProcessorFactoryWithHost {
     }
   }
 
-  void close() throws InterruptedIOException {
+  void close() throws IOException {
     Future<?> maybeNull = future;
-    if (maybeNull == null) return;
     try {
+      if (maybeNull == null) return;
       maybeNull.cancel(true);
+      // Each partition drains before its lease is released, so this waits for storage writes
       unregisterEventProcessorFactoryFromHost();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
@@ -97,12 +308,28 @@ class LazyRegisterEventProcessorFactoryWithHost {
       throw toThrow;
     } catch (ExecutionException e) {
       throw new IllegalStateException(e.getCause());
+    } finally {
+      closeResources();
     }
   }
 
+  /** Closes what this made. When called from the constructor, later fields are still null. */
+  void closeResources() throws IOException {
+    if (decoder != null) decoder.close();
+    // Processors flush their checkpoints when closed by the host, so this is safe to stop now
+    if (checkpointWriter != null) checkpointWriter.close();
+    if (ownsExecutor && executor != null) executor.shutdown();
+    if (deadLetters != null) deadLetters.close();
+    // Closed after processors, as they spool what storage didn't accept while draining
+    if (spoolReplayer != null) spoolReplayer.shutdownNow();
+    if (spool != null) spool.close();
+    // Closed last, as processors write checkpoints to the store when closed
+    if (checkpointStore != null) checkpointStore.close();
+  }
+
   // Since EventProcessorHost is a final class, it cannot be mocked. Override for testing
   Future<?> registerEventProcessorFactoryWithHost() throws Exception {
-    return host.registerEventProcessorFactory(factory);
+    return host.registerEventProcessorFactory(factory, options);
   }
 
   void unregisterEventProcessorFactoryFromHost() throws InterruptedException, ExecutionException {
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventprocessorhost.Checkpoint;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps checkpoints in a memory-mapped file, so that writing one is a memory copy. The operating
+ * system writes the file back in the background, and when this store is closed.
+ *
+ * <p>The file has a fixed slot per partition, each holding two records. Updates alternate between
+ * them, and each is checksummed. If a record is torn by a crash, the other one, which holds the
+ * previous checkpoint, is read instead. Reading an older checkpoint only redelivers events.
+ */
+final class MappedFileCheckpointStore extends CheckpointStore {
+  static final int MAGIC = 0x5a454843, VERSION = 1; // "ZEHC"
+  static final int HEADER_SIZE = 64, RECORD_SIZE = 128, SLOTS = 1024;
+  static final int MAX_PARTITION_ID_LENGTH = 32, MAX_OFFSET_LENGTH = 64;
+  // record layout
+  static final int COUNTER = 0, SEQUENCE_NUMBER = 8, PARTITION_ID = 16, OFFSET = 49, CRC = 120;
+
+  final Path path;
+  final FileChannel channel;
+  final FileLock lock;
+  final MappedByteBuffer buffer;
+  final int slots;
+  final CRC32 crc = new CRC32(); // guarded by this
+  final byte[] record = new byte[CRC]; // guarded by this
+  final Map<String, Integer> slotByPartitionId = new LinkedHashMap<>(); // guarded by this
+  final long[] counters; // guarded by this, the latest record counter of each slot, 0 when free
+
+  MappedFileCheckpointStore(Path path) throws IOException {
+    this.path = path;
+    channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      lock = tryLock(channel, path);
+      long size = channel.size();
+      boolean created = size == 0;
+      slots = created ? SLOTS : readSlots(channel, path);
+      long expectedSize = HEADER_SIZE + (long) slots * 2 * RECORD_SIZE;
+      if (!created && size != expectedSize) {
+        throw new IOException(path + " is not a checkpoint file: size " + size);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, expectedSize);
+      counters = new long[slots];
+      if (created) {
+        buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slots);
+        buffer.force();
+      } else {
+        load();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  static FileLock tryLock(FileChannel channel, Path path) throws IOException {
+    FileLock result;
+    try {
+      result = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      result = null;
+    }
+    if (result == null) throw new IOException(path + " is in use by another collector");
+    return result;
+  }
+
+  static int readSlots(FileChannel channel, Path path) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(12);
+    while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+    if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException(path + " is not a checkpoint file");
+    }
+    int slots = header.getInt(8);
+    if (slots <= 0) throw new IOException(path + " is not a checkpoint file");
+    return slots;
+  }
+
+  void load() {
+    for (int slot = 0; slot < slots; slot++) {
+      int latest = latestRecord(slot);
+      if (latest == -1) continue;
+      counters[slot] = buffer.getLong(latest + COUNTER);
+      slotByPartitionId.put(readString(latest + PARTITION_ID), slot);
+    }
+  }
+
+  @Override
+  Checkpoint read(String partitionId) {
+    Integer slot = slotByPartitionId.get(partitionId);
+    if (slot == null) return null;
+    int latest = latestRecord(slot);
+    if (latest == -1) return null;
+    return new Checkpoint(
+        partitionId, readString(latest + OFFSET), buffer.getLong(latest + SEQUENCE_NUMBER));
+  }
+
+  @Override
+  void write(Checkpoint checkpoint) {
+    String partitionId = checkpoint.getPartitionId();
+    byte[] partitionIdBytes = encode(partitionId, MAX_PARTITION_ID_LENGTH, "partition ID");
+    byte[] offsetBytes = encode(checkpoint.getOffset(), MAX_OFFSET_LENGTH, "offset");
+    Integer slot = slotByPartitionId.get(partitionId);
+    if (slot == null) slot = allocateSlot(partitionId);
+
+    long counter = counters[slot] + 1;
+    Arrays.fill(record, (byte) 0);
+    ByteBuffer.wrap(record)
+        .putLong(COUNTER, counter)
+        .putLong(SEQUENCE_NUMBER, checkpoint.getSequenceNumber());
+    record[PARTITION_ID] = (byte) partitionIdBytes.length;
+    System.arraycopy(partitionIdBytes, 0, record, PARTITION_ID + 1, partitionIdBytes.length);
+    record[OFFSET] = (byte) offsetBytes.length;
+    System.arraycopy(offsetBytes, 0, record, OFFSET + 1, offsetBytes.length);
+    crc.reset();
+    crc.update(record, 0, CRC);
+
+    // Overwrite the older record, so the latest stays intact if this write is torn
+    int position = recordPosition(slot, (int) (counter & 1));
+    for (int i = 0; i < CRC; i++) buffer.put(position + i, record[i]);
+    buffer.putInt(position + CRC, (int) crc.getValue());
+    counters[slot] = counter;
+  }
+
+  int allocateSlot(String partitionId) {
+    for (int slot = 0; slot < slots; slot++) {
+      if (counters[slot] == 0L) {
+        slotByPartitionId.put(partitionId, slot);
+        return slot;
+      }
+    }
+    throw new IllegalStateException(path + " has no room for partition " + partitionId);
+  }
+
+  @Override
+  void delete(String partitionId) {
+    Integer slot = slotByPartitionId.remove(partitionId);
+    if (slot == null) return;
+    for (int i = 0; i < 2 * RECORD_SIZE; i++) buffer.put(recordPosition(slot, 0) + i, (byte) 0);
+    counters[slot] = 0L;
+  }
+
+  @Override
+  void deleteAll() {
+    for (String partitionId : slotByPartitionId.keySet().toArray(new String[0])) {
+      delete(partitionId);
+    }
+  }
+
+  /** Returns the position of the valid record with the highest counter, or -1 if none. */
+  int latestRecord(int slot) {
+    int result = -1;
+    long resultCounter = 0L;
+    for (int i = 0; i < 2; i++) {
+      int position = recordPosition(slot, i);
+      long counter = buffer.getLong(position + COUNTER);
+      if (counter > resultCounter && isValid(position)) {
+        result = position;
+        resultCounter = counter;
+      }
+    }
+    return result;
+  }
+
+  boolean isValid(int position) {
+    for (int i = 0; i < CRC; i++) record[i] = buffer.get(position + i);
+    crc.reset();
+    crc.update(record, 0, CRC);
+    return (int) crc.getValue() == buffer.getInt(position + CRC);
+  }
+
+  int recordPosition(int slot, int record) {
+    return HEADER_SIZE + (slot * 2 + record) * RECORD_SIZE;
+  }
+
+  String readString(int position) {
+    int length = buffer.get(position) & 0xff;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) bytes[i] = buffer.get(position + 1 + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static byte[] encode(String value, int maxLength, String name) {
+    byte[] result = value.getBytes(StandardCharsets.UTF_8);
+    if (result.length > maxLength) {
+      throw new IllegalArgumentException(name + " longer than " + maxLength + ": " + value);
+    }
+    return result;
+  }
+
+  /** Writes checkpoints back to the file and releases it. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!channel.isOpen()) return;
+    try {
+      buffer.force();
+      lock.release();
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedFileCheckpointStore{" + path + "}";
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the bytes of events whose spans are buffered, across all partitions of a host. A
+ * partition reserves the size of each event, or of a batch decoded in parallel, before decoding.
+ * What it reserved is released when storage acknowledges the spans, they are spooled, or they are
+ * dropped.
+ *
+ * <p>Sizes are of event bodies as received. Decoded spans use several times that on the heap, so
+ * the budget should be a fraction of what can be spared.
+ */
+final class MemoryBudget {
+  final long maxBytes;
+  long usedBytes; // guarded by this
+
+  MemoryBudget(long maxBytes) {
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes <= 0");
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Reserves the bytes if they fit, or if nothing is reserved, so that an event larger than the
+   * budget can still be processed.
+   */
+  synchronized boolean tryReserve(long bytes) {
+    if (usedBytes > 0 && usedBytes + bytes > maxBytes) return false;
+    usedBytes += bytes;
+    return true;
+  }
+
+  /** Like {@link #tryReserve}, except this waits up to the timeout for bytes to be released. */
+  synchronized boolean reserve(long bytes, long timeoutNanos) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    while (!tryReserve(bytes)) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) return false;
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+    }
+    return true;
+  }
+
+  /** Reserves the bytes even if that exceeds the budget. */
+  synchronized void forceReserve(long bytes) {
+    usedBytes += bytes;
+  }
+
+  synchronized void release(long bytes) {
+    if (bytes == 0) return;
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  synchronized long usedBytes() {
+    return usedBytes;
+  }
+
+  void registerGauges(EventHubMetrics metrics) {
+    metrics.gauge(
+        "memory.used",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            return usedBytes();
+          }
+        });
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the partitions this host owns a lease on. A processor is made each time a lease is
+ * acquired, and forgotten when it closes, so per-partition state is only held while owned.
+ *
+ * <p>The exception is the {@link SpanDeduplicator} of a partition, which is kept for a while after
+ * the partition closed cleanly, such as when leases are rebalanced. Leases often return to the same
+ * host, which then receives events it already wrote since the last checkpoint.
+ */
+final class OwnedPartitions {
+  static final long PARKED_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  final int dedupeMaxSpans;
+  final long parkedNanos;
+  final ConcurrentMap<String, ZipkinEventProcessor> owned = new ConcurrentHashMap<>();
+  // Deduplicators of partitions recently closed, oldest first
+  final Map<String, Parked> parked = new LinkedHashMap<>(); // guarded by this
+
+  OwnedPartitions(int dedupeMaxSpans) {
+    this(dedupeMaxSpans, PARKED_MILLIS);
+  }
+
+  OwnedPartitions(int dedupeMaxSpans, long parkedMillis) {
+    this.dedupeMaxSpans = dedupeMaxSpans;
+    this.parkedNanos = TimeUnit.MILLISECONDS.toNanos(parkedMillis);
+  }
+
+  /**
+   * Records the processor as the owner of the partition, returning the deduplicator it should use,
+   * or null if deduplication is disabled.
+   */
+  SpanDeduplicator opened(String partitionId, ZipkinEventProcessor processor) {
+    owned.put(partitionId, processor);
+    if (dedupeMaxSpans <= 0) return null;
+    synchronized (this) {
+      expireParked(System.nanoTime());
+      Parked result = parked.remove(partitionId);
+      return result != null ? result.deduplicator : new SpanDeduplicator(dedupeMaxSpans);
+    }
+  }
+
+  /**
+   * Forgets the processor. Its deduplicator is kept in case the lease returns, but only if the
+   * partition drained: after a lost lease or a drain timeout, it can't be trusted to match what the
+   * next checkpoint covers.
+   *
+   * @param drained true if all spans read were stored and checkpointed before the close
+   */
+  void closed(String partitionId, ZipkinEventProcessor processor, boolean drained) {
+    owned.remove(partitionId, processor);
+    SpanDeduplicator deduplicator = processor.writes.deduplicator;
+    if (deduplicator == null) return;
+    synchronized (this) {
+      long nanoTime = System.nanoTime();
+      expireParked(nanoTime);
+      parked.remove(partitionId); // re-added last, as it is now the newest
+      if (drained) parked.put(partitionId, new Parked(deduplicator, nanoTime));
+    }
+  }
+
+  void expireParked(long nanoTime) {
+    assert Thread.holdsLock(this);
+    for (Iterator<Parked> i = parked.values().iterator(); i.hasNext(); ) {
+      if (nanoTime - i.next().parkedNanos < parkedNanos) return;
+      i.remove();
+    }
+  }
+
+  void registerGauges(EventHubMetrics metrics) {
+    metrics.gauge(
+        "partitions",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            return owned.size();
+          }
+        });
+    if (dedupeMaxSpans <= 0) return;
+    metrics.gauge(
+        "dedupe.entries",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            long result = 0;
+            for (SpanDeduplicator deduplicator : deduplicators()) result += deduplicator.size();
+            return result;
+          }
+        });
+    metrics.gauge(
+        "dedupe.bytes",
+        new EventHubMetrics.Gauge() {
+          @Override
+          public double value() {
+            long result = 0;
+            for (SpanDeduplicator deduplicator : deduplicators()) {
+              result += deduplicator.sizeInBytes();
+            }
+            return result;
+          }
+        });
+  }
+
+  /** Deduplicators of owned partitions, and those kept after their lease was lost. */
+  synchronized List<SpanDeduplicator> deduplicators() {
+    List<SpanDeduplicator> result = new ArrayList<>(owned.size() + parked.size());
+    for (ZipkinEventProcessor processor : owned.values()) {
+      SpanDeduplicator deduplicator = processor.writes.deduplicator;
+      if (deduplicator != null) result.add(deduplicator);
+    }
+    for (Parked p : parked.values()) result.add(p.deduplicator);
+    return result;
+  }
+
+  static final class Parked {
+    final SpanDeduplicator deduplicator;
+    final long parkedNanos;
+
+    Parked(SpanDeduplicator deduplicator, long parkedNanos) {
+      this.deduplicator = deduplicator;
+      this.parkedNanos = parkedNanos;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import zipkin2.Span;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+/**
+ * Decodes the events of a batch on a worker pool. Results are read back in the same order as the
+ * events, so storage writes and checkpoints stay in offset order.
+ *
+ * <p>Rather than a task per event, consecutive events with the same declared encoding are decoded
+ * together, split so that each thread gets a share of the batch.
+ */
+final class ParallelDecoder {
+  final ExecutorService executor;
+  final int parallelism;
+  // Each decode thread reuses its own inflaters
+  final ThreadLocal<EventBodies> bodies =
+      new ThreadLocal<EventBodies>() {
+        @Override
+        protected EventBodies initialValue() {
+          return new EventBodies();
+        }
+      };
+
+  ParallelDecoder(int threads) {
+    this(
+        Executors.newFixedThreadPool(threads, new NamedThreadFactory("zipkin-eventhub-decode-")),
+        threads);
+  }
+
+  ParallelDecoder(ExecutorService executor, int parallelism) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /** Returns futures of the events' spans, which together are in the same order as the input. */
+  List<Future<Decoded>> decodeAll(
+      List<EventData> events, EventEncodings encodings, PartitionMetrics partitionMetrics) {
+    int length = events.size();
+    List<Future<Decoded>> result = new ArrayList<>(Math.min(length, parallelism * 2));
+    if (length == 0) return result;
+    int maxChunk = (length + parallelism - 1) / parallelism;
+    int from = 0;
+    EventEncodings.Declared encoding = encodings.encoding(events.get(0));
+    for (int i = 1; i <= length; i++) {
+      EventEncodings.Declared next = i < length ? encodings.encoding(events.get(i)) : null;
+      if (i == length || next != encoding || i - from == maxChunk) {
+        result.add(executor.submit(new DecodeChunk(events, from, i, encoding, partitionMetrics)));
+        from = i;
+        encoding = next;
+      }
+    }
+    return result;
+  }
+
+  /** The spans of consecutive events. An event which couldn't be decoded has no spans. */
+  static final class Decoded {
+    final List<List<Span>> spans;
+    final int[] spansRead; // includes spans skipped by sampling
+    final RuntimeException[] errors; // null for events which were decoded
+
+    Decoded(int size) {
+      spans = new ArrayList<>(size);
+      spansRead = new int[size];
+      errors = new RuntimeException[size];
+    }
+  }
+
+  final class DecodeChunk implements Callable<Decoded> {
+    final List<EventData> events;
+    final int from, to;
+    final EventEncodings.Declared encoding;
+    final PartitionMetrics partitionMetrics;
+
+    DecodeChunk(
+        List<EventData> events,
+        int from,
+        int to,
+        EventEncodings.Declared encoding,
+        PartitionMetrics partitionMetrics) {
+      this.events = events;
+      this.from = from;
+      this.to = to;
+      this.encoding = encoding;
+      this.partitionMetrics = partitionMetrics;
+    }
+
+    @Override
+    public Decoded call() {
+      EventBodies bodies = ParallelDecoder.this.bodies.get();
+      Decoded result = new Decoded(to - from);
+      for (int i = from; i < to; i++) {
+        EventData event = events.get(i);
+        long startNanos = System.nanoTime();
+        try {
+          byte[] bytes = bodies.read(event, event.getBytes());
+          List<Span> spans = new ArrayList<>();
+          result.spansRead[i - from] = encoding.decodeList(bytes, spans);
+          result.spans.add(spans);
+        } catch (RuntimeException e) {
+          result.spans.add(Collections.<Span>emptyList()); // don't write part of a malformed event
+          result.errors[i - from] = e; // handled when the caller reaches this event
+        } finally {
+          partitionMetrics.recordDecodeNanos(System.nanoTime() - startNanos);
+        }
+      }
+      return result;
+    }
+  }
+
+  /** Waits for decoding to complete, rethrowing any unexpected error as-is. */
+  static Decoded await(Future<Decoded> decoded) throws InterruptedException, ExecutionException {
+    try {
+      return decoded.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  void close() {
+    executor.shutdownNow();
+  }
+}
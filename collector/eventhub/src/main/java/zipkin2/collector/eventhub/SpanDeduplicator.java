@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.List;
+import zipkin2.Span;
+
+/**
+ * Drops spans a partition already stored, such as those redelivered after its lease returns to this
+ * host. Everything since the last checkpoint is redelivered then, which would otherwise be written
+ * to storage again.
+ *
+ * <p>Spans are only remembered once storage acknowledged them, or they were spooled. Spans read
+ * again before that, such as those buffered when a lease was lost, are not mistaken for duplicates.
+ *
+ * <p>A span is remembered by a 64-bit fingerprint of its trace ID, span ID and shared flag, mixed
+ * with the hash of its other fields. The latter keeps pieces of a span reported separately, such as
+ * a late annotation, from being mistaken for a redelivery.
+ *
+ * <p>Memory is fixed at construction: the last {@code maxSpans} fingerprints are kept, and the
+ * oldest is forgotten first. This is an exact set, except for fingerprint collisions, so spans not
+ * seen before are not dropped as they could be with a bloom filter.
+ */
+final class SpanDeduplicator {
+  static final int MAX_SPANS_LIMIT = 1 << 28;
+
+  final long[] ring; // fingerprints in the order added, overwritten oldest first
+  final long[] table; // open addressing with linear probing; 0 means empty
+  final int mask;
+  int next, size;
+
+  SpanDeduplicator(int maxSpans) {
+    if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+    if (maxSpans > MAX_SPANS_LIMIT) {
+      throw new IllegalArgumentException("maxSpans > " + MAX_SPANS_LIMIT);
+    }
+    ring = new long[maxSpans];
+    // At most half full, so that probes stay short
+    table = new long[Integer.highestOneBit(maxSpans * 2 - 1) << 1];
+    mask = table.length - 1;
+  }
+
+  /**
+   * Removes spans at or after {@code fromIndex} which were {@link #stored} before. Returns how many
+   * were removed.
+   */
+  synchronized int removeDuplicates(List<Span> spans, int fromIndex) {
+    int length = spans.size(), kept = fromIndex;
+    for (int i = fromIndex; i < length; i++) {
+      Span span = spans.get(i);
+      if (contains(fingerprint(span))) continue;
+      if (kept != i) spans.set(kept, span);
+      kept++;
+    }
+    if (kept < length) spans.subList(kept, length).clear();
+    return length - kept;
+  }
+
+  /** Remembers spans acknowledged by storage, so that they are dropped if read again. */
+  synchronized void stored(List<Span> spans) {
+    for (int i = 0, length = spans.size(); i < length; i++) add(fingerprint(spans.get(i)));
+  }
+
+  boolean contains(long fingerprint) {
+    for (int i = slot(fingerprint); table[i] != 0L; i = (i + 1) & mask) {
+      if (table[i] == fingerprint) return true;
+    }
+    return false;
+  }
+
+  /** Returns false if the fingerprint was already present. */
+  boolean add(long fingerprint) {
+    int i = slot(fingerprint);
+    for (long existing; (existing = table[i]) != 0L; i = (i + 1) & mask) {
+      if (existing == fingerprint) return false;
+    }
+    if (size == ring.length) {
+      remove(ring[next]);
+      i = slot(fingerprint); // the removal may have moved entries
+      while (table[i] != 0L) i = (i + 1) & mask;
+    } else {
+      size++;
+    }
+    table[i] = fingerprint;
+    ring[next] = fingerprint;
+    next = next + 1 == ring.length ? 0 : next + 1;
+    return true;
+  }
+
+  /** Removes a present fingerprint, shifting back entries whose probe sequence crossed it. */
+  void remove(long fingerprint) {
+    int hole = slot(fingerprint);
+    while (table[hole] != fingerprint) hole = (hole + 1) & mask;
+    table[hole] = 0L;
+    for (int i = (hole + 1) & mask; table[i] != 0L; i = (i + 1) & mask) {
+      int home = slot(table[i]);
+      // Leave the entry if its home slot is cyclically after the hole, up to where it is now
+      boolean reachable = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+      if (reachable) continue;
+      table[hole] = table[i];
+      table[i] = 0L;
+      hole = i;
+    }
+  }
+
+  int slot(long fingerprint) {
+    return (int) fingerprint & mask;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /** The bytes allocated to remember spans. */
+  long sizeInBytes() {
+    return 8L * (ring.length + table.length);
+  }
+
+  static long fingerprint(Span span) {
+    long h = 1125899906842597L;
+    h = hash(h, span.traceId());
+    h = hash(h, span.id());
+    h = 31 * h + (Boolean.TRUE.equals(span.shared()) ? 1 : 2);
+    h = 31 * h + span.hashCode();
+    // Spread bits, as slots are taken from the low ones (MurmurHash3 finalizer)
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h != 0L ? h : 1L; // 0 marks an empty slot
+  }
+
+  static long hash(long h, String value) {
+    for (int i = 0, length = value.length(); i < length; i++) h = 31 * h + value.charAt(i);
+    return h;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Span;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+/**
+ * Reorders a write so that spans of the same trace are adjacent. Spans of a trace arrive spread
+ * across events, so in arrival order, a write to storage that clusters by trace ID touches the
+ * same trace many times.
+ */
+final class TraceGrouping {
+
+  /**
+   * Returns the spans grouped by trace ID, in the order each trace was first seen. Spans within a
+   * trace keep their order. The input is returned when it is already grouped.
+   *
+   * <p>This records the traces in the write and how many runs of adjacent spans they were split
+   * into before grouping. Runs divided by traces is how much grouping was achieved.
+   */
+  static List<Span> groupByTrace(List<Span> spans, PartitionMetrics partitionMetrics) {
+    int length = spans.size();
+    if (length == 0) return spans;
+
+    Map<String, Integer> traceIndexes = new HashMap<>();
+    int[] traceIndexOfSpan = new int[length];
+    int runs = 0;
+    String lastTraceId = null;
+    for (int i = 0; i < length; i++) {
+      String traceId = spans.get(i).traceId();
+      if (!traceId.equals(lastTraceId)) {
+        runs++;
+        lastTraceId = traceId;
+      }
+      Integer traceIndex = traceIndexes.get(traceId);
+      if (traceIndex == null) {
+        traceIndex = traceIndexes.size();
+        traceIndexes.put(traceId, traceIndex);
+      }
+      traceIndexOfSpan[i] = traceIndex;
+    }
+    int traces = traceIndexes.size();
+    partitionMetrics.recordTraceGrouping(traces, runs);
+    if (runs == traces) return spans; // each trace is already one run
+
+    // Counting sort by trace index, which is stable
+    int[] offsets = new int[traces + 1];
+    for (int i = 0; i < length; i++) offsets[traceIndexOfSpan[i] + 1]++;
+    for (int i = 1; i < traces; i++) offsets[i] += offsets[i - 1];
+    Span[] grouped = new Span[length];
+    for (int i = 0; i < length; i++) grouped[offsets[traceIndexOfSpan[i]]++] = spans.get(i);
+    return Arrays.asList(grouped);
+  }
+}
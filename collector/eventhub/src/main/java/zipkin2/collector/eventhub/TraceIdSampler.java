@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import zipkin2.Span;
+import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.Encoding;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+
+/**
+ * Drops spans the {@link CollectorSampler} wouldn't keep before they are decoded. Only the trace ID
+ * and debug flag of each span are read from the encoded list. Kept spans are copied into a smaller
+ * list of the same encoding, which is then decoded as usual. At low sample rates, this avoids
+ * decoding most spans only to drop them.
+ *
+ * <p>A list which can't be read here is left as-is, so that the decoder reports any error. Its
+ * spans are then sampled after decoding, as they would be otherwise.
+ */
+final class TraceIdSampler {
+  static final byte[] TRACE_ID = "traceId".getBytes(StandardCharsets.UTF_8);
+  static final byte[] DEBUG = "debug".getBytes(StandardCharsets.UTF_8);
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  static final int MAX_THRIFT_DEPTH = 32;
+
+  /** Returns null when the sampler keeps all spans, as there would be nothing to drop. */
+  static TraceIdSampler create(CollectorSampler sampler, CollectorMetrics metrics) {
+    // The sampler compares the absolute value of the trace ID to a boundary, which is only at the
+    // maximum when the sample rate is 1.0.
+    if (sampler.isSampled("7fffffffffffffff", false)) return null;
+    return new TraceIdSampler(sampler, metrics);
+  }
+
+  final CollectorSampler sampler;
+  final CollectorMetrics metrics;
+
+  TraceIdSampler(CollectorSampler sampler, CollectorMetrics metrics) {
+    this.sampler = sampler;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the spans of the list which are sampled, or null if all were, or the list couldn't be
+   * read. Dropped spans are counted, as they won't be seen after decoding.
+   */
+  Sampled sample(BytesDecoder<Span> decoder, byte[] list) {
+    Sampled result = new Sampled(decoder.encoding(), list);
+    boolean read;
+    try {
+      switch (result.encoding) {
+        case PROTO3:
+          read = result.readProto3();
+          break;
+        case THRIFT:
+          read = result.readThrift();
+          break;
+        case JSON:
+          read = result.readJson();
+          break;
+        default:
+          read = false;
+      }
+    } catch (RuntimeException e) { // such as out of bounds or a trace ID that isn't hex
+      read = false;
+    }
+    if (!read || result.dropped == 0) return null;
+    metrics.incrementSpans(result.dropped);
+    metrics.incrementSpansDropped(result.dropped);
+    return result;
+  }
+
+  /** Reads one encoded list, tracking the position of each span that was sampled. */
+  final class Sampled {
+    final Encoding encoding;
+    final byte[] list;
+    int pos;
+    int[] kept = new int[16]; // pairs of start and end positions
+    int keptCount, keptBytes, dropped;
+
+    Sampled(Encoding encoding, byte[] list) {
+      this.encoding = encoding;
+      this.list = list;
+    }
+
+    /** Returns a list of the same encoding, holding only sampled spans. */
+    byte[] list() {
+      switch (encoding) {
+        case THRIFT: // a list of structs has the element type, then 32-bit count
+          byte[] thrift = new byte[5 + keptBytes];
+          thrift[0] = 12;
+          writeIntBE(thrift, 1, keptCount);
+          copyKept(thrift, 5, 0);
+          return thrift;
+        case JSON:
+          if (keptCount == 0) return new byte[] {'[', ']'};
+          byte[] json = new byte[2 + keptBytes + keptCount - 1];
+          json[0] = '[';
+          copyKept(json, 1, ',');
+          json[json.length - 1] = ']';
+          return json;
+        default: // proto3 is a concatenation of list entries
+          byte[] proto3 = new byte[keptBytes];
+          copyKept(proto3, 0, 0);
+          return proto3;
+      }
+    }
+
+    void copyKept(byte[] out, int pos, int separator) {
+      for (int i = 0; i < keptCount; i++) {
+        if (separator != 0 && i > 0) out[pos++] = (byte) separator;
+        int start = kept[i * 2], length = kept[i * 2 + 1] - start;
+        System.arraycopy(list, start, out, pos, length);
+        pos += length;
+      }
+    }
+
+    void span(int start, int end, String traceId, boolean debug) {
+      if (!sampler.isSampled(traceId, debug)) {
+        dropped++;
+        return;
+      }
+      if (kept.length == keptCount * 2) kept = Arrays.copyOf(kept, kept.length * 2);
+      kept[keptCount * 2] = start;
+      kept[keptCount * 2 + 1] = end;
+      keptCount++;
+      keptBytes += end - start;
+    }
+
+    /** Reads a ListOfSpans, where each span is field 1, trace_id is field 1 and debug field 12. */
+    boolean readProto3() {
+      while (pos < list.length) {
+        int start = pos;
+        if (readVarint() != (1 << 3 | 2)) return false;
+        int end = readLength();
+        long traceId = 0;
+        boolean hasTraceId = false, debug = false;
+        while (pos < end) {
+          long key = readVarint();
+          int field = (int) (key >>> 3), wireType = (int) (key & 7);
+          if (field == 1 && wireType == 2) {
+            int idEnd = readLength(), length = idEnd - pos;
+            if (length != 8 && length != 16) return false;
+            traceId = readLongBE(idEnd - 8); // the sampler only considers the lower 64 bits
+            hasTraceId = true;
+            pos = idEnd;
+          } else if (field == 12 && wireType == 0) {
+            debug = readVarint() != 0;
+          } else if (wireType == 0) {
+            readVarint();
+          } else if (wireType == 1) {
+            pos += 8;
+          } else if (wireType == 2) {
+            pos = readLength();
+          } else if (wireType == 5) {
+            pos += 4;
+          } else {
+            return false;
+          }
+        }
+        if (pos != end || !hasTraceId) return false;
+        span(start, end, toLowerHex(traceId), debug);
+      }
+      return true;
+    }
+
+    long readVarint() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = list[pos++];
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return result;
+      }
+      throw new IllegalArgumentException("malformed varint");
+    }
+
+    /** Reads a length prefix, returning the end position of the value that follows. */
+    int readLength() {
+      long length = readVarint();
+      if (length < 0 || length > list.length - pos) throw new IllegalArgumentException();
+      return pos + (int) length;
+    }
+
+    /** Reads a list of v1 thrift spans, where trace_id is field 1 and debug field 9. */
+    boolean readThrift() {
+      if (list.length < 5 || list[0] != 12) return false;
+      int size = readIntBE(1);
+      pos = 5;
+      for (int i = 0; i < size; i++) {
+        int start = pos;
+        long traceId = 0;
+        boolean hasTraceId = false, debug = false;
+        for (byte type = list[pos++]; type != 0; type = list[pos++]) {
+          int field = (list[pos] & 0xff) << 8 | (list[pos + 1] & 0xff);
+          pos += 2;
+          if (field == 1 && type == 10) {
+            traceId = readLongBE(pos);
+            hasTraceId = true;
+            pos += 8;
+          } else if (field == 9 && type == 2) {
+            debug = list[pos++] != 0;
+          } else {
+            skipThrift(type, 0);
+          }
+        }
+        if (!hasTraceId) return false;
+        span(start, pos, toLowerHex(traceId), debug);
+      }
+      return pos == list.length;
+    }
+
+    void skipThrift(byte type, int depth) {
+      if (depth > MAX_THRIFT_DEPTH) throw new IllegalArgumentException("too deep");
+      switch (type) {
+        case 2: // bool
+        case 3: // byte
+          pos += 1;
+          break;
+        case 6: // i16
+          pos += 2;
+          break;
+        case 8: // i32
+          pos += 4;
+          break;
+        case 4: // double
+        case 10: // i64
+          pos += 8;
+          break;
+        case 11: // binary
+          int length = readIntBE(pos);
+          if (length < 0) throw new IllegalArgumentException();
+          pos += 4 + length;
+          break;
+        case 12: // struct
+          for (byte fieldType = list[pos++]; fieldType != 0; fieldType = list[pos++]) {
+            pos += 2;
+            skipThrift(fieldType, depth + 1);
+          }
+          break;
+        case 13: // map
+          byte keyType = list[pos], valueType = list[pos + 1];
+          int entries = readIntBE(pos + 2);
+          pos += 6;
+          for (int i = 0; i < entries; i++) {
+            skipThrift(keyType, depth + 1);
+            skipThrift(valueType, depth + 1);
+          }
+          break;
+        case 14: // set
+        case 15: // list
+          byte elementType = list[pos];
+          int elements = readIntBE(pos + 1);
+          pos += 5;
+          for (int i = 0; i < elements; i++) skipThrift(elementType, depth + 1);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown type " + type);
+      }
+      if (pos > list.length) throw new IllegalArgumentException();
+    }
+
+    /** Reads a json array of span objects, where traceId and debug are top-level fields. */
+    boolean readJson() {
+      pos = skipWhitespace(0);
+      if (list[pos++] != '[') return false;
+      pos = skipWhitespace(pos);
+      if (list[pos] == ']') return skipWhitespace(pos + 1) == list.length;
+      while (true) {
+        if (list[pos] != '{') return false;
+        int start = pos;
+        if (!readJsonSpan(start)) return false;
+        pos = skipWhitespace(pos);
+        byte next = list[pos++];
+        if (next == ']') return skipWhitespace(pos) == list.length;
+        if (next != ',') return false;
+        pos = skipWhitespace(pos);
+      }
+    }
+
+    boolean readJsonSpan(int start) {
+      String traceId = null;
+      boolean debug = false;
+      byte[] field = null; // the field at depth 1 whose value is next
+      int depth = 0;
+      while (true) {
+        byte b = list[pos++];
+        switch (b) {
+          case '{':
+          case '[':
+            depth++;
+            field = null;
+            break;
+          case '}':
+          case ']':
+            if (--depth > 0) break;
+            if (traceId == null) return false;
+            span(start, pos, traceId, debug);
+            return true;
+          case '"':
+            int stringStart = pos;
+            boolean escaped = false;
+            for (byte c = list[pos++]; c != '"'; c = list[pos++]) {
+              if (c == '\\') {
+                escaped = true;
+                pos++;
+              }
+            }
+            if (depth != 1) break;
+            int stringEnd = pos - 1;
+            if (field == TRACE_ID) {
+              if (escaped) return false;
+              traceId = new String(list, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+              field = null;
+              break;
+            }
+            field = null;
+            int colon = skipWhitespace(pos);
+            if (list[colon] != ':') break;
+            if (equals(TRACE_ID, stringStart, stringEnd)) {
+              field = TRACE_ID;
+            } else if (equals(DEBUG, stringStart, stringEnd)) {
+              field = DEBUG;
+            }
+            pos = colon + 1;
+            break;
+          case 't': // true is the only literal with a 't'
+            if (depth == 1 && field == DEBUG) debug = true;
+            field = null;
+            break;
+          case ',':
+            field = null;
+            break;
+          default:
+        }
+      }
+    }
+
+    boolean equals(byte[] expected, int start, int end) {
+      if (end - start != expected.length) return false;
+      for (int i = 0; i < expected.length; i++) {
+        if (list[start + i] != expected[i]) return false;
+      }
+      return true;
+    }
+
+    int skipWhitespace(int pos) {
+      while (pos < list.length) {
+        byte b = list[pos];
+        if (b != ' ' && b != '\t' && b != '\r' && b != '\n') break;
+        pos++;
+      }
+      return pos;
+    }
+
+    int readIntBE(int pos) {
+      return (list[pos] & 0xff) << 24
+          | (list[pos + 1] & 0xff) << 16
+          | (list[pos + 2] & 0xff) << 8
+          | (list[pos + 3] & 0xff);
+    }
+
+    long readLongBE(int pos) {
+      return (readIntBE(pos) & 0xffffffffL) << 32 | (readIntBE(pos + 4) & 0xffffffffL);
+    }
+  }
+
+  static void writeIntBE(byte[] out, int pos, int value) {
+    out[pos] = (byte) (value >>> 24);
+    out[pos + 1] = (byte) (value >>> 16);
+    out[pos + 2] = (byte) (value >>> 8);
+    out[pos + 3] = (byte) value;
+  }
+
+  static String toLowerHex(long value) {
+    char[] result = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      result[i] = HEX_DIGITS[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+    return new String(result);
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Keeps spans that storage didn't accept in segmented, append-only, memory-mapped files. Partitions
+ * checkpoint past spooled spans instead of stalling, and {@link #replay} drains them into storage,
+ * oldest first, once it recovers.
+ *
+ * <p>Each segment starts with a header holding how far it was replayed, followed by records: the
+ * length, span count and CRC32 of the spans, then the spans encoded as proto3. The length is
+ * written last and the segment is forced to disk before {@link #append} returns, so a record torn
+ * by a crash is ignored. A segment is deleted once replayed. Segments left by a previous run are
+ * replayed, but not appended to. As the replayed position isn't forced, a crash can replay a few
+ * records twice.
+ */
+final class WriteAheadSpool implements Closeable {
+  static final int MAGIC = 0x5a454857, VERSION = 1; // "ZEHW"
+  static final int HEADER_SIZE = 16, REPLAYED = 8;
+  // record layout
+  static final int LENGTH = 0, SPAN_COUNT = 4, CRC = 8, RECORD_HEADER_SIZE = 12;
+  static final String PREFIX = "spool-", SUFFIX = ".seg";
+
+  final Logger logger;
+  final Path directory;
+  final int segmentBytes, maxSegments;
+  final ArrayDeque<Segment> segments = new ArrayDeque<>(); // guarded by this, oldest first
+  final CRC32 crc = new CRC32(); // guarded by this
+  FileChannel lockChannel; // guarded by this, null until opened
+  FileLock lock; // guarded by this, null until opened
+  int nextIndex; // guarded by this
+  long spans, bytes; // guarded by this, spooled but not yet replayed
+  // Not guarded by this, so storage callbacks don't wait on a spool being forced to disk
+  final AtomicLong storedSpans = new AtomicLong(); // written by partitions since the last replay
+  boolean closed; // guarded by this
+
+  /** The directory is only read or created once spans are spooled or replayed. */
+  WriteAheadSpool(Logger logger, Path directory, int segmentBytes, int maxSegments) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    if (segmentBytes <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("segmentBytes <= " + (HEADER_SIZE + RECORD_HEADER_SIZE));
+    }
+    if (maxSegments <= 0) throw new IllegalArgumentException("maxSegments <= 0");
+    this.logger = logger;
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+  }
+
+  /**
+   * Appends the spans, forcing them to disk before returning true. Returns false when the spool is
+   * full, so that the caller can hold the spans until storage accepts them.
+   */
+  synchronized boolean append(List<Span> spans) throws IOException {
+    if (closed) return false;
+    open();
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(spans);
+    int recordSize = RECORD_HEADER_SIZE + encoded.length;
+    if (recordSize > segmentBytes - HEADER_SIZE) return false; // would never fit
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.sealed || segment.remaining() < recordSize) {
+      if (segments.size() >= maxSegments) return false;
+      if (segment != null) segment.sealed = true;
+      segment = newSegment();
+      segments.add(segment);
+    }
+
+    int position = segment.writePosition;
+    crc.reset();
+    crc.update(encoded, 0, encoded.length);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(position + RECORD_HEADER_SIZE);
+    buffer.put(encoded);
+    segment.buffer.putInt(position + SPAN_COUNT, spans.size());
+    segment.buffer.putInt(position + CRC, (int) crc.getValue());
+    segment.buffer.putInt(position + LENGTH, encoded.length); // last, as it makes the record valid
+    segment.buffer.force();
+    segment.writePosition += recordSize;
+    this.spans += spans.size();
+    this.bytes += recordSize;
+    return true;
+  }
+
+  /**
+   * Writes spooled spans to storage, oldest first, until at least the given count were written or a
+   * write fails. Returns the count written. This is called periodically from one thread.
+   */
+  int replay(StorageComponent storage, int maxSpans) {
+    int result = 0;
+    while (result < maxSpans) {
+      Record record;
+      try {
+        record = next();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot read spool in " + directory, e);
+        return result;
+      }
+      if (record == null) break;
+      try {
+        storage.spanConsumer().accept(record.spans).execute();
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.FINE, "Storage is not accepting spooled spans; will retry", e);
+        return result;
+      }
+      replayed(record);
+      result += record.spans.size();
+    }
+    return result;
+  }
+
+  /** Returns the oldest record not yet replayed, or null if there is none. */
+  synchronized Record next() throws IOException {
+    if (closed) return null;
+    open();
+    while (!segments.isEmpty()) {
+      Segment segment = segments.peek();
+      int position = segment.readPosition;
+      byte[] encoded = segment.read(position, crc);
+      if (encoded != null) {
+        try {
+          return new Record(segment, position, SpanBytesDecoder.PROTO3.decodeList(encoded));
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Dropped a spool record which couldn't be decoded", e);
+          replayed(new Record(segment, position, Collections.<Span>emptyList()));
+          continue;
+        }
+      }
+      if (!segment.sealed) return null; // still being appended to
+      if (segment.readPosition < segment.writePosition) {
+        logger.log(Level.WARNING, "Dropped the rest of corrupt spool segment " + segment.path);
+        spans -= segment.spansAfter(segment.readPosition);
+        bytes -= segment.writePosition - segment.readPosition;
+      }
+      segments.poll();
+      Files.deleteIfExists(segment.path);
+    }
+    return null;
+  }
+
+  /** Marks the record replayed, so that it isn't read again. */
+  synchronized void replayed(Record record) {
+    Segment segment = record.segment;
+    if (closed || segment.readPosition != record.position) return; // already dropped
+    int recordSize = segment.recordSize(record.position);
+    segment.readPosition += recordSize;
+    segment.buffer.putInt(REPLAYED, segment.readPosition);
+    spans -= segment.buffer.getInt(record.position + SPAN_COUNT);
+    bytes -= recordSize;
+  }
+
+  synchronized long spans() {
+    return spans;
+  }
+
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Locks the directory and reads segments left by a previous run. This sets {@link #nextIndex}.
+   */
+  void open() throws IOException {
+    assert Thread.holdsLock(this);
+    if (lock != null) return;
+    Files.createDirectories(directory);
+    Path lockFile = directory.resolve("spool.lock");
+    FileChannel channel =
+        FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      lock = MappedFileCheckpointStore.tryLock(channel, directory);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    lockChannel = channel;
+
+    List<Integer> indexes = new ArrayList<>();
+    String glob = PREFIX + "*" + SUFFIX;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+      for (Path file : stream) {
+        int index = index(file.getFileName().toString());
+        if (index >= 0) indexes.add(index);
+      }
+    }
+    Collections.sort(indexes);
+    for (int index : indexes) {
+      Segment segment = Segment.open(file(index), crc);
+      if (segment == null) {
+        logger.log(Level.WARNING, "Ignoring " + file(index) + " as it is not a spool segment");
+        continue;
+      }
+      segments.add(segment);
+      spans += segment.spansAfter(segment.readPosition);
+      bytes += segment.writePosition - segment.readPosition;
+    }
+    nextIndex = indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1) + 1;
+  }
+
+  Segment newSegment() throws IOException {
+    Path path = file(nextIndex++);
+    try (FileChannel channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(REPLAYED, HEADER_SIZE);
+      return new Segment(path, buffer, HEADER_SIZE, HEADER_SIZE);
+    }
+  }
+
+  Path file(int index) {
+    return directory.resolve(String.format("%s%06d%s", PREFIX, index, SUFFIX));
+  }
+
+  /** Returns the index of a segment file name, or -1 if it isn't one. */
+  static int index(String fileName) {
+    if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) return -1;
+    String digits = fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length());
+    try {
+      return Integer.parseInt(digits);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Forces appended spans to disk and releases the directory. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    for (Segment segment : segments) segment.buffer.force(); // includes replayed positions
+    segments.clear();
+    if (lock == null) return;
+    try {
+      lock.release();
+    } finally {
+      lockChannel.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "WriteAheadSpool{" + directory + "}";
+  }
+
+  static final class Record {
+    final Segment segment;
+    final int position;
+    final List<Span> spans;
+
+    Record(Segment segment, int position, List<Span> spans) {
+      this.segment = segment;
+      this.position = position;
+      this.spans = spans;
+    }
+  }
+
+  static final class Segment {
+    final Path path;
+    final MappedByteBuffer buffer;
+    int readPosition, writePosition;
+    boolean sealed; // no longer appended to
+
+    Segment(Path path, MappedByteBuffer buffer, int readPosition, int writePosition) {
+      this.path = path;
+      this.buffer = buffer;
+      this.readPosition = readPosition;
+      this.writePosition = writePosition;
+    }
+
+    /** Maps a segment left by a previous run, or returns null if the file isn't one. */
+    static Segment open(Path path, CRC32 crc) throws IOException {
+      try (FileChannel channel =
+          FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) return null;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+        int replayed = buffer.getInt(REPLAYED);
+        if (replayed < HEADER_SIZE || replayed > size) return null;
+        Segment result = new Segment(path, buffer, replayed, replayed);
+        // Records end at the first that is empty or torn
+        for (int position = replayed; result.read(position, crc) != null; ) {
+          position += result.recordSize(position);
+          result.writePosition = position;
+        }
+        result.sealed = true;
+        return result;
+      }
+    }
+
+    int remaining() {
+      return buffer.capacity() - writePosition;
+    }
+
+    int recordSize(int position) {
+      return RECORD_HEADER_SIZE + buffer.getInt(position + LENGTH);
+    }
+
+    /** Returns the encoded spans of a valid record at the position, or null if there is none. */
+    byte[] read(int position, CRC32 crc) {
+      if (position > buffer.capacity() - RECORD_HEADER_SIZE) return null;
+      int length = buffer.getInt(position + LENGTH);
+      if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) return null;
+      byte[] result = new byte[length];
+      ByteBuffer record = buffer.duplicate();
+      record.position(position + RECORD_HEADER_SIZE);
+      record.get(result);
+      crc.reset();
+      crc.update(result, 0, length);
+      return (int) crc.getValue() == buffer.getInt(position + CRC) ? result : null;
+    }
+
+    /** Counts spans in records from the position up to where appends stopped. */
+    long spansAfter(int position) {
+      long result = 0;
+      for (; position < writePosition; position += recordSize(position)) {
+        result += buffer.getInt(position + SPAN_COUNT);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import zipkin2.Span;
+
+/**
+ * Accumulates spans from a partition until a storage write is due. This is what allows storage
+ * writes to be larger than the interval between checkpoints.
+ *
+ * <p>When no limit is set, this never reports a write as due. In that case, the caller writes
+ * whenever it checkpoints and at the end of each callback.
+ */
+final class WriteBuffer {
+  final int maxBytes;
+  final long lingerNanos;
+  final boolean hasLimits;
+  final MemoryBudget budget; // null when memory isn't bounded
+  int maxSpans; // changed when sizes are adaptive
+
+  List<Span> spans = new ArrayList<>();
+  int sizeInBytes;
+  long reservedBytes; // from the budget, passed to the write when drained
+  long firstAddNanos;
+  EventData lastEvent;
+
+  WriteBuffer(int maxSpans, int maxBytes, long lingerMillis, MemoryBudget budget) {
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.hasLimits = maxSpans > 0 || maxBytes > 0 || lingerNanos > 0;
+    this.budget = budget;
+  }
+
+  /**
+   * Returns true when spans are held across callbacks until a limit is reached. This is decided by
+   * the limits at construction, including an adaptive {@link #maxSpans}, which is always positive.
+   */
+  boolean hasLimits() {
+    return hasLimits;
+  }
+
+  boolean isEmpty() {
+    return lastEvent == null;
+  }
+
+  /**
+   * Adds the spans decoded from an event, returning how many were added.
+   *
+   * @param sizeInBytes the encoded size of the event body
+   */
+  int add(List<Span> nextSpans, int sizeInBytes, EventData event, long nanoTime) {
+    spans.addAll(nextSpans);
+    added(sizeInBytes, event, nanoTime);
+    return nextSpans.size();
+  }
+
+  /**
+   * Decodes the event body directly into this buffer, returning how many spans were read. This
+   * avoids allocating a list per event. Spans skipped by sampling are read, but not added.
+   *
+   * @param sizeInBytes the size of the event body as received, which is smaller than the bytes
+   *     decoded when it was compressed
+   */
+  int decode(
+      EventEncodings.Declared encoding,
+      byte[] bytes,
+      int sizeInBytes,
+      EventData event,
+      long nanoTime) {
+    int before = spans.size(), spansRead;
+    try {
+      spansRead = encoding.decodeList(bytes, spans);
+    } catch (RuntimeException e) {
+      spans.subList(before, spans.size()).clear(); // don't write part of a malformed event
+      throw e;
+    }
+    added(sizeInBytes, event, nanoTime);
+    return spansRead;
+  }
+
+  void added(int sizeInBytes, EventData event, long nanoTime) {
+    if (isEmpty()) firstAddNanos = nanoTime;
+    this.sizeInBytes += sizeInBytes;
+    lastEvent = event;
+  }
+
+  /** Returns true if a limit was reached. */
+  boolean writeDue(long nanoTime) {
+    return isFull() || lingerExpired(nanoTime);
+  }
+
+  boolean isFull() {
+    return (maxSpans > 0 && spans.size() >= maxSpans)
+        || (maxBytes > 0 && sizeInBytes >= maxBytes);
+  }
+
+  boolean lingerExpired(long nanoTime) {
+    return lingerNanos > 0 && !isEmpty() && nanoTime - firstAddNanos >= lingerNanos;
+  }
+
+  /**
+   * Returns the spans buffered so far, resetting this buffer. The caller takes {@link
+   * #reservedBytes} first, to release them once the spans are stored.
+   */
+  List<Span> drain() {
+    List<Span> result = spans;
+    spans = new ArrayList<>(result.size());
+    sizeInBytes = 0;
+    reservedBytes = 0;
+    lastEvent = null;
+    return result;
+  }
+
+  /** Drops the spans buffered so far, releasing their reservation. */
+  void discard() {
+    if (budget != null) budget.release(reservedBytes);
+    drain();
+  }
+}
@@ -14,91 +14,508 @@
 package zipkin2.collector.eventhub;
 
 import com.microsoft.azure.eventhubs.EventData;
+import com.microsoft.azure.eventhubs.ReceiverRuntimeInformation;
 import com.microsoft.azure.eventprocessorhost.CloseReason;
 import com.microsoft.azure.eventprocessorhost.IEventProcessor;
 import com.microsoft.azure.eventprocessorhost.PartitionContext;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import zipkin2.Callback;
 import zipkin2.Span;
-import zipkin2.codec.BytesDecoder;
-import zipkin2.collector.Collector;
-
-import static zipkin2.SpanBytesDecoderDetector.decoderForListMessage;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+import zipkin2.collector.eventhub.ParallelDecoder.Decoded;
 
 class ZipkinEventProcessor implements IEventProcessor {
-  static final Callback<Void> NOOP =
-      new Callback<Void>() {
-        @Override
-        public void onSuccess(Void value) {}
-
-        @Override
-        public void onError(Throwable t) {}
-      };
-
   final Logger logger;
-  final Collector collector;
-  final int checkpointBatchSize;
+  final CheckpointPolicy checkpointPolicy;
+  final AdaptiveSizing sizing; // null when batch sizes are fixed
+  final InFlightWrites writes;
+  final ParallelDecoder decoder; // null when decoding on the callback thread
+  final EventEncodings encodings;
+  final OwnedPartitions ownedPartitions; // null when not tracked, such as in tests
+  final CollectorMetrics metrics;
+  final EventHubMetrics eventHubMetrics;
+  volatile PartitionMetrics partitionMetrics; // lazy as the partition ID is read from the context
+  final CheckpointWriter checkpointWriter; // null when checkpointing on the callback thread
+  final DeadLetterSpool deadLetters; // null when malformed events are only logged and counted
+  // The latest checkpoint not yet flushed. Flushes are serialized by locking on this.
+  final AtomicReference<EventData> pendingCheckpoint = new AtomicReference<>();
+  volatile ScheduledFuture<?> scheduledFlush;
+  final long drainTimeoutMillis;
+  final boolean writeGroupByTrace;
+  final MemoryBudget memoryBudget; // null when buffered bytes are bounded per partition only
+  final long memoryBudgetWaitNanos;
+  final boolean memoryBudgetShed;
+  volatile boolean closed; // after which events are left for the next owner
 
-  // We assume callbacks can come from different threads, so access to this variable are guarded.
+  // We assume callbacks can come from different threads, so access to these variables are guarded.
   // Undo concurrency and related code if https://github.com/Azure/azure-event-hubs-java/issues/52
   // deems it unnecessary
   int countSinceCheckpoint = 0; // guarded by this
+  long bytesSinceCheckpoint = 0, lastCheckpointDueNanos = System.nanoTime(); // guarded by this
+  final WriteBuffer buffer; // guarded by this
+  final EventBodies bodies = new EventBodies(); // guarded by this
+  EventData lastCheckpointed; // guarded by this
+  boolean checkpointDue; // guarded by this
 
-  ZipkinEventProcessor(Collector collector, int checkpointBatchSize) {
-    this(Logger.getLogger(ZipkinEventProcessor.class.getName()), collector, checkpointBatchSize);
+  ZipkinEventProcessor(EventHubCollector.Builder builder, HostResources resources) {
+    this(Logger.getLogger(ZipkinEventProcessor.class.getName()), builder, resources);
   }
 
-  ZipkinEventProcessor(Logger logger, Collector collector, int checkpointBatchSize) {
+  ZipkinEventProcessor(
+      Logger logger, EventHubCollector.Builder builder, HostResources resources) {
+    if (builder.storage == null) throw new NullPointerException("storage == null");
     this.logger = logger;
-    this.collector = collector;
-    this.checkpointBatchSize = checkpointBatchSize;
+    this.decoder = resources.decoder;
+    this.encodings =
+        new EventEncodings(
+            builder.encoding,
+            builder.encodingProperty,
+            TraceIdSampler.create(builder.sampler, builder.metrics));
+    this.ownedPartitions = resources.ownedPartitions;
+    this.metrics = builder.metrics;
+    this.checkpointWriter = resources.checkpointWriter;
+    this.deadLetters = resources.deadLetters;
+    this.drainTimeoutMillis = builder.drainTimeoutMillis;
+    this.writeGroupByTrace = builder.writeGroupByTrace;
+    this.eventHubMetrics = builder.eventHubMetrics;
+    this.memoryBudget = resources.memoryBudget;
+    this.memoryBudgetWaitNanos = TimeUnit.MILLISECONDS.toNanos(builder.memoryBudgetWaitMillis);
+    this.memoryBudgetShed = builder.memoryBudgetShed;
+    if (builder.adaptiveMaxSpans > 0) {
+      this.sizing =
+          new AdaptiveSizing(
+              builder.adaptiveMinSpans,
+              builder.adaptiveMaxSpans,
+              builder.adaptiveWriteTargetMillis,
+              builder.checkpointBatchSize,
+              // Without a configured limit, start at the largest size and back off if slow
+              builder.writeMaxSpans > 0 ? builder.writeMaxSpans : builder.adaptiveMaxSpans);
+      this.checkpointPolicy = builder.buildCheckpointPolicy(sizing.checkpointPolicy());
+    } else {
+      this.sizing = null;
+      this.checkpointPolicy = builder.buildCheckpointPolicy();
+    }
+    // An adaptive write size is a limit, so spans are carried over callbacks until it is reached
+    this.buffer =
+        new WriteBuffer(
+            sizing != null ? sizing.writeMaxSpans() : builder.writeMaxSpans,
+            builder.writeMaxBytes,
+            builder.writeLingerMillis,
+            memoryBudget);
+    this.writes =
+        new InFlightWrites(
+            logger,
+            builder.storage,
+            builder.sampler,
+            builder.metrics,
+            builder.writeMaxInFlight,
+            sizing,
+            resources.spool,
+            builder.spoolStallMillis,
+            memoryBudget);
+    // When partitions are tracked, the deduplicator is assigned on open, as it may be reused
+    if (ownedPartitions == null && builder.dedupeMaxSpans > 0) {
+      writes.deduplicator = new SpanDeduplicator(builder.dedupeMaxSpans);
+    }
   }
 
   @Override
-  public void onOpen(PartitionContext context) {
-    logger.log(Level.FINE, "Opened " + context.getConsumerGroupName());
+  public void onOpen(final PartitionContext context) {
+    String partitionId = partitionId(context);
+    logger.log(Level.FINE, "Opened partition " + partitionId);
+    if (ownedPartitions != null) writes.deduplicator = ownedPartitions.opened(partitionId, this);
+    if (checkpointWriter == null) return;
+    scheduledFlush =
+        checkpointWriter.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                flushCheckpoint(context);
+              }
+            });
   }
 
   @Override
   public void onClose(PartitionContext context, CloseReason reason) {
     logger.log(Level.FINE, "Closed due to " + reason);
+    ScheduledFuture<?> flush = scheduledFlush;
+    if (flush != null) flush.cancel(false);
+    closed = true;
+    boolean drained = false;
+    // After a lease is lost, another host owns the partition, so we can't checkpoint it
+    if (reason != CloseReason.LeaseLost) {
+      drained = drain(context);
+      if (checkpointWriter != null && !flushCheckpoint(context)) drained = false;
+    }
+    release(context, drained);
+  }
+
+  /**
+   * Releases state held for the partition. A new processor is made if the lease is acquired again,
+   * so nothing carries over, such as the count of spans since the last checkpoint.
+   *
+   * @param drained true if all spans read were stored and checkpointed, so the deduplicator can be
+   *     kept for the next lease
+   */
+  void release(PartitionContext context, boolean drained) {
+    synchronized (this) {
+      buffer.discard(); // after a lease is lost, these are redelivered to the next owner
+    }
+    writes.discard();
+    partitionMetrics(context).lag(0L); // the next owner reports lag
+    if (ownedPartitions != null) ownedPartitions.closed(partitionId(context), this, drained);
+  }
+
+  /**
+   * Writes buffered spans, waits for storage to acknowledge them, then checkpoints the last event
+   * acknowledged. This is done before the lease is released, so that the next owner of the
+   * partition only redelivers what storage didn't acknowledge within {@link #drainTimeoutMillis}.
+   *
+   * @return false if some writes weren't acknowledged, or the checkpoint failed
+   */
+  boolean drain(PartitionContext context) {
+    PartitionMetrics partitionMetrics = partitionMetrics(context);
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+    EventData toCheckpoint;
+    try {
+      boolean drained = true;
+      synchronized (this) {
+        if (!buffer.isEmpty()) {
+          EventData lastEvent = buffer.lastEvent;
+          long reservedBytes = buffer.reservedBytes;
+          List<Span> spans = drainBuffer(partitionMetrics);
+          drained =
+              writes.tryWrite(spans, lastEvent, reservedBytes, partitionMetrics, deadlineNanos);
+        }
+      }
+      drained = drained && writes.awaitAcknowledged(deadlineNanos);
+      if (!drained) {
+        logger.log(
+            Level.WARNING,
+            "Partition "
+                + partitionId(context)
+                + " timed out waiting for storage; unacknowledged events will be redelivered");
+      }
+      synchronized (this) {
+        toCheckpoint = writes.lastAcknowledged();
+        if (toCheckpoint == null || toCheckpoint == lastCheckpointed) return drained;
+        lastCheckpointed = toCheckpoint;
+      }
+      checkpointOrDefer(context, toCheckpoint);
+      return drained;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.log(
+          Level.WARNING, "Partition " + partitionId(context) + " failed to checkpoint on close", e);
+    }
+    return false;
   }
 
   @Override
   public void onEvents(PartitionContext context, Iterable<EventData> messages)
       throws ExecutionException, InterruptedException {
-    // don't issue a write until we checkpoint or exit this callback
-    List<Span> buffer = new ArrayList<>();
-
-    for (EventData data : messages) {
-      byte[] bytes = data.getBytes();
-      BytesDecoder<Span> decoder = decoderForListMessage(bytes);
-      List<Span> nextSpans = decoder.decodeList(bytes);
-      buffer.addAll(nextSpans);
-
-      if (maybeCheckpoint(context, data, nextSpans.size())) {
-        collector.accept(buffer, NOOP);
-        buffer.clear();
+    if (closed) return; // not checkpointed, so these are redelivered to the next owner
+    PartitionMetrics partitionMetrics = partitionMetrics(context);
+    writes.retryFailed();
+    // When invoked after a receive timeout, there may be no events
+    if (messages == null) messages = Collections.<EventData>emptyList();
+
+    int eventCount = 0, spanCount = 0;
+    EventData lastEvent = null;
+    if (decoder != null) {
+      List<EventData> batch = new ArrayList<>();
+      long batchBytes = 0L;
+      for (EventData data : messages) {
+        batch.add(data);
+        batchBytes += data.getBytes().length;
+      }
+      // The whole batch is decoded at once, so it is reserved before, not event by event
+      boolean shed = memoryBudget != null && !reserve(batchBytes, partitionMetrics);
+      long unbuffered = memoryBudget != null && !shed ? batchBytes : 0L; // reserved, not buffered
+      try {
+        List<Future<Decoded>> chunks = decoder.decodeAll(batch, encodings, partitionMetrics);
+        for (int i = 0, length = chunks.size(); i < length; i++) {
+          Decoded decoded = ParallelDecoder.await(chunks.get(i));
+          for (int j = 0, size = decoded.spans.size(); j < size; j++) {
+            lastEvent = batch.get(eventCount++);
+            if (decoded.errors[j] != null) quarantine(context, lastEvent, decoded.errors[j]);
+            if (unbuffered != 0L) unbuffered -= lastEvent.getBytes().length;
+            spanCount +=
+                onEvent(context, lastEvent, decoded.spans.get(j), decoded.spansRead[j], shed);
+          }
+        }
+      } finally {
+        // When decoding failed, events not yet buffered won't release what was reserved for them
+        if (unbuffered != 0L) memoryBudget.release(unbuffered);
+      }
+    } else {
+      for (EventData data : messages) {
+        lastEvent = data;
+        // Reserved outside the lock, as waiting for other partitions mustn't block our own writes
+        boolean shed =
+            memoryBudget != null && !reserve(data.getBytes().length, partitionMetrics);
+        spanCount += onEvent(context, data, null, 0, shed);
+        eventCount++;
+      }
+    }
+    partitionMetrics.recordBatch(eventCount, spanCount);
+    if (lastEvent != null) recordLag(context, lastEvent, partitionMetrics);
+
+    EventData toCheckpoint;
+    synchronized (this) {
+      long nanoTime = System.nanoTime();
+      // When there are write limits, buffered spans are carried over to the next callback
+      if (!buffer.isEmpty() && (!buffer.hasLimits() || buffer.lingerExpired(nanoTime))) {
+        writeBuffer(partitionMetrics);
+      }
+      // A time-based policy can be due even if we read nothing
+      if (shouldCheckPoint(0, 0, nanoTime)) checkpointDue = true;
+      toCheckpoint = nextCheckpoint();
+    }
+    if (toCheckpoint != null) checkpointOrDefer(context, toCheckpoint);
+  }
+
+  PartitionMetrics partitionMetrics(PartitionContext context) {
+    PartitionMetrics result = partitionMetrics;
+    if (result == null) {
+      // racing here is harmless as metrics are looked up by partition ID
+      partitionMetrics = result = eventHubMetrics.forPartition(partitionId(context));
+    }
+    return result;
+  }
+
+  /** Lag is how far the last event we processed is behind the last one enqueued. */
+  void recordLag(PartitionContext context, EventData lastEvent, PartitionMetrics metrics) {
+    long lastEnqueued = lastEnqueuedSequenceNumber(context);
+    if (lastEnqueued < 0) return; // unknown
+    long lastProcessed = lastEvent.getSystemProperties().getSequenceNumber();
+    long lag = Math.max(0L, lastEnqueued - lastProcessed);
+    metrics.lag(lag);
+    if (sizing != null) sizing.onLag(lag, metrics);
+  }
+
+  /**
+   * Buffers the spans of the event, writing and checkpointing as needed.
+   *
+   * @param decoded spans decoded in parallel, or null to decode directly into the buffer
+   * @param decodedSpansRead when decoded, the count of spans read, including any not sampled
+   * @param shed true if the bytes of the event couldn't be reserved, so its spans are shed
+   * @return the count of spans in the event, including any not sampled
+   */
+  int onEvent(
+      PartitionContext context,
+      EventData data,
+      List<Span> decoded,
+      int decodedSpansRead,
+      boolean shed)
+      throws ExecutionException, InterruptedException {
+    PartitionMetrics partitionMetrics = partitionMetrics(context);
+    int spanCount;
+    EventData toCheckpoint;
+    byte[] bytes = data.getBytes();
+    synchronized (this) {
+      long nanoTime = System.nanoTime();
+      int buffered = buffer.spans.size();
+      if (decoded != null) {
+        buffer.add(decoded, bytes.length, data, nanoTime);
+        spanCount = decodedSpansRead;
+      } else {
+        EventEncodings.Declared encoding = encodings.encoding(data);
+        try {
+          spanCount =
+              buffer.decode(encoding, bodies.read(data, bytes), bytes.length, data, nanoTime);
+        } catch (RuntimeException e) {
+          quarantine(context, data, e);
+          // Buffer the event without spans, so that checkpoints can pass it
+          spanCount = buffer.add(Collections.<Span>emptyList(), bytes.length, data, nanoTime);
+        }
+        partitionMetrics.recordDecodeNanos(System.nanoTime() - nanoTime);
+      }
+      SpanDeduplicator deduplicator = writes.deduplicator;
+      if (deduplicator != null) removeDuplicates(deduplicator, buffered, partitionMetrics);
+      if (shed) {
+        shed(buffered, partitionMetrics);
+      } else if (memoryBudget != null) {
+        buffer.reservedBytes += bytes.length;
+      }
+      if (sizing != null) buffer.maxSpans = sizing.writeMaxSpans();
+      boolean writeDue = buffer.writeDue(nanoTime);
+      if (shouldCheckPoint(spanCount, bytes.length, nanoTime)) {
+        checkpointDue = true;
+        // Without write limits, spans are written each time we checkpoint
+        if (!buffer.hasLimits()) writeDue = true;
+      }
+      if (writeDue) writeBuffer(partitionMetrics);
+      toCheckpoint = nextCheckpoint();
+    }
+    if (toCheckpoint != null) checkpointOrDefer(context, toCheckpoint);
+    return spanCount;
+  }
+
+  /**
+   * Reserves the bytes of events from the memory budget. When the budget is exhausted, this
+   * writes what the partition buffered, then waits for storage to acknowledge writes.
+   *
+   * @return false if the spans of the events should be shed, as the budget is still exhausted
+   */
+  boolean reserve(long bytes, PartitionMetrics partitionMetrics) throws InterruptedException {
+    if (memoryBudget.tryReserve(bytes)) return true;
+    long startNanos = System.nanoTime();
+    synchronized (this) {
+      if (!buffer.isEmpty()) writeBuffer(partitionMetrics);
+    }
+    boolean reserved = memoryBudget.reserve(bytes, memoryBudgetWaitNanos);
+    partitionMetrics.recordMemoryWaitNanos(System.nanoTime() - startNanos);
+    if (reserved) return true;
+    if (memoryBudgetShed) return false;
+    // Exceed the budget rather than stall: the wait already slowed how fast we receive events
+    memoryBudget.forceReserve(bytes);
+    return true;
+  }
+
+  /**
+   * Drops spans added to the buffer since it had the given size, except debug spans and errors.
+   * The event is still buffered, so that checkpoints can pass it.
+   */
+  void shed(int buffered, PartitionMetrics partitionMetrics) {
+    assert Thread.holdsLock(this);
+    List<Span> spans = buffer.spans;
+    int kept = buffered, size = spans.size();
+    for (int i = buffered; i < size; i++) {
+      Span span = spans.get(i);
+      if (Boolean.TRUE.equals(span.debug()) || span.tags().containsKey("error")) {
+        spans.set(kept++, span);
       }
     }
+    int shed = size - kept;
+    if (shed == 0) return;
+    spans.subList(kept, size).clear();
+    partitionMetrics.recordShed(shed);
+    // Like sampling, dropped spans are counted here as they won't reach the write
+    metrics.incrementSpans(shed);
+    metrics.incrementSpansDropped(shed);
+  }
 
-    if (!buffer.isEmpty()) {
-      collector.accept(buffer, NOOP);
+  /**
+   * Drops an event which couldn't be decoded, instead of failing the batch. Otherwise, the batch
+   * would be redelivered and fail again, rewriting the spans of events before it each time.
+   */
+  void quarantine(PartitionContext context, EventData data, RuntimeException error) {
+    metrics.incrementMessagesDropped();
+    String partitionId = partitionId(context);
+    if (logger.isLoggable(Level.WARNING)) {
+      EventData.SystemProperties properties = data.getSystemProperties();
+      logger.log(
+          Level.WARNING,
+          "Partition "
+              + partitionId
+              + " dropped an event which couldn't be decoded"
+              + (properties != null ? " at " + properties.getOffset() : "")
+              + ": "
+              + error.getMessage());
+    }
+    if (deadLetters == null) return;
+    try {
+      deadLetters.write(partitionId, data, error);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Partition " + partitionId + " couldn't spool a dead letter", e);
     }
   }
 
+  /** Drops spans added to the buffer after the given size which the partition stored before. */
+  void removeDuplicates(
+      SpanDeduplicator deduplicator, int buffered, PartitionMetrics partitionMetrics) {
+    assert Thread.holdsLock(this);
+    int added = buffer.spans.size() - buffered;
+    if (added == 0) return;
+    int duplicates = deduplicator.removeDuplicates(buffer.spans, buffered);
+    partitionMetrics.recordDeduplication(added, duplicates);
+    if (duplicates == 0) return;
+    // Like sampling, dropped spans are counted here as they won't reach the write
+    metrics.incrementSpans(duplicates);
+    metrics.incrementSpansDropped(duplicates);
+  }
+
   /**
-   * If what we've read puts us at or over our count since last checkpoint, checkpoint and return
-   * true.
+   * Writes buffered spans to storage. This is done while holding the lock, so that writes are
+   * issued in the same order as events. This doesn't block unless the maximum writes are in flight,
+   * as storage writes are asynchronous.
    */
-  boolean maybeCheckpoint(PartitionContext context, EventData data, int spansRead)
-      throws InterruptedException, ExecutionException {
-    if (!shouldCheckPoint(spansRead)) return false;
+  void writeBuffer(PartitionMetrics partitionMetrics) throws InterruptedException {
+    assert Thread.holdsLock(this);
+    EventData lastEvent = buffer.lastEvent;
+    long reservedBytes = buffer.reservedBytes; // released by the write once stored
+    writes.write(drainBuffer(partitionMetrics), lastEvent, reservedBytes, partitionMetrics);
+  }
+
+  /** Returns the buffered spans, grouped by trace ID when configured. */
+  List<Span> drainBuffer(PartitionMetrics partitionMetrics) {
+    assert Thread.holdsLock(this);
+    List<Span> spans = buffer.drain();
+    return writeGroupByTrace ? TraceGrouping.groupByTrace(spans, partitionMetrics) : spans;
+  }
 
+  /**
+   * If what we've read put us at or over our count since last checkpoint, returns the last event
+   * whose spans were acknowledged by storage. Otherwise, or if no more were acknowledged since, the
+   * checkpoint is deferred.
+   */
+  EventData nextCheckpoint() {
+    assert Thread.holdsLock(this);
+    if (!checkpointDue) return null;
+    EventData lastAcknowledged = writes.lastAcknowledged();
+    if (lastAcknowledged == null || lastAcknowledged == lastCheckpointed) return null;
+    checkpointDue = false;
+    return lastCheckpointed = lastAcknowledged;
+  }
+
+  /** Checkpoints now, or when a checkpoint writer is in use, on its next flush. */
+  void checkpointOrDefer(PartitionContext context, EventData data)
+      throws ExecutionException, InterruptedException {
+    if (checkpointWriter == null) {
+      logAndCheckpoint(context, data);
+    } else {
+      pendingCheckpoint.set(data); // replaces any checkpoint not yet flushed
+    }
+  }
+
+  /**
+   * Checkpoints at the latest pending event, unless the offset hasn't moved since last flush.
+   * Returns false if the checkpoint failed.
+   */
+  boolean flushCheckpoint(PartitionContext context) {
+    synchronized (pendingCheckpoint) {
+      EventData data = pendingCheckpoint.getAndSet(null);
+      if (data == null) return true;
+      try {
+        logAndCheckpoint(context, data);
+        return true;
+      } catch (InterruptedException e) {
+        pendingCheckpoint.compareAndSet(null, data);
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        // Unless a later checkpoint is pending, retry this one on the next flush
+        pendingCheckpoint.compareAndSet(null, data);
+        logger.log(
+            Level.WARNING, "Partition " + partitionId(context) + " failed to checkpoint", e);
+      }
+      return false;
+    }
+  }
+
+  void logAndCheckpoint(PartitionContext context, EventData data)
+      throws ExecutionException, InterruptedException {
     if (logger.isLoggable(Level.FINE)) {
       logger.log(
           Level.FINE,
@@ -109,15 +526,33 @@ class ZipkinEventProcessor implements IEventProcessor {
               + ","
               + data.getSystemProperties().getSequenceNumber());
     }
-    checkpoint(context, data);
-    return true;
+    PartitionMetrics partitionMetrics = partitionMetrics(context);
+    long startNanos = System.nanoTime();
+    boolean success = false;
+    try {
+      checkpoint(context, data);
+      success = true;
+    } finally {
+      long endNanos = System.nanoTime();
+      partitionMetrics.recordCheckpointNanos(endNanos - startNanos);
+      if (sizing != null) sizing.onCheckpoint(endNanos - startNanos, endNanos, partitionMetrics);
+      if (!success) partitionMetrics.incrementCheckpointFailures();
+    }
   }
 
-  boolean shouldCheckPoint(int spansRead) {
+  /**
+   * Accumulates what was read, returning true if the {@link CheckpointPolicy} says a checkpoint is
+   * due. When it is, accumulated values are reset.
+   */
+  boolean shouldCheckPoint(int spansRead, int bytesRead, long nanoTime) {
     synchronized (this) {
       countSinceCheckpoint += spansRead;
-      if (countSinceCheckpoint >= checkpointBatchSize) {
+      bytesSinceCheckpoint += bytesRead;
+      long millisElapsed = TimeUnit.NANOSECONDS.toMillis(nanoTime - lastCheckpointDueNanos);
+      if (checkpointPolicy.isDue(countSinceCheckpoint, bytesSinceCheckpoint, millisElapsed)) {
         countSinceCheckpoint = 0;
+        bytesSinceCheckpoint = 0;
+        lastCheckpointDueNanos = nanoTime;
         return true;
       }
     }
@@ -137,6 +572,12 @@ class ZipkinEventProcessor implements IEventProcessor {
     context.checkpoint(data);
   }
 
+  /** Returns the sequence number of the last event enqueued to the partition, or -1 if unknown. */
+  long lastEnqueuedSequenceNumber(PartitionContext context) {
+    ReceiverRuntimeInformation info = context.getRuntimeInformation();
+    return info != null ? info.getLastEnqueuedSequenceNumber() : -1L;
+  }
+
   @Override
   public void onError(PartitionContext context, Throwable error) {
     logger.log(Level.WARNING, "Error in " + context.getConsumerGroupName(), error);
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class AdaptiveSizingTest {
+  static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+  PartitionMetrics metrics = mock(PartitionMetrics.class);
+  // steps of 10 spans between 10 and 330
+  AdaptiveSizing sizing = new AdaptiveSizing(10, 330, 1000, 50, 50);
+
+  @Test
+  public void initialSizesAreBounded() {
+    sizing = new AdaptiveSizing(10, 330, 1000, 5, 1000);
+
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(10);
+    assertThat(sizing.writeMaxSpans()).isEqualTo(330);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxSpansMustBeAtLeastMinSpans() {
+    new AdaptiveSizing(10, 5, 1000, 10, 10);
+  }
+
+  @Test
+  public void onWrite_fullAndFastGrowsByStep() {
+    sizing.onWrite(50, FAST, metrics);
+
+    assertThat(sizing.writeMaxSpans()).isEqualTo(60);
+    verify(metrics).adaptiveSizes(50, 60);
+  }
+
+  @Test
+  public void onWrite_notFullDoesntGrow() {
+    sizing.onWrite(30, FAST, metrics);
+
+    assertThat(sizing.writeMaxSpans()).isEqualTo(50);
+    verifyZeroInteractions(metrics);
+  }
+
+  @Test
+  public void onWrite_slowHalves() {
+    sizing.onWrite(50, SLOW, metrics);
+
+    assertThat(sizing.writeMaxSpans()).isEqualTo(25);
+  }
+
+  @Test
+  public void onWriteFailed_halvesDownToMinimum() {
+    sizing.onWriteFailed(metrics);
+    sizing.onWriteFailed(metrics);
+    sizing.onWriteFailed(metrics);
+
+    assertThat(sizing.writeMaxSpans()).isEqualTo(10);
+  }
+
+  @Test
+  public void onCheckpoint_doublesWhenCheckpointsTakeTooMuchTime() {
+    long nanoTime = sizing.lastCheckpointNanos + TimeUnit.MILLISECONDS.toNanos(100);
+    sizing.onCheckpoint(TimeUnit.MILLISECONDS.toNanos(20), nanoTime, metrics);
+
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(100);
+    verify(metrics).adaptiveSizes(100, 50);
+  }
+
+  @Test
+  public void onCheckpoint_unchangedWhenCheckpointsAreCheap() {
+    long nanoTime = sizing.lastCheckpointNanos + TimeUnit.MILLISECONDS.toNanos(100);
+    sizing.onCheckpoint(TimeUnit.MILLISECONDS.toNanos(5), nanoTime, metrics);
+
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(50);
+    verifyZeroInteractions(metrics);
+  }
+
+  @Test
+  public void onLag_growsWhenFallingBehindAndShrinksWhenCaughtUp() {
+    sizing.onLag(100, metrics); // first measurement
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(50);
+
+    sizing.onLag(200, metrics);
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(60);
+
+    sizing.onLag(150, metrics); // catching up
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(60);
+
+    sizing.onLag(0, metrics);
+    assertThat(sizing.checkpointBatchSize()).isEqualTo(50);
+  }
+
+  @Test
+  public void checkpointPolicy_followsCurrentSize() {
+    CheckpointPolicy policy = sizing.checkpointPolicy();
+    assertThat(policy.isDue(50, 0, 0)).isTrue();
+
+    sizing.onLag(100, metrics);
+    sizing.onLag(200, metrics);
+    assertThat(policy.isDue(50, 0, 0)).isFalse();
+    assertThat(policy.isDue(60, 0, 0)).isTrue();
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.InMemoryStorage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+public class CaptureBackfillTest {
+  /** The schema of files written by Event Hubs Capture */
+  static final Schema CAPTURE_SCHEMA =
+      new Schema.Parser()
+          .parse(
+              "{\"type\":\"record\",\"name\":\"EventData\","
+                  + "\"namespace\":\"Microsoft.ServiceBus.Messaging\",\"fields\":["
+                  + "{\"name\":\"SequenceNumber\",\"type\":\"long\"},"
+                  + "{\"name\":\"Offset\",\"type\":\"string\"},"
+                  + "{\"name\":\"EnqueuedTimeUtc\",\"type\":\"string\"},"
+                  + "{\"name\":\"SystemProperties\",\"type\":{\"type\":\"map\","
+                  + "\"values\":[\"long\",\"double\",\"string\",\"bytes\"]}},"
+                  + "{\"name\":\"Properties\",\"type\":{\"type\":\"map\","
+                  + "\"values\":[\"long\",\"double\",\"string\",\"bytes\",\"null\"]}},"
+                  + "{\"name\":\"Body\",\"type\":[\"null\",\"bytes\"]}]}");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+
+  @Test
+  public void loadsSpansOfAllFiles() throws Exception {
+    Path root = folder.getRoot().toPath();
+    capture(
+        root.resolve("ns/zipkin/0/2018/10/01/00/00/00.avro"),
+        body(SpanBytesEncoder.JSON_V2, 0, 3),
+        body(SpanBytesEncoder.PROTO3, 3, 6));
+    capture(
+        root.resolve("ns/zipkin/1/2018/10/01/00/00/00.avro"), body(SpanBytesEncoder.THRIFT, 6, 9));
+    Files.write(root.resolve("readme.txt"), new byte[] {'h', 'i'}); // not a capture file
+
+    CaptureBackfill.Progress progress =
+        CaptureBackfill.newBuilder().storage(storage).threads(2).build().run(root);
+
+    assertThat(progress.files()).isEqualTo(2);
+    assertThat(progress.filesDone()).isEqualTo(2L);
+    assertThat(progress.failedFiles()).isEmpty();
+    assertThat(progress.events()).isEqualTo(3L);
+    assertThat(progress.spans()).isEqualTo(9L);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(9);
+  }
+
+  @Test
+  public void writesInBatches() throws Exception {
+    Path root = folder.getRoot().toPath();
+    capture(
+        root.resolve("0.avro"),
+        body(SpanBytesEncoder.JSON_V2, 0, 3),
+        body(SpanBytesEncoder.JSON_V2, 3, 6),
+        body(SpanBytesEncoder.JSON_V2, 6, 7));
+
+    CaptureBackfill.Progress progress =
+        CaptureBackfill.newBuilder().storage(storage).writeMaxSpans(4).build().run(root);
+
+    assertThat(progress.spans()).isEqualTo(7L);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(7);
+  }
+
+  @Test
+  public void honorsContentEncoding() throws Exception {
+    Path root = folder.getRoot().toPath();
+    byte[] json = body(SpanBytesEncoder.JSON_V2, 0, 3);
+    capture(
+        root.resolve("0.avro"),
+        Collections.<String, Object>singletonMap("Content-Encoding", "gzip"),
+        EventBodiesTest.gzip(json));
+
+    CaptureBackfill.newBuilder().storage(storage).build().run(root);
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void sampling_countsSpansOnce() throws Exception {
+    Path root = folder.getRoot().toPath();
+    capture(root.resolve("0.avro"), body(SpanBytesEncoder.JSON_V2, 0, 3));
+
+    CaptureBackfill.newBuilder()
+        .storage(storage)
+        .sampler(CollectorSampler.create(0.0f))
+        .metrics(metrics)
+        .build()
+        .run(root);
+
+    assertThat(metrics.spans()).isEqualTo(3);
+    assertThat(metrics.spansDropped()).isEqualTo(3);
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  /** An escaped trace ID can't be read before decoding, so the spans are sampled after. */
+  @Test
+  public void sampling_afterDecodeWhenListUnreadable() throws Exception {
+    Path root = folder.getRoot().toPath();
+    String json = new String(body(SpanBytesEncoder.JSON_V2, 0, 3), UTF_8);
+    Matcher traceId = Pattern.compile("\"traceId\":\"(.)").matcher(json);
+    StringBuffer escaped = new StringBuffer();
+    while (traceId.find()) {
+      String hex = Integer.toHexString(traceId.group(1).charAt(0));
+      traceId.appendReplacement(escaped, "\"traceId\":\"\\\\u00" + hex);
+    }
+    traceId.appendTail(escaped);
+    capture(root.resolve("0.avro"), escaped.toString().getBytes(UTF_8));
+
+    CaptureBackfill.newBuilder()
+        .storage(storage)
+        .sampler(CollectorSampler.create(0.0f))
+        .metrics(metrics)
+        .build()
+        .run(root);
+
+    assertThat(metrics.spans()).isEqualTo(3);
+    assertThat(metrics.spansDropped()).isEqualTo(3);
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Test
+  public void dropsMalformedEvents() throws Exception {
+    Path root = folder.getRoot().toPath();
+    capture(
+        root.resolve("0.avro"),
+        body(SpanBytesEncoder.JSON_V2, 0, 3),
+        new byte[] {'[', '{', '}'},
+        body(SpanBytesEncoder.JSON_V2, 3, 6));
+
+    CaptureBackfill.Progress progress =
+        CaptureBackfill.newBuilder().storage(storage).build().run(root);
+
+    assertThat(progress.eventsDropped()).isEqualTo(1L);
+    assertThat(progress.failedFiles()).isEmpty();
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void listsFilesStorageDidNotAccept() throws Exception {
+    Path root = folder.getRoot().toPath();
+    Path file = root.resolve("0.avro");
+    capture(file, body(SpanBytesEncoder.JSON_V2, 0, 3));
+
+    CaptureBackfill.Progress progress =
+        CaptureBackfill.newBuilder()
+            .storage(new ZipkinEventProcessorTest.PendingStorage()) // fails on execute
+            .build()
+            .run(root);
+
+    assertThat(progress.failedFiles()).containsExactly(file);
+    assertThat(progress.spans()).isZero();
+  }
+
+  @Test
+  public void listsFilesWhichAreNotAvro() throws Exception {
+    Path root = folder.getRoot().toPath();
+    Path file = root.resolve("0.avro");
+    Files.write(file, new byte[] {'h', 'i'});
+
+    CaptureBackfill.Progress progress =
+        CaptureBackfill.newBuilder().storage(storage).build().run(root);
+
+    assertThat(progress.failedFiles()).containsExactly(file);
+  }
+
+  static byte[] body(SpanBytesEncoder encoder, int from, int to) {
+    List<Span> spans = asList(LOTS_OF_SPANS).subList(from, to);
+    return encoder.encodeList(spans);
+  }
+
+  static void capture(Path file, byte[]... bodies) throws IOException {
+    capture(file, Collections.<String, Object>emptyMap(), bodies);
+  }
+
+  static void capture(Path file, Map<String, Object> properties, byte[]... bodies)
+      throws IOException {
+    Files.createDirectories(file.getParent());
+    File toFile = file.toFile();
+    try (DataFileWriter<GenericRecord> writer =
+        new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(CAPTURE_SCHEMA))) {
+      writer.create(CAPTURE_SCHEMA, toFile);
+      for (int i = 0; i < bodies.length; i++) {
+        GenericRecord record = new GenericData.Record(CAPTURE_SCHEMA);
+        record.put("SequenceNumber", (long) i);
+        record.put("Offset", String.valueOf(i * 100));
+        record.put("EnqueuedTimeUtc", "10/1/2018 12:00:00 AM");
+        record.put("SystemProperties", new LinkedHashMap<String, Object>());
+        record.put("Properties", properties);
+        record.put("Body", ByteBuffer.wrap(bodies[i]));
+        writer.append(record);
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.collector.eventhub.CheckpointPolicy.afterBytes;
+import static zipkin2.collector.eventhub.CheckpointPolicy.afterMillis;
+import static zipkin2.collector.eventhub.CheckpointPolicy.afterSpans;
+import static zipkin2.collector.eventhub.CheckpointPolicy.allOf;
+import static zipkin2.collector.eventhub.CheckpointPolicy.anyOf;
+
+public class CheckpointPolicyTest {
+
+  @Test
+  public void afterSpans_dueAtOrOverThreshold() {
+    assertThat(afterSpans(10).isDue(9, 0, 0)).isFalse();
+    assertThat(afterSpans(10).isDue(10, 0, 0)).isTrue();
+    assertThat(afterSpans(10).isDue(12, 0, 0)).isTrue();
+  }
+
+  @Test
+  public void afterBytes_dueAtOrOverThreshold() {
+    assertThat(afterBytes(1024).isDue(100, 1023, 0)).isFalse();
+    assertThat(afterBytes(1024).isDue(0, 1024, 0)).isTrue();
+  }
+
+  @Test
+  public void afterMillis_dueAtOrOverThreshold() {
+    assertThat(afterMillis(1000).isDue(100, 100, 999)).isFalse();
+    assertThat(afterMillis(1000).isDue(0, 0, 1000)).isTrue();
+  }
+
+  @Test
+  public void anyOf_dueWhenEitherIs() {
+    CheckpointPolicy policy = anyOf(afterSpans(10), afterBytes(1024));
+
+    assertThat(policy.isDue(9, 1023, 0)).isFalse();
+    assertThat(policy.isDue(10, 0, 0)).isTrue();
+    assertThat(policy.isDue(0, 1024, 0)).isTrue();
+  }
+
+  @Test
+  public void allOf_capsRate() {
+    CheckpointPolicy policy = allOf(afterSpans(10), afterMillis(1000));
+
+    assertThat(policy.isDue(100, 0, 999)).isFalse();
+    assertThat(policy.isDue(9, 0, 1000)).isFalse();
+    assertThat(policy.isDue(10, 0, 1000)).isTrue();
+  }
+
+  @Test
+  public void anyOf_singlePolicyIsUnwrapped() {
+    CheckpointPolicy policy = afterSpans(10);
+
+    assertThat(anyOf(policy)).isSameAs(policy);
+    assertThat(allOf(policy)).isSameAs(policy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void afterSpans_positive() {
+    afterSpans(0);
+  }
+
+  @Test
+  public void toString_describesComposition() {
+    assertThat(allOf(anyOf(afterSpans(10), afterBytes(1024)), afterMillis(1000)))
+        .hasToString("allOf[anyOf[afterSpans(10), afterBytes(1024)], afterMillis(1000)]");
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.PartitionReceiver;
+import com.microsoft.azure.eventprocessorhost.Checkpoint;
+import com.microsoft.azure.eventprocessorhost.Lease;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CheckpointStoreTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  CheckpointStore store = CheckpointStore.inMemory();
+
+  @After
+  public void close() throws IOException {
+    store.close();
+  }
+
+  @Test
+  public void unknownPartition_readsFromStartOfStream() throws Exception {
+    Checkpoint checkpoint = store.getCheckpoint("0").get();
+
+    assertThat(checkpoint.getPartitionId()).isEqualTo("0");
+    assertThat(checkpoint.getOffset()).isEqualTo(PartitionReceiver.START_OF_STREAM);
+  }
+
+  @Test
+  public void inMemory_updateCheckpoint() throws Exception {
+    assertUpdatesCheckpoints();
+  }
+
+  @Test
+  public void mappedFile_updateCheckpoint() throws Exception {
+    store = CheckpointStore.mappedFile(folder.getRoot().toPath().resolve("checkpoints"));
+
+    assertUpdatesCheckpoints();
+  }
+
+  void assertUpdatesCheckpoints() throws Exception {
+    store.createCheckpointIfNotExists("0").get();
+    store.updateCheckpoint(null, new Checkpoint("0", "1024", 10L)).get();
+    store.updateCheckpoint(null, new Checkpoint("1", "2048", 20L)).get();
+    store.updateCheckpoint(null, new Checkpoint("0", "4096", 30L)).get();
+
+    assertCheckpoint("0", "4096", 30L);
+    assertCheckpoint("1", "2048", 20L);
+    // doesn't overwrite
+    assertThat(store.createCheckpointIfNotExists("1").get().getOffset()).isEqualTo("2048");
+
+    store.deleteCheckpoint("1").get();
+    assertCheckpoint("1", PartitionReceiver.START_OF_STREAM, 0L);
+  }
+
+  @Test
+  public void mappedFile_survivesRestart() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoints");
+    store = CheckpointStore.mappedFile(path);
+    for (int i = 1; i <= 3; i++) {
+      store.updateCheckpoint(null, new Checkpoint("0", String.valueOf(i * 100), i)).get();
+    }
+    store.updateCheckpoint(null, new Checkpoint("31", "500", 5L)).get();
+    store.close();
+
+    store = CheckpointStore.mappedFile(path);
+    assertCheckpoint("0", "300", 3L);
+    assertCheckpoint("31", "500", 5L);
+  }
+
+  /** A torn write leaves the previous checkpoint, which only redelivers events. */
+  @Test
+  public void mappedFile_readsPreviousCheckpointWhenLatestIsCorrupt() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoints");
+    store = CheckpointStore.mappedFile(path);
+    store.updateCheckpoint(null, new Checkpoint("0", "100", 1L)).get(); // counter 1: record 1
+    store.updateCheckpoint(null, new Checkpoint("0", "200", 2L)).get(); // counter 2: record 0
+    store.close();
+
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.seek(MappedFileCheckpointStore.HEADER_SIZE + MappedFileCheckpointStore.OFFSET + 1);
+      file.write('9');
+    }
+
+    store = CheckpointStore.mappedFile(path);
+    assertCheckpoint("0", "100", 1L);
+  }
+
+  @Test
+  public void mappedFile_lockedWhileOpen() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoints");
+    store = CheckpointStore.mappedFile(path);
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("in use by another collector");
+    CheckpointStore.mappedFile(path);
+  }
+
+  @Test
+  public void mappedFile_rejectsOtherFiles() throws Exception {
+    Path path = folder.getRoot().toPath().resolve("checkpoints");
+    Files.write(path, "hello".getBytes("UTF-8"));
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("is not a checkpoint file");
+    CheckpointStore.mappedFile(path);
+  }
+
+  @Test
+  public void leases() throws Exception {
+    store.initialize("host1");
+    Lease lease = store.createLeaseIfNotExists("0").get();
+    assertThat(lease.isExpired()).isTrue();
+    assertThat(store.renewLease(lease).get()).isFalse(); // not yet acquired
+
+    assertThat(store.acquireLease(lease).get()).isTrue();
+    assertThat(lease.getOwner()).isEqualTo("host1");
+    assertThat(lease.isExpired()).isFalse();
+    assertThat(store.getAllLeases()).hasSize(1);
+
+    assertThat(store.renewLease(lease).get()).isTrue();
+    assertThat(store.updateLease(lease).get()).isTrue();
+
+    assertThat(store.releaseLease(lease).get()).isTrue();
+    assertThat(lease.isExpired()).isTrue();
+    assertThat(store.getLease("0").get().getOwner()).isEmpty();
+  }
+
+  @Test
+  public void leases_staleTokenCantRenew() throws Exception {
+    store.initialize("host1");
+    Lease stale = store.createLeaseIfNotExists("0").get();
+    store.acquireLease(stale).get();
+    Lease current = store.getLease("0").get();
+    store.acquireLease(current).get(); // new token
+
+    assertThat(store.renewLease(stale).get()).isFalse();
+    assertThat(store.renewLease(current).get()).isTrue();
+  }
+
+  void assertCheckpoint(String partitionId, String offset, long sequenceNumber) throws Exception {
+    Checkpoint checkpoint = store.getCheckpoint(partitionId).get();
+    assertThat(checkpoint.getOffset()).isEqualTo(offset);
+    assertThat(checkpoint.getSequenceNumber()).isEqualTo(sequenceNumber);
+  }
+}
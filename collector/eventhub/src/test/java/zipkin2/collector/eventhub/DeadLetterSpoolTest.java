@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.collector.eventhub.ZipkinEventProcessorTest.message;
+
+public class DeadLetterSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  IllegalArgumentException error = new IllegalArgumentException("Malformed reading List<Span>");
+  Path directory;
+  DeadLetterSpool spool;
+
+  @After
+  public void close() throws IOException {
+    if (spool != null) spool.close();
+  }
+
+  @Test
+  public void write_headerThenBody() throws Exception {
+    spool = new DeadLetterSpool(directory(), 1024, 2);
+
+    spool.write("1", message("1024", 10L, bytes("[x")), error);
+    spool.write("2", message("2048", 20L, bytes("{}")), error);
+
+    assertThat(read(files().get(0)))
+        .isEqualTo(
+            "partition=1 offset=1024 sequenceNumber=10 size=2 "
+                + "error=IllegalArgumentException: Malformed reading List<Span>\n"
+                + "[x\n"
+                + "partition=2 offset=2048 sequenceNumber=20 size=2 "
+                + "error=IllegalArgumentException: Malformed reading List<Span>\n"
+                + "{}\n");
+  }
+
+  @Test
+  public void write_headerIsOneLine() throws Exception {
+    spool = new DeadLetterSpool(directory(), 1024, 2);
+
+    spool.write("1", new EventData(bytes("[x")), new IllegalStateException("line1\r\nline2"));
+
+    assertThat(read(files().get(0)))
+        .isEqualTo("partition=1 size=2 error=IllegalStateException: line1 line2\n[x\n");
+  }
+
+  @Test
+  public void write_rollsAndDeletesOldestFiles() throws Exception {
+    spool = new DeadLetterSpool(directory(), 150, 2);
+
+    for (int i = 0; i < 5; i++) {
+      spool.write("1", message(String.valueOf(i), i, new byte[100]), error);
+    }
+
+    assertThat(fileNames()).containsExactly("dead-letter-000003.log", "dead-letter-000004.log");
+  }
+
+  @Test
+  public void write_continuesAfterPriorRun() throws Exception {
+    spool = new DeadLetterSpool(directory(), 150, 2);
+    spool.write("1", message("0", 0L, new byte[100]), error);
+    spool.write("1", message("1", 1L, new byte[100]), error);
+    spool.close();
+
+    spool = new DeadLetterSpool(directory, 150, 2);
+    spool.write("1", message("2", 2L, new byte[100]), error);
+
+    assertThat(fileNames()).containsExactly("dead-letter-000001.log", "dead-letter-000002.log");
+  }
+
+  @Test
+  public void directoryCreatedOnFirstWrite() throws Exception {
+    directory = folder.getRoot().toPath().resolve("dead-letters");
+    spool = new DeadLetterSpool(directory, 1024, 2);
+    assertThat(directory).doesNotExist();
+
+    spool.write("1", message("0", 0L, bytes("[x")), error);
+
+    assertThat(files()).hasSize(1);
+  }
+
+  Path directory() {
+    return directory = folder.getRoot().toPath();
+  }
+
+  List<Path> files() throws IOException {
+    return Files.list(directory).sorted().collect(Collectors.toList());
+  }
+
+  List<String> fileNames() throws IOException {
+    return files().stream().map(p -> p.getFileName().toString()).collect(Collectors.toList());
+  }
+
+  static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+  }
+
+  static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+public class EventBodiesTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  EventBodies bodies = new EventBodies();
+  byte[] json = SpanBytesEncoder.JSON_V2.encodeList(asList(LOTS_OF_SPANS).subList(0, 10));
+
+  @Test
+  public void identity_returnsSameBody() {
+    assertThat(read(json, null)).isSameAs(json);
+    assertThat(read(json, "identity")).isSameAs(json);
+  }
+
+  @Test
+  public void gzip_detectedByMagicBytes() throws IOException {
+    assertThat(read(gzip(json), null)).isEqualTo(json);
+  }
+
+  @Test
+  public void gzip_contentEncoding() throws IOException {
+    assertThat(read(gzip(json), "gzip")).isEqualTo(json);
+  }
+
+  @Test
+  public void deflate_contentEncoding() throws IOException {
+    assertThat(read(deflate(json), "deflate")).isEqualTo(json);
+  }
+
+  @Test
+  public void reusesInflatersAcrossEvents() throws IOException {
+    byte[] other = SpanBytesEncoder.PROTO3.encodeList(asList(LOTS_OF_SPANS).subList(10, 200));
+
+    assertThat(read(deflate(json), "deflate")).isEqualTo(json);
+    assertThat(read(deflate(other), "deflate")).isEqualTo(other);
+    assertThat(read(gzip(other), "gzip")).isEqualTo(other);
+    assertThat(read(gzip(json), "gzip")).isEqualTo(json);
+  }
+
+  @Test
+  public void gzip_badCrc() throws IOException {
+    byte[] gzip = gzip(json);
+    gzip[gzip.length - 8]++;
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Malformed gzip event body");
+    read(gzip, null);
+  }
+
+  @Test
+  public void gzip_truncated() throws IOException {
+    byte[] gzip = gzip(json);
+    byte[] truncated = new byte[gzip.length / 2];
+    System.arraycopy(gzip, 0, truncated, 0, truncated.length);
+
+    thrown.expect(IllegalArgumentException.class);
+    read(truncated, null);
+  }
+
+  @Test
+  public void zstd_unsupported() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("zstd encoding is not supported");
+    read(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0}, null);
+  }
+
+  @Test
+  public void unknownContentEncoding() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Unsupported Content-Encoding: br");
+    read(json, "br");
+  }
+
+  byte[] read(byte[] body, String contentEncoding) {
+    EventData event = new EventData(body);
+    if (contentEncoding != null) {
+      event.getProperties().put(EventBodies.CONTENT_ENCODING, contentEncoding);
+    }
+    return bodies.read(event, event.getBytes());
+  }
+
+  static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(result)) {
+      out.write(bytes);
+    }
+    return result.toByteArray();
+  }
+
+  static byte[] deflate(byte[] bytes) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (OutputStream out = new DeflaterOutputStream(result)) {
+      out.write(bytes);
+    }
+    return result.toByteArray();
+  }
+}
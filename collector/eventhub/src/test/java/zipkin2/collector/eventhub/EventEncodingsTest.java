@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+public class EventEncodingsTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  List<Span> spans = asList(LOTS_OF_SPANS).subList(0, 3);
+  byte[] proto3 = SpanBytesEncoder.PROTO3.encodeList(spans);
+
+  @Test
+  public void detectedByDefault() {
+    EventEncodings encodings = new EventEncodings(null, null, null);
+
+    EventEncodings.Declared encoding = encodings.encoding(event(proto3, null));
+    assertThat(encoding.decoder).isNull();
+    List<Span> decoded = new ArrayList<>();
+    assertThat(encoding.decodeList(proto3, decoded)).isEqualTo(3);
+    assertThat(decoded).isEqualTo(spans);
+  }
+
+  @Test
+  public void pinned() {
+    EventEncodings encodings = new EventEncodings(SpanBytesDecoder.PROTO3, null, null);
+
+    assertThat(encodings.encoding(event(proto3, null)).decoder).isSameAs(SpanBytesDecoder.PROTO3);
+  }
+
+  @Test
+  public void property_overridesPinned() {
+    EventEncodings encodings =
+        new EventEncodings(SpanBytesDecoder.JSON_V2, "Content-Type", null);
+
+    assertThat(encodings.encoding(event(proto3, "application/x-protobuf")).decoder)
+        .isSameAs(SpanBytesDecoder.PROTO3);
+    assertThat(encodings.encoding(event(proto3, "proto3")).decoder)
+        .isSameAs(SpanBytesDecoder.PROTO3);
+    assertThat(encodings.encoding(event(proto3, null)).decoder)
+        .isSameAs(SpanBytesDecoder.JSON_V2);
+  }
+
+  @Test
+  public void property_jsonUsesPinnedJsonVersion() {
+    assertThat(
+            new EventEncodings(SpanBytesDecoder.JSON_V1, "Content-Type", null)
+                .encoding(event(proto3, "application/json"))
+                .decoder)
+        .isSameAs(SpanBytesDecoder.JSON_V1);
+    assertThat(
+            new EventEncodings(SpanBytesDecoder.PROTO3, "Content-Type", null)
+                .encoding(event(proto3, "application/json"))
+                .decoder)
+        .isNull(); // detected
+  }
+
+  /** Allows events to be grouped by identity */
+  @Test
+  public void property_sameInstanceForSameValue() {
+    EventEncodings encodings = new EventEncodings(null, "Content-Type", null);
+
+    assertThat(encodings.encoding(event(proto3, "PROTO3")))
+        .isSameAs(encodings.encoding(event(proto3, "PROTO3")));
+  }
+
+  @Test
+  public void property_unsupportedFailsOnDecode() {
+    EventEncodings encodings = new EventEncodings(null, "Content-Type", null);
+    EventEncodings.Declared encoding = encodings.encoding(event(proto3, "avro"));
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Unsupported Content-Type: avro");
+    encoding.decodeList(proto3, new ArrayList<>());
+  }
+
+  static EventData event(byte[] body, String contentType) {
+    EventData result = new EventData(body);
+    if (contentType != null) result.getProperties().put("Content-Type", contentType);
+    return result;
+  }
+}
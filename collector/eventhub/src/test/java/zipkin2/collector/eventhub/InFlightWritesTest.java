@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import com.microsoft.azure.eventhubs.EventData;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Callback;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics.NOOP_METRICS;
+import static zipkin2.collector.eventhub.ZipkinEventProcessorTest.json2MessageWithThreeSpans;
+
+public class InFlightWritesTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  ZipkinEventProcessorTest.PendingStorage storage = new ZipkinEventProcessorTest.PendingStorage();
+  InFlightWrites writes =
+      new InFlightWrites(
+          Logger.getAnonymousLogger(),
+          storage,
+          CollectorSampler.ALWAYS_SAMPLE,
+          CollectorMetrics.NOOP_METRICS,
+          10,
+          null,
+          null,
+          0L,
+          null);
+
+  @Test
+  public void lastAcknowledged_onlyAdvancesWhenEarlierWritesComplete() throws Exception {
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    EventData event2 = json2MessageWithThreeSpans("b", 2);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+    writes.write(asList(LOTS_OF_SPANS[1]), event2, 0L, NOOP_METRICS);
+    Callback<Void> first = storage.callbacks.poll(), second = storage.callbacks.poll();
+
+    second.onSuccess(null);
+    assertThat(writes.lastAcknowledged()).isNull();
+    assertThat(writes.inFlight()).isEqualTo(2);
+
+    first.onSuccess(null);
+    assertThat(writes.lastAcknowledged()).isSameAs(event2);
+    assertThat(writes.inFlight()).isZero();
+  }
+
+  @Test
+  public void failedWrite_holdsBackLaterWrites() throws Exception {
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    EventData event2 = json2MessageWithThreeSpans("b", 2);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+    writes.write(asList(LOTS_OF_SPANS[1]), event2, 0L, NOOP_METRICS);
+
+    storage.callbacks.poll().onError(new IllegalStateException());
+    storage.callbacks.poll().onSuccess(null);
+    assertThat(writes.lastAcknowledged()).isNull();
+
+    writes.retryFailed();
+    storage.callbacks.poll().onSuccess(null);
+    assertThat(writes.lastAcknowledged()).isSameAs(event2);
+    assertThat(storage.writes).extracting(l -> l.get(0))
+        .containsExactly(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[0]);
+  }
+
+  @Test
+  public void unsampledSpans_acknowledgedWithoutStorage() throws Exception {
+    writes =
+        new InFlightWrites(
+            Logger.getAnonymousLogger(),
+            storage,
+            CollectorSampler.create(0.0f),
+            CollectorMetrics.NOOP_METRICS,
+            10,
+            null,
+            null,
+            0L,
+            null);
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+
+    assertThat(storage.writes).isEmpty();
+    assertThat(writes.lastAcknowledged()).isSameAs(event1);
+  }
+
+  @Test
+  public void awaitAcknowledged_wakesWhenWritesComplete() throws Exception {
+    writes.write(asList(LOTS_OF_SPANS[0]), json2MessageWithThreeSpans("a", 1), 0L, NOOP_METRICS);
+    Callback<Void> callback = storage.callbacks.poll();
+    new Thread(() -> callback.onSuccess(null)).start();
+
+    assertThat(writes.awaitAcknowledged(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)))
+        .isTrue();
+  }
+
+  @Test
+  public void awaitAcknowledged_falseAtDeadline() throws Exception {
+    writes.write(asList(LOTS_OF_SPANS[0]), json2MessageWithThreeSpans("a", 1), 0L, NOOP_METRICS);
+
+    assertThat(writes.awaitAcknowledged(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10)))
+        .isFalse();
+  }
+
+  @Test
+  public void tryWrite_falseAtDeadlineWhenMaxInFlight() throws Exception {
+    writes =
+        new InFlightWrites(
+            Logger.getAnonymousLogger(),
+            storage,
+            CollectorSampler.ALWAYS_SAMPLE,
+            CollectorMetrics.NOOP_METRICS,
+            1,
+            null,
+            null,
+            0L,
+            null);
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    EventData event2 = json2MessageWithThreeSpans("b", 2);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+
+    assertThat(
+            writes.tryWrite(
+                asList(LOTS_OF_SPANS[1]), event2, 0L, NOOP_METRICS, System.nanoTime()))
+        .isFalse();
+    assertThat(storage.writes).hasSize(1);
+  }
+
+  @Test
+  public void failedWrite_spooledAndAcknowledged() throws Exception {
+    WriteAheadSpool spool = newSpool();
+    writes =
+        new InFlightWrites(
+            Logger.getAnonymousLogger(),
+            storage,
+            CollectorSampler.ALWAYS_SAMPLE,
+            CollectorMetrics.NOOP_METRICS,
+            10,
+            null,
+            spool,
+            0L,
+            null);
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+
+    storage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+    assertThat(writes.lastAcknowledged()).isNull(); // the callback thread doesn't spool
+    assertThat(spool.spans()).isZero();
+
+    writes.retryFailed(); // spooled instead of retried
+    assertThat(writes.lastAcknowledged()).isSameAs(event1);
+    assertThat(spool.spans()).isEqualTo(1L);
+    assertThat(storage.writes).hasSize(1);
+    spool.close();
+  }
+
+  /** Spans waiting on a write permit are spooled once a write failed, not only after a stall. */
+  @Test
+  public void write_spoolsWhenStorageFailing() throws Exception {
+    WriteAheadSpool spool = newSpool();
+    writes =
+        new InFlightWrites(
+            Logger.getAnonymousLogger(),
+            storage,
+            CollectorSampler.ALWAYS_SAMPLE,
+            CollectorMetrics.NOOP_METRICS,
+            2,
+            null,
+            spool,
+            TimeUnit.HOURS.toMillis(1),
+            null);
+    writes.write(asList(LOTS_OF_SPANS[0]), json2MessageWithThreeSpans("a", 1), 0L, NOOP_METRICS);
+    writes.write(asList(LOTS_OF_SPANS[1]), json2MessageWithThreeSpans("b", 2), 0L, NOOP_METRICS);
+    storage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+
+    EventData event3 = json2MessageWithThreeSpans("c", 3);
+    writes.write(asList(LOTS_OF_SPANS[2]), event3, 0L, NOOP_METRICS);
+
+    assertThat(storage.writes).hasSize(2); // the third write wasn't issued
+    assertThat(spool.spans()).isEqualTo(2L); // the failed write and the third one
+    spool.close();
+  }
+
+  /** Instead of waiting for a write permit past the stall, spans are spooled. */
+  @Test
+  public void write_spoolsWhenStalled() throws Exception {
+    WriteAheadSpool spool = newSpool();
+    writes =
+        new InFlightWrites(
+            Logger.getAnonymousLogger(),
+            storage,
+            CollectorSampler.ALWAYS_SAMPLE,
+            CollectorMetrics.NOOP_METRICS,
+            1,
+            null,
+            spool,
+            0L,
+            null);
+    EventData event1 = json2MessageWithThreeSpans("a", 1);
+    EventData event2 = json2MessageWithThreeSpans("b", 2);
+    writes.write(asList(LOTS_OF_SPANS[0]), event1, 0L, NOOP_METRICS);
+    writes.write(asList(LOTS_OF_SPANS[1]), event2, 0L, NOOP_METRICS);
+
+    assertThat(storage.writes).hasSize(1);
+    assertThat(spool.spans()).isEqualTo(1L);
+    assertThat(writes.lastAcknowledged()).isNull(); // the first write is still in flight
+
+    storage.callbacks.poll().onSuccess(null);
+    assertThat(writes.lastAcknowledged()).isSameAs(event2);
+    spool.close();
+  }
+
+  WriteAheadSpool newSpool() {
+    return new WriteAheadSpool(
+        Logger.getAnonymousLogger(), folder.getRoot().toPath(), 1024 * 1024, 2);
+  }
+}
@@ -13,24 +13,35 @@
  */
 package zipkin2.collector.eventhub;
 
+import com.microsoft.azure.eventprocessorhost.EventProcessorHost;
+import com.microsoft.azure.eventprocessorhost.EventProcessorOptions;
 import java.io.InterruptedIOException;
 import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import zipkin2.storage.InMemoryStorage;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static org.hamcrest.CoreMatchers.isA;
 import static org.hamcrest.core.Is.is;
 
 public class LazyRegisterEventProcessorFactoryWithHostTest {
   @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   CompletableFuture<Object> registration = new CompletableFuture<>();
   AtomicBoolean unregistered = new AtomicBoolean();
@@ -169,15 +180,107 @@ public class LazyRegisterEventProcessorFactoryWithHostTest {
     }
   }
 
+  @Test
+  public void newEventProcessorOptions_defaults() {
+    EventProcessorOptions options =
+        LazyRegisterEventProcessorFactoryWithHost.newEventProcessorOptions(
+            EventHubCollector.newBuilder());
+    EventProcessorOptions defaults = EventProcessorOptions.getDefaultOptions();
+
+    assertThat(options.getMaxBatchSize()).isEqualTo(defaults.getMaxBatchSize());
+    assertThat(options.getPrefetchCount()).isEqualTo(defaults.getPrefetchCount());
+    assertThat(options.getReceiveTimeOut()).isEqualTo(defaults.getReceiveTimeOut());
+    assertThat(options.getInvokeProcessorAfterReceiveTimeout()).isFalse();
+  }
+
+  @Test
+  public void newEventProcessorOptions_fromBuilder() {
+    EventProcessorOptions options =
+        LazyRegisterEventProcessorFactoryWithHost.newEventProcessorOptions(
+            EventHubCollector.newBuilder()
+                .maxBatchSize(500)
+                .prefetchCount(1000)
+                .receiveTimeoutMillis(5000)
+                .invokeProcessorAfterReceiveTimeout(true));
+
+    assertThat(options.getMaxBatchSize()).isEqualTo(500);
+    assertThat(options.getPrefetchCount()).isEqualTo(1000);
+    assertThat(options.getReceiveTimeOut()).isEqualTo(Duration.ofSeconds(5));
+    assertThat(options.getInvokeProcessorAfterReceiveTimeout()).isTrue();
+  }
+
+  @Test
+  public void executorThreads_namedPoolWithGauges() throws Exception {
+    Map<String, EventHubMetrics.Gauge> gauges = new LinkedHashMap<>();
+    LazyRegisterEventProcessorFactoryWithHost lazy =
+        new TestLazyRegisterEventProcessorFactoryWithHost(
+            builder().executorThreads(2).eventHubMetrics(gauges::put));
+
+    assertThat(lazy.executor.submit(() -> Thread.currentThread().getName()).get())
+        .startsWith("zipkin-eventhub-");
+    assertThat(gauges).containsOnlyKeys("executor.queue", "executor.active");
+    assertThat(gauges.get("executor.queue").value()).isZero();
+
+    lazy.get();
+    lazy.close();
+    assertThat(lazy.executor.isShutdown()).isTrue();
+  }
+
+  @Test
+  public void executor_notShutdownOnClose() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      LazyRegisterEventProcessorFactoryWithHost lazy =
+          new TestLazyRegisterEventProcessorFactoryWithHost(builder().executor(executor));
+
+      lazy.get();
+      lazy.close();
+      assertThat(executor.isShutdown()).isFalse();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** For example, when the connection string is malformed */
+  @Test
+  public void constructor_closesWhatWasMadeOnFailure() throws Exception {
+    IllegalArgumentException exception = new IllegalArgumentException("bad connection string");
+    try {
+      new TestLazyRegisterEventProcessorFactoryWithHost(
+          builder().executorThreads(2).spoolDirectory(folder.getRoot().toPath())) {
+        @Override
+        EventProcessorHost newEventProcessorHost(EventHubCollector.Builder builder) {
+          throw exception;
+        }
+      };
+      failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      assertThat(e).isSameAs(exception);
+    }
+
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (!thread.getName().startsWith("zipkin-eventhub-spool-")) continue;
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+      assertThat(thread.isAlive()).isFalse();
+    }
+  }
+
+  static EventHubCollector.Builder builder() {
+    return EventHubCollector.newBuilder()
+        .connectionString(
+            "endpoint=sb://someurl.net;SharedAccessKeyName=dumbo;SharedAccessKey=uius7y8ewychsih")
+        .storageConnectionString("UseDevelopmentStorage=true")
+        .storage(InMemoryStorage.newBuilder().build());
+  }
+
   class TestLazyRegisterEventProcessorFactoryWithHost
       extends LazyRegisterEventProcessorFactoryWithHost {
     TestLazyRegisterEventProcessorFactoryWithHost() {
-      super(
-          EventHubCollector.newBuilder()
-              .connectionString(
-                  "endpoint=sb://someurl.net;SharedAccessKeyName=dumbo;SharedAccessKey=uius7y8ewychsih")
-              .storageConnectionString("UseDevelopmentStorage=true")
-              .storage(InMemoryStorage.newBuilder().build()));
+      this(builder());
+    }
+
+    TestLazyRegisterEventProcessorFactoryWithHost(EventHubCollector.Builder builder) {
+      super(builder);
     }
 
     @Override
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryBudgetTest {
+  MemoryBudget budget = new MemoryBudget(100);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxBytes_positive() {
+    new MemoryBudget(0);
+  }
+
+  @Test
+  public void tryReserve_failsWhenOverBudget() {
+    assertThat(budget.tryReserve(60)).isTrue();
+    assertThat(budget.tryReserve(40)).isTrue();
+    assertThat(budget.tryReserve(1)).isFalse();
+
+    assertThat(budget.usedBytes()).isEqualTo(100L);
+  }
+
+  /** Otherwise, an event larger than the budget could never be processed. */
+  @Test
+  public void tryReserve_allowsLargeEventWhenEmpty() {
+    assertThat(budget.tryReserve(150)).isTrue();
+    assertThat(budget.tryReserve(1)).isFalse();
+
+    budget.release(150);
+    assertThat(budget.usedBytes()).isZero();
+  }
+
+  @Test
+  public void reserve_timesOut() throws Exception {
+    budget.tryReserve(100);
+
+    long startNanos = System.nanoTime();
+    assertThat(budget.reserve(1, TimeUnit.MILLISECONDS.toNanos(50))).isFalse();
+    assertThat(System.nanoTime() - startNanos)
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+    assertThat(budget.usedBytes()).isEqualTo(100L);
+  }
+
+  @Test
+  public void reserve_wakesOnRelease() throws Exception {
+    budget.tryReserve(100);
+    CountDownLatch waiting = new CountDownLatch(1);
+    AtomicBoolean reserved = new AtomicBoolean();
+    Thread waiter =
+        new Thread(
+            () -> {
+              waiting.countDown();
+              try {
+                reserved.set(budget.reserve(50, TimeUnit.SECONDS.toNanos(10)));
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    waiter.start();
+    waiting.await();
+
+    budget.release(60);
+    waiter.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(reserved).isTrue();
+    assertThat(budget.usedBytes()).isEqualTo(90L);
+  }
+
+  @Test
+  public void forceReserve_exceedsBudget() {
+    budget.tryReserve(100);
+    budget.forceReserve(50);
+
+    assertThat(budget.usedBytes()).isEqualTo(150L);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import org.junit.Test;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OwnedPartitionsTest {
+  OwnedPartitions ownedPartitions = new OwnedPartitions(10);
+  EventHubCollector.Builder builder =
+      EventHubCollector.newBuilder()
+          .storage(InMemoryStorage.newBuilder().build())
+          .dedupeMaxSpans(10);
+  ZipkinEventProcessor processor1 = newProcessor(), processor2 = newProcessor();
+
+  @Test
+  public void tracksOnlyOpenProcessors() {
+    processor1.writes.deduplicator = ownedPartitions.opened("1", processor1);
+    processor2.writes.deduplicator = ownedPartitions.opened("2", processor2);
+    assertThat(ownedPartitions.owned).containsOnlyKeys("1", "2");
+
+    ownedPartitions.closed("1", processor1, true);
+    assertThat(ownedPartitions.owned).containsOnlyKeys("2");
+  }
+
+  /** A processor closing late shouldn't forget the one which took over the partition. */
+  @Test
+  public void closed_onlyRemovesSameProcessor() {
+    processor1.writes.deduplicator = ownedPartitions.opened("1", processor1);
+    processor2.writes.deduplicator = ownedPartitions.opened("1", processor2);
+
+    ownedPartitions.closed("1", processor1, true);
+    assertThat(ownedPartitions.owned).containsEntry("1", processor2);
+  }
+
+  @Test
+  public void opened_reusesDeduplicatorOfSamePartition() {
+    SpanDeduplicator deduplicator = ownedPartitions.opened("1", processor1);
+    processor1.writes.deduplicator = deduplicator;
+    ownedPartitions.closed("1", processor1, true);
+
+    assertThat(ownedPartitions.opened("2", processor2)).isNotSameAs(deduplicator);
+    assertThat(ownedPartitions.opened("1", processor2)).isSameAs(deduplicator);
+  }
+
+  /** The deduplicator may remember spans the next owner of the partition didn't checkpoint. */
+  @Test
+  public void closed_discardsDeduplicatorUnlessDrained() {
+    SpanDeduplicator deduplicator = ownedPartitions.opened("1", processor1);
+    processor1.writes.deduplicator = deduplicator;
+    ownedPartitions.closed("1", processor1, false);
+
+    assertThat(ownedPartitions.parked).isEmpty();
+    assertThat(ownedPartitions.opened("1", processor2)).isNotSameAs(deduplicator);
+  }
+
+  @Test
+  public void opened_expiresParkedDeduplicators() {
+    ownedPartitions = new OwnedPartitions(10, 0L);
+    SpanDeduplicator deduplicator = ownedPartitions.opened("1", processor1);
+    processor1.writes.deduplicator = deduplicator;
+    ownedPartitions.closed("1", processor1, true);
+
+    assertThat(ownedPartitions.opened("1", processor2)).isNotSameAs(deduplicator);
+    assertThat(ownedPartitions.parked).isEmpty();
+  }
+
+  @Test
+  public void deduplicators_includesParked() {
+    processor1.writes.deduplicator = ownedPartitions.opened("1", processor1);
+    processor2.writes.deduplicator = ownedPartitions.opened("2", processor2);
+    ownedPartitions.closed("1", processor1, true);
+
+    assertThat(ownedPartitions.deduplicators())
+        .containsExactlyInAnyOrder(processor1.writes.deduplicator, processor2.writes.deduplicator);
+  }
+
+  @Test
+  public void opened_nullWhenDisabled() {
+    ownedPartitions = new OwnedPartitions(0);
+
+    assertThat(ownedPartitions.opened("1", processor1)).isNull();
+  }
+
+  ZipkinEventProcessor newProcessor() {
+    return new ZipkinEventProcessor(builder, new HostResources().ownedPartitions(ownedPartitions));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+public class SpanDeduplicatorTest {
+  SpanDeduplicator deduplicator = new SpanDeduplicator(10);
+
+  @Test
+  public void removeDuplicates_dropsSpansStoredBefore() {
+    deduplicator.stored(list(0, 1, 2));
+
+    List<Span> redelivered = list(1, 2, 3);
+    assertThat(deduplicator.removeDuplicates(redelivered, 0)).isEqualTo(2);
+    assertThat(redelivered).containsExactly(LOTS_OF_SPANS[3]);
+  }
+
+  /** Spans read again before storage acknowledged them must be written, or they'd be lost. */
+  @Test
+  public void removeDuplicates_keepsSpansNotYetStored() {
+    assertThat(deduplicator.removeDuplicates(list(0, 1, 2), 0)).isZero();
+
+    List<Span> redelivered = list(0, 1, 2);
+    assertThat(deduplicator.removeDuplicates(redelivered, 0)).isZero();
+    assertThat(redelivered).hasSize(3);
+    assertThat(deduplicator.size()).isZero();
+  }
+
+  /** Spans before the index were already checked, for example, from a prior event. */
+  @Test
+  public void removeDuplicates_onlyChecksFromIndex() {
+    deduplicator.stored(list(0));
+    List<Span> spans = list(0, 1, 0);
+
+    assertThat(deduplicator.removeDuplicates(spans, 1)).isEqualTo(1);
+    assertThat(spans).containsExactly(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1]);
+  }
+
+  /** A span can be reported in pieces, for example, when a late annotation is sent separately. */
+  @Test
+  public void removeDuplicates_keepsSameIdWithOtherFields() {
+    Span span = LOTS_OF_SPANS[0];
+    Span piece = span.toBuilder().addAnnotation(span.timestampAsLong() + 1, "late").build();
+    Span shared = span.toBuilder().shared(true).build();
+    deduplicator.stored(asList(span));
+    List<Span> spans = new ArrayList<>(asList(piece, shared));
+
+    assertThat(deduplicator.removeDuplicates(spans, 0)).isZero();
+    assertThat(spans).hasSize(2);
+  }
+
+  @Test
+  public void stored_ignoresRepeats() {
+    deduplicator.stored(list(0, 1, 0, 1));
+
+    assertThat(deduplicator.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void forgetsOldestSpansFirst() {
+    deduplicator.stored(list(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11));
+    assertThat(deduplicator.size()).isEqualTo(10);
+
+    List<Span> spans = list(0, 1, 11);
+    assertThat(deduplicator.removeDuplicates(spans, 0)).isEqualTo(1);
+    assertThat(spans).containsExactly(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1]);
+  }
+
+  @Test
+  public void sizeInBytes_fixedByMaxSpans() {
+    long sizeInBytes = deduplicator.sizeInBytes();
+    deduplicator.stored(asList(LOTS_OF_SPANS).subList(0, 100));
+
+    assertThat(deduplicator.size()).isEqualTo(10);
+    assertThat(deduplicator.sizeInBytes()).isEqualTo(sizeInBytes).isEqualTo(8 * (10 + 32));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxSpans_mustBePositive() {
+    new SpanDeduplicator(0);
+  }
+
+  static List<Span> list(int... indexes) {
+    List<Span> result = new ArrayList<>();
+    for (int index : indexes) result.add(LOTS_OF_SPANS[index]);
+    return result;
+  }
+}
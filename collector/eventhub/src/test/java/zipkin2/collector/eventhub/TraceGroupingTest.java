@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.collector.eventhub.EventHubMetrics.PartitionMetrics;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+public class TraceGroupingTest {
+  PartitionMetrics metrics = mock(PartitionMetrics.class);
+
+  Span a1 = LOTS_OF_SPANS[0];
+  Span a2 = LOTS_OF_SPANS[1].toBuilder().traceId(a1.traceId()).build();
+  Span a3 = LOTS_OF_SPANS[2].toBuilder().traceId(a1.traceId()).build();
+  Span b1 = LOTS_OF_SPANS[3];
+  Span b2 = LOTS_OF_SPANS[4].toBuilder().traceId(b1.traceId()).build();
+  Span c1 = LOTS_OF_SPANS[5];
+
+  @Test
+  public void groupByTrace_inOrderFirstSeen() {
+    List<Span> grouped = TraceGrouping.groupByTrace(asList(a1, b1, a2, c1, b2, a3), metrics);
+
+    assertThat(grouped).containsExactly(a1, a2, a3, b1, b2, c1);
+    verify(metrics).recordTraceGrouping(3, 6);
+  }
+
+  @Test
+  public void groupByTrace_returnsInputWhenAlreadyGrouped() {
+    List<Span> spans = asList(a1, a2, b1, b2, c1);
+
+    assertThat(TraceGrouping.groupByTrace(spans, metrics)).isSameAs(spans);
+    verify(metrics).recordTraceGrouping(3, 3);
+  }
+
+  @Test
+  public void groupByTrace_empty() {
+    List<Span> spans = Collections.emptyList();
+
+    assertThat(TraceGrouping.groupByTrace(spans, metrics)).isSameAs(spans);
+    verifyZeroInteractions(metrics);
+  }
+}
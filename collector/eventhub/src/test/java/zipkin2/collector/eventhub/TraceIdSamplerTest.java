@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.InMemoryCollectorMetrics;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+
+@RunWith(Parameterized.class)
+public class TraceIdSamplerTest {
+  @Parameterized.Parameter(0)
+  public SpanBytesEncoder encoder;
+
+  @Parameterized.Parameter(1)
+  public SpanBytesDecoder decoder;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Iterable<Object[]> data() {
+    return asList(
+        new Object[][] {
+          {SpanBytesEncoder.JSON_V1, SpanBytesDecoder.JSON_V1},
+          {SpanBytesEncoder.JSON_V2, SpanBytesDecoder.JSON_V2},
+          {SpanBytesEncoder.THRIFT, SpanBytesDecoder.THRIFT},
+          {SpanBytesEncoder.PROTO3, SpanBytesDecoder.PROTO3}
+        });
+  }
+
+  CollectorSampler collectorSampler = CollectorSampler.create(0.5f);
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  TraceIdSampler sampler = TraceIdSampler.create(collectorSampler, metrics);
+  List<Span> spans = new ArrayList<>(asList(LOTS_OF_SPANS).subList(0, 100));
+
+  @Test
+  public void alwaysSample_isNull() {
+    assertThat(TraceIdSampler.create(CollectorSampler.ALWAYS_SAMPLE, CollectorMetrics.NOOP_METRICS))
+        .isNull();
+  }
+
+  /** The spans decoded are the same as when sampling after decoding. */
+  @Test
+  public void keepsSameSpansAsSamplingAfterDecode() {
+    byte[] list = encoder.encodeList(spans);
+    List<Span> expected = new ArrayList<>();
+    for (Span span : decoder.decodeList(list)) {
+      if (collectorSampler.isSampled(span.traceId(), false)) expected.add(span);
+    }
+    assertThat(expected).isNotEmpty().hasSizeLessThan(spans.size());
+
+    TraceIdSampler.Sampled sampled = sampler.sample(decoder, list);
+
+    assertThat(decoder.decodeList(sampled.list())).isEqualTo(expected);
+    assertThat(sampled.dropped).isEqualTo(spans.size() - expected.size());
+    assertThat(metrics.spans()).isEqualTo(sampled.dropped);
+    assertThat(metrics.spansDropped()).isEqualTo(sampled.dropped);
+  }
+
+  @Test
+  public void keepsDebugSpans() {
+    for (int i = 0; i < spans.size(); i++) {
+      spans.set(i, spans.get(i).toBuilder().debug(true).build());
+    }
+
+    assertThat(sampler.sample(decoder, encoder.encodeList(spans))).isNull(); // all kept
+  }
+
+  @Test
+  public void dropsAll() {
+    TraceIdSampler sampler =
+        TraceIdSampler.create(CollectorSampler.create(0.0f), CollectorMetrics.NOOP_METRICS);
+
+    TraceIdSampler.Sampled sampled = sampler.sample(decoder, encoder.encodeList(spans));
+    assertThat(sampled.keptCount).isZero();
+    assertThat(decoder.decodeList(sampled.list())).isEmpty();
+  }
+
+  /** Leaves the error to the decoder */
+  @Test
+  public void unreadable_isNull() {
+    byte[] list = encoder.encodeList(spans);
+    byte[] truncated = new byte[list.length - 1];
+    System.arraycopy(list, 0, truncated, 0, truncated.length);
+
+    assertThat(sampler.sample(decoder, truncated)).isNull();
+    assertThat(metrics.spansDropped()).isZero();
+  }
+}
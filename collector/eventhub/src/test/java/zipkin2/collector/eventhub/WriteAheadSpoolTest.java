@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector.eventhub;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.collector.eventhub.WriteAheadSpool.HEADER_SIZE;
+import static zipkin2.collector.eventhub.WriteAheadSpool.RECORD_HEADER_SIZE;
+
+public class WriteAheadSpoolTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  Logger logger = Logger.getAnonymousLogger();
+  InMemoryStorage storage = InMemoryStorage.newBuilder().build();
+  Path directory;
+  WriteAheadSpool spool;
+
+  @Before
+  public void setup() {
+    directory = folder.getRoot().toPath().resolve("spool");
+  }
+
+  @After
+  public void close() throws IOException {
+    if (spool != null) spool.close();
+  }
+
+  @Test
+  public void replay_writesSpansInOrderAppended() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    spool.append(asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1]));
+    spool.append(asList(LOTS_OF_SPANS[2]));
+    assertThat(spool.spans()).isEqualTo(3L);
+
+    assertThat(spool.replay(storage, 100)).isEqualTo(3);
+    assertThat(storage.getTraces())
+        .flatExtracting(t -> t)
+        .containsExactlyInAnyOrder(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
+    assertThat(spool.spans()).isZero();
+    assertThat(spool.bytes()).isZero();
+  }
+
+  @Test
+  public void replay_stopsAfterMaxSpans() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    for (int i = 0; i < 3; i++) spool.append(asList(LOTS_OF_SPANS[i]));
+
+    assertThat(spool.replay(storage, 2)).isEqualTo(2);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(2);
+    assertThat(spool.spans()).isEqualTo(1L);
+  }
+
+  @Test
+  public void replay_keepsSpansWhenStorageFails() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    spool.append(asList(LOTS_OF_SPANS[0]));
+
+    assertThat(spool.replay(new ZipkinEventProcessorTest.PendingStorage(), 100)).isZero();
+    assertThat(spool.spans()).isEqualTo(1L);
+
+    assertThat(spool.replay(storage, 100)).isEqualTo(1);
+  }
+
+  @Test
+  public void append_falseWhenFull() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, segmentBytesFor(LOTS_OF_SPANS[0]), 2);
+
+    assertThat(spool.append(asList(LOTS_OF_SPANS[0]))).isTrue();
+    assertThat(spool.append(asList(LOTS_OF_SPANS[0]))).isTrue(); // in a second segment
+    assertThat(spool.append(asList(LOTS_OF_SPANS[0]))).isFalse();
+    assertThat(segments()).hasSize(2);
+  }
+
+  @Test
+  public void append_falseWhenLargerThanSegment() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, segmentBytesFor(LOTS_OF_SPANS[0]), 2);
+
+    assertThat(spool.append(asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1]))).isFalse();
+  }
+
+  @Test
+  public void replay_deletesReplayedSegments() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, segmentBytesFor(LOTS_OF_SPANS[0]), 3);
+    for (int i = 0; i < 3; i++) spool.append(asList(LOTS_OF_SPANS[0]));
+    assertThat(segments()).hasSize(3);
+
+    spool.replay(storage, 100);
+    assertThat(segments()).hasSize(1); // the last is kept for appends
+  }
+
+  @Test
+  public void replaysSegmentsOfPreviousRun() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    for (int i = 0; i < 3; i++) spool.append(asList(LOTS_OF_SPANS[i]));
+    spool.replay(storage, 1);
+    spool.close();
+
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    assertThat(spool.replay(storage, 100)).isEqualTo(2); // the first isn't replayed again
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void ignoresTornRecordOfPreviousRun() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    spool.append(asList(LOTS_OF_SPANS[0]));
+    spool.append(asList(LOTS_OF_SPANS[1]));
+    spool.close();
+
+    // Corrupt the body of the second record
+    Path segment = segments().get(0);
+    byte[] bytes = Files.readAllBytes(segment);
+    int second = HEADER_SIZE + RECORD_HEADER_SIZE + encodedSize(LOTS_OF_SPANS[0]);
+    bytes[second + RECORD_HEADER_SIZE] ^= 1;
+    Files.write(segment, bytes);
+
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    assertThat(spool.replay(storage, 100)).isEqualTo(1);
+    assertThat(storage.getTraces()).flatExtracting(t -> t).containsExactly(LOTS_OF_SPANS[0]);
+  }
+
+  @Test(expected = IOException.class)
+  public void directoryInUse() throws Exception {
+    spool = new WriteAheadSpool(logger, directory, 1024 * 1024, 2);
+    spool.append(asList(LOTS_OF_SPANS[0]));
+
+    try (WriteAheadSpool other = new WriteAheadSpool(logger, directory, 1024 * 1024, 2)) {
+      other.append(asList(LOTS_OF_SPANS[1]));
+    }
+  }
+
+  static int segmentBytesFor(Span span) {
+    return HEADER_SIZE + RECORD_HEADER_SIZE + encodedSize(span);
+  }
+
+  static int encodedSize(Span span) {
+    return SpanBytesEncoder.PROTO3.encodeList(asList(span)).length;
+  }
+
+  List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .filter(f -> f.getFileName().toString().endsWith(WriteAheadSpool.SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
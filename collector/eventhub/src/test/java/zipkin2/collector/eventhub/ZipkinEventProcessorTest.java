@@ -14,8 +14,15 @@
 package zipkin2.collector.eventhub;
 
 import com.microsoft.azure.eventhubs.EventData;
+import com.microsoft.azure.eventprocessorhost.CloseReason;
 import com.microsoft.azure.eventprocessorhost.PartitionContext;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -23,50 +30,85 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import zipkin2.Call;
+import zipkin2.Callback;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.codec.SpanBytesEncoder;
-import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.InMemoryCollectorMetrics;
 import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static zipkin2.TestObjects.LOTS_OF_SPANS;
 
 public class ZipkinEventProcessorTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   List<Span> spans = asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
 
   InMemoryStorage storage = InMemoryStorage.newBuilder().build();
-  Collector collector = Collector.newBuilder(EventHubCollector.class).storage(storage).build();
   ConcurrentLinkedQueue<EventData> checkpointEvents = new ConcurrentLinkedQueue<>();
   TestLogger logger = new TestLogger();
+  long lastEnqueuedSequenceNumber = -1L;
 
   // we are using mock only to create an instance. we can't mock methods as some of our tests
   // are multithreaded.
   PartitionContext context = mock(PartitionContext.class);
 
-  ZipkinEventProcessor processor =
-      new ZipkinEventProcessor(logger, collector, 10) {
-        @Override
-        String partitionId(PartitionContext context) {
-          assertThat(context).isSameAs(ZipkinEventProcessorTest.this.context);
-          return "1";
-        }
-
-        @Override
-        void checkpoint(PartitionContext context, EventData data) {
-          assertThat(context).isSameAs(ZipkinEventProcessorTest.this.context);
-          checkpointEvents.add(data);
-        }
-      };
+  // collaborators shared by partitions, set by tests before making a processor
+  HostResources resources = new HostResources();
+  ZipkinEventProcessor processor = newProcessor(builder());
+
+  EventHubCollector.Builder builder() {
+    return EventHubCollector.newBuilder().storage(storage).checkpointBatchSize(10);
+  }
+
+  ZipkinEventProcessor newProcessor(EventHubCollector.Builder builder) {
+    return new ZipkinEventProcessor(logger, builder, resources) {
+      @Override
+      String partitionId(PartitionContext context) {
+        assertThat(context).isSameAs(ZipkinEventProcessorTest.this.context);
+        return "1";
+      }
+
+      @Override
+      void checkpoint(PartitionContext context, EventData data) {
+        assertThat(context).isSameAs(ZipkinEventProcessorTest.this.context);
+        checkpointEvents.add(data);
+      }
+
+      @Override
+      long lastEnqueuedSequenceNumber(PartitionContext context) {
+        return lastEnqueuedSequenceNumber;
+      }
+    };
+  }
 
   // mocked invocations aren't thread-safe. let's test we aren't using them
   @After
@@ -110,6 +152,899 @@ public class ZipkinEventProcessorTest {
     assertThat(logger.messages.poll()).isEqualTo("FINE: Partition 1 checkpointing at d,4");
   }
 
+  @Test
+  public void checkpointsOnBatchBytes() throws Exception {
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData event2 = jsonMessageWithThreeSpans("b", 2);
+    processor =
+        newProcessor(
+            builder().checkpointBatchSize(0).checkpointBatchBytes(event1.getBytes().length + 1));
+
+    processor.onEvents(context, asList(event1));
+    assertThat(checkpointEvents).isEmpty();
+
+    processor.onEvents(context, asList(event2));
+    assertThat(checkpointEvents).containsExactly(event2);
+  }
+
+  @Test
+  public void checkpointsOnInterval_evenWithoutNewEvents() throws Exception {
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    processor = newProcessor(builder().checkpointBatchSize(0).checkpointIntervalMillis(50));
+
+    processor.onEvents(context, asList(event1));
+    assertThat(checkpointEvents).isEmpty();
+
+    Thread.sleep(50);
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(checkpointEvents).containsExactly(event1);
+
+    // We don't checkpoint again when the offset hasn't moved
+    Thread.sleep(50);
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(checkpointEvents).containsExactly(event1);
+  }
+
+  @Test
+  public void checkpointMinIntervalMillis_capsCheckpointRate() throws Exception {
+    processor = newProcessor(builder().checkpointBatchSize(1).checkpointMinIntervalMillis(1000));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+    assertThat(checkpointEvents).isEmpty();
+  }
+
+  @Test
+  public void checkpointPolicy_required() {
+    thrown.expect(IllegalArgumentException.class);
+    newProcessor(builder().checkpointBatchSize(0));
+  }
+
+  @Test
+  public void writeMaxSpans_carriesSpansOverCallbacks() throws Exception {
+    processor = newProcessor(builder().writeMaxSpans(6));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void writeMaxBytes_carriesSpansOverCallbacks() throws Exception {
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    processor = newProcessor(builder().writeMaxBytes(event1.getBytes().length + 1));
+
+    processor.onEvents(context, asList(event1));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void writeLingerMillis_writesOnceExpired() throws Exception {
+    processor = newProcessor(builder().writeLingerMillis(50));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    Thread.sleep(50);
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  /** When invoked after a receive timeout, write linger can elapse on an idle partition. */
+  @Test
+  public void receiveTimeout_nullEvents() throws Exception {
+    processor = newProcessor(builder().writeLingerMillis(50));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    Thread.sleep(50);
+    processor.onEvents(context, null);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void compressedEvents() throws Exception {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    EventData gzipped = message("a", 1, EventBodiesTest.gzip(json));
+    EventData deflated = message("b", 2, EventBodiesTest.deflate(json));
+    deflated.getProperties().put("Content-Encoding", "deflate");
+
+    processor.onEvents(context, asList(gzipped, deflated));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void compressedEvents_parallelDecode() throws Exception {
+    ParallelDecoder decoder = new ParallelDecoder(2);
+    try {
+      resources.decoder(decoder);
+      processor = newProcessor(builder());
+      byte[] json = SpanBytesEncoder.JSON_V2.encodeList(spans);
+
+      processor.onEvents(
+          context,
+          asList(message("a", 1, EventBodiesTest.gzip(json)), json2MessageWithThreeSpans("b", 2)));
+
+      assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void fixedEncoding() throws Exception {
+    processor = newProcessor(builder().encoding(SpanBytesDecoder.PROTO3));
+
+    processor.onEvents(
+        context, asList(message("a", 1, SpanBytesEncoder.PROTO3.encodeList(spans))));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void fixedEncoding_wrongEncodingDropped() throws Exception {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    processor = newProcessor(builder().encoding(SpanBytesDecoder.PROTO3).metrics(metrics));
+
+    processor.onEvents(context, asList(json2MessageWithThreeSpans("a", 1)));
+
+    assertThat(storage.acceptedSpanCount()).isZero();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  /** Consecutive events of the same encoding are decoded together, but stay in offset order. */
+  @Test
+  public void encodingProperty_parallelDecode() throws Exception {
+    ParallelDecoder decoder = new ParallelDecoder(2);
+    try {
+      resources.decoder(decoder);
+      processor =
+          newProcessor(builder().encodingProperty("Content-Type").writeMaxInFlight(100));
+      List<EventData> events = new ArrayList<>();
+      List<Span> expected = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        List<Span> spans = asList(LOTS_OF_SPANS).subList(i * 3, i * 3 + 3);
+        expected.addAll(spans);
+        boolean proto3 = i < 3 || i > 6;
+        EventData event =
+            message(
+                Integer.toHexString(i + 1),
+                i + 1,
+                (proto3 ? SpanBytesEncoder.PROTO3 : SpanBytesEncoder.THRIFT).encodeList(spans));
+        event.getProperties().put("Content-Type", proto3 ? "PROTO3" : "application/x-thrift");
+        events.add(event);
+      }
+
+      processor.onEvents(context, events);
+
+      assertThat(storage.spanStore().getTraces().stream().flatMap(List::stream))
+          .containsExactlyInAnyOrderElementsOf(expected);
+    } finally {
+      decoder.close();
+    }
+  }
+
+  /** Spans dropped before decoding still count towards checkpoints. */
+  @Test
+  public void sampledBeforeDecode() throws Exception {
+    CollectorSampler sampler = CollectorSampler.create(0.1f);
+    processor = newProcessor(builder().sampler(sampler).checkpointBatchSize(100));
+    List<Span> spans = asList(LOTS_OF_SPANS).subList(0, 100);
+    int expected = (int) spans.stream().filter(s -> sampler.isSampled(s.traceId(), false)).count();
+    EventData event = message("a", 1, SpanBytesEncoder.PROTO3.encodeList(spans));
+
+    processor.onEvents(context, asList(event));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(expected);
+    assertThat(checkpointEvents).containsExactly(event);
+  }
+
+  /** When a lease returns to this host, events since the last checkpoint are redelivered. */
+  @Test
+  public void dedupe_dropsRedeliveredSpans() throws Exception {
+    RecordingMetrics metrics = new RecordingMetrics();
+    processor =
+        newProcessor(
+            builder().dedupeMaxSpans(100).eventHubMetrics(metrics).checkpointBatchSize(100));
+    EventData event1 = message("a", 1, SpanBytesEncoder.PROTO3.encodeList(spans));
+    List<Span> spans2 = asList(spans.get(2), LOTS_OF_SPANS[3]);
+    EventData event2 = message("b", 2, SpanBytesEncoder.JSON_V2.encodeList(spans2));
+
+    processor.onEvents(context, asList(event1));
+    processor.onEvents(context, asList(event1, event2)); // redelivered, and a new event
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(4);
+    assertThat(metrics.dedupeChecked).isEqualTo(8);
+    assertThat(metrics.duplicates).isEqualTo(4);
+  }
+
+  /** Spans are only remembered once stored, so a redelivery can replace a failed write. */
+  @Test
+  public void dedupe_keepsSpansNotYetStored() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    RecordingMetrics metrics = new RecordingMetrics();
+    processor =
+        newProcessor(
+            builder()
+                .storage(pendingStorage)
+                .dedupeMaxSpans(100)
+                .eventHubMetrics(metrics)
+                .checkpointBatchSize(100));
+    EventData event1 = message("a", 1, SpanBytesEncoder.PROTO3.encodeList(spans));
+
+    processor.onEvents(context, asList(event1));
+    pendingStorage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+
+    processor.onEvents(context, asList(event1)); // redelivered before the write was retried
+    assertThat(metrics.duplicates).isZero();
+
+    Callback<Void> callback;
+    while ((callback = pendingStorage.callbacks.poll()) != null) callback.onSuccess(null);
+    processor.onEvents(context, asList(event1)); // redelivered after the spans were stored
+    assertThat(metrics.duplicates).isEqualTo(3);
+  }
+
+  @Test
+  public void memoryBudget_releasedOnWrite() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1_000_000);
+    resources.memoryBudget(budget);
+    processor = newProcessor(builder().writeMaxSpans(6));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+
+    processor.onEvents(context, asList(event1));
+    assertThat(budget.usedBytes()).isEqualTo(event1.getBytes().length);
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+    assertThat(budget.usedBytes()).isZero();
+  }
+
+  /** Pending and failed writes still hold their spans, so they count against the budget. */
+  @Test
+  public void memoryBudget_heldUntilAcknowledged() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    MemoryBudget budget = new MemoryBudget(1_000_000);
+    resources.memoryBudget(budget);
+    processor = newProcessor(builder().storage(pendingStorage).writeMaxSpans(3));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+
+    processor.onEvents(context, asList(event1));
+    assertThat(pendingStorage.writes).hasSize(1);
+    assertThat(budget.usedBytes()).isEqualTo(event1.getBytes().length);
+
+    pendingStorage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+    processor.onEvents(context, null); // retries the failed write
+    assertThat(pendingStorage.writes).hasSize(2);
+    assertThat(budget.usedBytes()).isEqualTo(event1.getBytes().length);
+
+    pendingStorage.callbacks.poll().onSuccess(null);
+    assertThat(budget.usedBytes()).isZero();
+  }
+
+  @Test
+  public void memoryBudget_releasedWhenLeaseLost() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    MemoryBudget budget = new MemoryBudget(1_000_000);
+    resources.memoryBudget(budget);
+    processor = newProcessor(builder().storage(pendingStorage).writeMaxSpans(6));
+
+    processor.onEvents(
+        context,
+        asList(
+            jsonMessageWithThreeSpans("a", 1),
+            jsonMessageWithThreeSpans("b", 2),
+            jsonMessageWithThreeSpans("c", 3)));
+    assertThat(pendingStorage.writes).hasSize(1); // the last event is still buffered
+
+    processor.onClose(context, CloseReason.LeaseLost);
+    assertThat(budget.usedBytes()).isZero();
+  }
+
+  /** A partition shouldn't wait on its own buffer, so it writes that first. */
+  @Test
+  public void memoryBudget_writesBufferWhenExhausted() throws Exception {
+    RecordingMetrics metrics = new RecordingMetrics();
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData event2 = jsonMessageWithThreeSpans("b", 2);
+    MemoryBudget budget = new MemoryBudget(event1.getBytes().length);
+    resources.memoryBudget(budget);
+    processor =
+        newProcessor(
+            builder().writeMaxSpans(100).eventHubMetrics(metrics).memoryBudgetWaitMillis(0));
+
+    processor.onEvents(context, asList(event1));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    processor.onEvents(context, asList(event2));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+    assertThat(budget.usedBytes()).isEqualTo(event2.getBytes().length);
+    assertThat(metrics.memoryWaits).isEqualTo(1);
+    assertThat(metrics.shed).isZero();
+  }
+
+  @Test
+  public void memoryBudgetShed_keepsDebugSpansAndErrors() throws Exception {
+    RecordingMetrics metrics = new RecordingMetrics();
+    MemoryBudget budget = new MemoryBudget(100);
+    budget.tryReserve(100); // exhausted by another partition
+    resources.memoryBudget(budget);
+    processor =
+        newProcessor(
+            builder()
+                .checkpointBatchSize(1)
+                .eventHubMetrics(metrics)
+                .memoryBudgetWaitMillis(0)
+                .memoryBudgetShed(true));
+    Span span = Span.newBuilder().traceId("1").id("1").name("get").build();
+    Span debug = span.toBuilder().id("2").debug(true).build();
+    Span error = span.toBuilder().id("3").putTag("error", "timeout").build();
+    EventData event =
+        message("a", 1, SpanBytesEncoder.JSON_V2.encodeList(asList(span, debug, error)));
+
+    processor.onEvents(context, asList(event));
+
+    assertThat(storage.getTraces()).flatExtracting(t -> t).containsExactly(debug, error);
+    assertThat(metrics.shed).isEqualTo(1);
+    assertThat(checkpointEvents).containsExactly(event); // shed spans aren't redelivered
+    assertThat(budget.usedBytes()).isEqualTo(100L);
+  }
+
+  /** A batch is decoded at once, so its spans are held before it would reserve event by event. */
+  @Test
+  public void memoryBudget_parallelDecode_reservedBeforeDecoding() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1_000_000);
+    AtomicLong reservedWhenDecoding = new AtomicLong(-1L);
+    ExecutorService executor =
+        new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+          @Override
+          protected void beforeExecute(Thread t, Runnable r) {
+            reservedWhenDecoding.compareAndSet(-1L, budget.usedBytes());
+          }
+        };
+    ParallelDecoder decoder = new ParallelDecoder(executor, 2);
+    try {
+      resources.decoder(decoder).memoryBudget(budget);
+      processor = newProcessor(builder().writeMaxSpans(100));
+      EventData event1 = jsonMessageWithThreeSpans("a", 1);
+      EventData event2 = json2MessageWithThreeSpans("b", 2);
+      long batchBytes = event1.getBytes().length + event2.getBytes().length;
+
+      processor.onEvents(context, asList(event1, event2));
+
+      assertThat(reservedWhenDecoding).hasValue(batchBytes);
+      assertThat(budget.usedBytes()).isEqualTo(batchBytes); // still buffered
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void memoryBudget_parallelDecode_releasedWhenDecodingFails() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1_000_000);
+    ParallelDecoder decoder = new ParallelDecoder(2);
+    decoder.close(); // so decoding is rejected
+    resources.decoder(decoder).memoryBudget(budget);
+    processor = newProcessor(builder());
+
+    try {
+      processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+      failBecauseExceptionWasNotThrown(RejectedExecutionException.class);
+    } catch (RejectedExecutionException expected) {
+    }
+
+    assertThat(budget.usedBytes()).isZero();
+  }
+
+  @Test
+  public void writeGroupByTrace_groupsSpansAcrossEvents() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    RecordingMetrics metrics = new RecordingMetrics();
+    processor =
+        newProcessor(
+            builder()
+                .storage(pendingStorage)
+                .eventHubMetrics(metrics)
+                .writeMaxSpans(4)
+                .writeGroupByTrace(true));
+    Span a1 = LOTS_OF_SPANS[0], b1 = LOTS_OF_SPANS[1];
+    Span a2 = LOTS_OF_SPANS[2].toBuilder().traceId(a1.traceId()).build();
+    Span b2 = LOTS_OF_SPANS[3].toBuilder().traceId(b1.traceId()).build();
+    EventData event1 = message("a", 1, SpanBytesEncoder.JSON_V2.encodeList(asList(a1, b1)));
+    EventData event2 = message("b", 2, SpanBytesEncoder.JSON_V2.encodeList(asList(a2, b2)));
+
+    processor.onEvents(context, asList(event1, event2));
+
+    assertThat(pendingStorage.writes).containsExactly(asList(a1, a2, b1, b2));
+    assertThat(metrics.groupedTraces).isEqualTo(2);
+    assertThat(metrics.groupedRuns).isEqualTo(4);
+  }
+
+  /** The adaptive write size is a limit, even when no write limit is configured. */
+  @Test
+  public void adaptive_carriesSpansOverCallbacks() throws Exception {
+    processor = newProcessor(builder().adaptiveMinSpans(3).adaptiveMaxSpans(6));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+  }
+
+  @Test
+  public void adaptive_writesAtAdaptedSize() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    RecordingMetrics metrics = new RecordingMetrics();
+    processor =
+        newProcessor(
+            builder()
+                .storage(pendingStorage)
+                .eventHubMetrics(metrics)
+                .adaptiveMinSpans(3)
+                .adaptiveMaxSpans(6));
+
+    // Without a configured write size, writes start at the maximum
+    processor.onEvents(
+        context,
+        asList(
+            jsonMessageWithThreeSpans("a", 1),
+            jsonMessageWithThreeSpans("b", 2),
+            jsonMessageWithThreeSpans("c", 3),
+            jsonMessageWithThreeSpans("d", 4)));
+    assertThat(pendingStorage.writes.stream().map(List::size).collect(Collectors.toList()))
+        .containsExactly(6, 6);
+
+    // A failed write halves the size
+    pendingStorage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+    assertThat(metrics.adaptiveSizes).containsExactly(6, 3);
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("e", 5)));
+    assertThat(pendingStorage.writes.stream().map(List::size).collect(Collectors.toList()))
+        .containsExactly(6, 6, 6, 3); // includes the retry
+  }
+
+  /** Checkpoints can't advance past events whose spans are still buffered. */
+  @Test
+  public void checkpointsOnlyWrittenEvents() throws Exception {
+    processor = newProcessor(builder().writeMaxSpans(18));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData event2 = jsonMessageWithThreeSpans("b", 2);
+    EventData event3 = jsonMessageWithThreeSpans("c", 3);
+    EventData event4 = jsonMessageWithThreeSpans("d", 4);
+    EventData event5 = jsonMessageWithThreeSpans("e", 5);
+    EventData event6 = jsonMessageWithThreeSpans("f", 6);
+
+    // A checkpoint is due on the 4th event, but nothing was written, yet
+    processor.onEvents(context, asList(event1, event2, event3, event4, event5));
+    assertThat(storage.acceptedSpanCount()).isZero();
+    assertThat(checkpointEvents).isEmpty();
+
+    // Once written, we checkpoint the last written event
+    processor.onEvents(context, asList(event6));
+    assertThat(storage.acceptedSpanCount()).isEqualTo(18);
+    assertThat(checkpointEvents).containsExactly(event6);
+  }
+
+  @Test
+  public void malformedEvent_doesntBufferPartialSpans() throws Exception {
+    processor = newProcessor(builder().writeMaxSpans(100));
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+
+    // truncate the list so that the decoder fails after reading all spans
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(spans);
+    EventData truncated = message("b", 2, Arrays.copyOf(json, json.length - 1));
+    processor.onEvents(context, asList(truncated));
+
+    assertThat(processor.buffer.spans).hasSize(3);
+    // The event is buffered without spans, so that checkpoints can pass it
+    assertThat(processor.buffer.lastEvent).isSameAs(truncated);
+  }
+
+  /** One bad event shouldn't fail the batch, as it would be redelivered and fail again. */
+  @Test
+  public void malformedEvent_droppedAndCheckpointed() throws Exception {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    processor = newProcessor(builder().checkpointBatchSize(6).metrics(metrics));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData malformed = message("b", 2, new byte[] {'[', 'x'});
+    EventData event3 = thriftMessageWithThreeSpans("c", 3);
+
+    processor.onEvents(context, asList(event1, malformed, event3));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+    assertThat(checkpointEvents).containsExactly(event3);
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+    assertThat(logger.messages)
+        .anyMatch(m -> m.startsWith("WARNING: Partition 1 dropped an event which couldn't be"));
+  }
+
+  @Test
+  public void malformedEvent_deadLetter() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    DeadLetterSpool deadLetters = new DeadLetterSpool(directory, 1024, 2);
+    resources.deadLetters(deadLetters);
+    processor = newProcessor(builder());
+    byte[] body = {'[', 'x'};
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1), message("b", 2, body)));
+    deadLetters.close();
+
+    List<Path> files = Files.list(directory).collect(Collectors.toList());
+    assertThat(files).hasSize(1);
+    assertThat(new String(Files.readAllBytes(files.get(0)), StandardCharsets.UTF_8))
+        .startsWith("partition=1 offset=b sequenceNumber=2 size=2 error=")
+        .endsWith("\n[x\n");
+  }
+
+  @Test
+  public void checkpointsOnlyAfterStorageAcknowledges() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    processor = newProcessor(builder().storage(pendingStorage));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData event2 = jsonMessageWithThreeSpans("b", 2);
+    EventData event3 = jsonMessageWithThreeSpans("c", 3);
+    EventData event4 = jsonMessageWithThreeSpans("d", 4);
+
+    // A checkpoint is due on the 4th event, but storage hasn't acknowledged the write
+    processor.onEvents(context, asList(event1, event2, event3, event4));
+    assertThat(checkpointEvents).isEmpty();
+
+    pendingStorage.callbacks.forEach(c -> c.onSuccess(null));
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(checkpointEvents).containsExactly(event4);
+  }
+
+  @Test
+  public void failedWritesAreRetriedBeforeCheckpoint() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    processor = newProcessor(builder().storage(pendingStorage));
+    EventData event4 = jsonMessageWithThreeSpans("d", 4);
+    processor.onEvents(
+        context,
+        asList(
+            jsonMessageWithThreeSpans("a", 1),
+            jsonMessageWithThreeSpans("b", 2),
+            jsonMessageWithThreeSpans("c", 3),
+            event4));
+
+    pendingStorage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(checkpointEvents).isEmpty();
+
+    // the next callback retried the write
+    pendingStorage.callbacks.poll().onSuccess(null);
+    processor.onEvents(context, Collections.emptyList());
+    assertThat(checkpointEvents).containsExactly(event4);
+    assertThat(pendingStorage.writes).hasSize(2);
+  }
+
+  @Test
+  public void writeMaxInFlight_blocksUntilWriteCompletes() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    processor = newProcessor(builder().storage(pendingStorage).writeMaxInFlight(1));
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    Future<?> secondCallback =
+        exec.submit(
+            () -> {
+              processor.onEvents(context, asList(jsonMessageWithThreeSpans("b", 2)));
+              return null;
+            });
+    try {
+      Thread.sleep(200);
+      assertThat(secondCallback).isNotDone();
+
+      pendingStorage.callbacks.poll().onSuccess(null);
+      secondCallback.get(1, TimeUnit.SECONDS);
+      assertThat(pendingStorage.writes).hasSize(2);
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  @Test
+  public void parallelDecode_writesInOffsetOrder() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    ParallelDecoder decoder = new ParallelDecoder(4);
+    try {
+      resources.decoder(decoder);
+      processor = newProcessor(builder().storage(pendingStorage).writeMaxInFlight(100));
+
+      List<EventData> events = new ArrayList<>();
+      List<Span> expected = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        List<Span> spans = asList(LOTS_OF_SPANS).subList(i * 3, i * 3 + 3);
+        expected.addAll(spans);
+        byte[] message = SpanBytesEncoder.PROTO3.encodeList(spans);
+        events.add(message(Integer.toHexString(i + 1), i + 1, message));
+      }
+      processor.onEvents(context, events);
+
+      pendingStorage.callbacks.forEach(c -> c.onSuccess(null));
+      processor.onEvents(context, Collections.emptyList());
+      assertThat(pendingStorage.writes.stream().flatMap(List::stream))
+          .containsExactlyElementsOf(expected);
+      assertThat(checkpointEvents).containsExactly(events.get(99));
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void parallelDecode_dropsMalformedEvent() throws Exception {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    ParallelDecoder decoder = new ParallelDecoder(4);
+    try {
+      resources.decoder(decoder);
+      processor = newProcessor(builder().metrics(metrics));
+
+      processor.onEvents(
+          context,
+          asList(
+              jsonMessageWithThreeSpans("a", 1),
+              message("b", 2, new byte[] {'[', 'x'}),
+              jsonMessageWithThreeSpans("c", 3)));
+
+      assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+      assertThat(metrics.messagesDropped()).isEqualTo(1);
+    } finally {
+      decoder.close();
+    }
+  }
+
+  @Test
+  public void checkpointWriter_flushesOnlyLatestCheckpoint() throws Exception {
+    CheckpointWriter writer = new CheckpointWriter(TimeUnit.HOURS.toMillis(1));
+    try {
+      resources.checkpointWriter(writer);
+      processor = newProcessor(builder().checkpointBatchSize(3));
+      EventData event1 = jsonMessageWithThreeSpans("a", 1);
+      EventData event2 = json2MessageWithThreeSpans("b", 2);
+
+      // Both events are due a checkpoint, but it isn't written on the receive thread
+      processor.onEvents(context, asList(event1, event2));
+      assertThat(checkpointEvents).isEmpty();
+
+      processor.flushCheckpoint(context);
+      assertThat(checkpointEvents).containsExactly(event2);
+
+      // No write when the offset hasn't moved
+      processor.flushCheckpoint(context);
+      assertThat(checkpointEvents).containsExactly(event2);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void checkpointWriter_flushesOnClose() throws Exception {
+    CheckpointWriter writer = new CheckpointWriter(TimeUnit.HOURS.toMillis(1));
+    try {
+      resources.checkpointWriter(writer);
+      processor = newProcessor(builder().checkpointBatchSize(3));
+      EventData event1 = jsonMessageWithThreeSpans("a", 1);
+
+      processor.onEvents(context, asList(event1));
+      processor.onClose(context, CloseReason.Shutdown);
+      assertThat(checkpointEvents).containsExactly(event1);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void checkpointWriter_doesntFlushWhenLeaseLost() throws Exception {
+    CheckpointWriter writer = new CheckpointWriter(TimeUnit.HOURS.toMillis(1));
+    try {
+      resources.checkpointWriter(writer);
+      processor = newProcessor(builder().checkpointBatchSize(3));
+
+      processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+      processor.onClose(context, CloseReason.LeaseLost);
+      assertThat(checkpointEvents).isEmpty();
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void onClose_drainsBufferAndCheckpoints() throws Exception {
+    processor = newProcessor(builder().writeMaxSpans(100));
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    EventData event2 = json2MessageWithThreeSpans("b", 2);
+
+    processor.onEvents(context, asList(event1, event2));
+    assertThat(storage.acceptedSpanCount()).isZero();
+
+    processor.onClose(context, CloseReason.Shutdown);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(6);
+    assertThat(checkpointEvents).containsExactly(event2);
+  }
+
+  @Test
+  public void onClose_doesntDrainWhenLeaseLost() throws Exception {
+    processor = newProcessor(builder().writeMaxSpans(100));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    processor.onClose(context, CloseReason.LeaseLost);
+
+    assertThat(storage.acceptedSpanCount()).isZero();
+    assertThat(checkpointEvents).isEmpty();
+  }
+
+  @Test
+  public void onClose_drainTimesOut() throws Exception {
+    PendingStorage pendingStorage = new PendingStorage();
+    processor = newProcessor(builder().storage(pendingStorage).drainTimeoutMillis(50));
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    processor.onClose(context, CloseReason.Shutdown);
+
+    assertThat(pendingStorage.writes).hasSize(1);
+    assertThat(checkpointEvents).isEmpty();
+    assertThat(logger.messages)
+        .contains(
+            "WARNING: Partition 1 timed out waiting for storage; "
+                + "unacknowledged events will be redelivered");
+  }
+
+  /** Events not processed aren't checkpointed, so the next owner of the partition reads them. */
+  @Test
+  public void onClose_ignoresLaterEvents() throws Exception {
+    processor.onClose(context, CloseReason.Shutdown);
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+
+    assertThat(storage.acceptedSpanCount()).isZero();
+    assertThat(checkpointEvents).isEmpty();
+  }
+
+  @Test
+  public void onClose_releasesPartition() throws Exception {
+    OwnedPartitions ownedPartitions = new OwnedPartitions(0);
+    resources.ownedPartitions(ownedPartitions);
+    processor = newProcessor(builder().writeMaxSpans(100));
+    processor.onOpen(context);
+    assertThat(ownedPartitions.owned).containsEntry("1", processor);
+
+    processor.onEvents(context, asList(jsonMessageWithThreeSpans("a", 1)));
+    processor.onClose(context, CloseReason.LeaseLost);
+
+    assertThat(ownedPartitions.owned).isEmpty();
+    assertThat(processor.buffer.spans).isEmpty();
+  }
+
+  /** Spans this host wrote are recognized when the lease returns shortly after a clean close. */
+  @Test
+  public void onOpen_reusesDeduplicatorOfPartition() throws Exception {
+    OwnedPartitions ownedPartitions = new OwnedPartitions(100);
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    resources.ownedPartitions(ownedPartitions);
+    processor = newProcessor(builder());
+    processor.onOpen(context);
+    processor.onEvents(context, asList(event1));
+    processor.onClose(context, CloseReason.Shutdown);
+
+    processor = newProcessor(builder());
+    processor.onOpen(context);
+    processor.onEvents(context, asList(event1));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(3);
+  }
+
+  /** After a lost lease, spans buffered or not yet stored must be written when redelivered. */
+  @Test
+  public void onOpen_writesRedeliveredSpansAfterLeaseLost() throws Exception {
+    OwnedPartitions ownedPartitions = new OwnedPartitions(100);
+    PendingStorage pendingStorage = new PendingStorage();
+    EventData event1 = jsonMessageWithThreeSpans("a", 1);
+    List<Span> spans2 = asList(LOTS_OF_SPANS[3], LOTS_OF_SPANS[4]);
+    EventData event2 = message("b", 2, SpanBytesEncoder.JSON_V2.encodeList(spans2));
+    resources.ownedPartitions(ownedPartitions);
+    processor = newProcessor(builder().storage(pendingStorage).writeMaxSpans(3));
+    processor.onOpen(context);
+    processor.onEvents(context, asList(event1)); // written
+    pendingStorage.callbacks.poll().onError(new IllegalStateException("storage is down"));
+    processor.onEvents(context, asList(event2)); // buffered
+    processor.onClose(context, CloseReason.LeaseLost);
+    assertThat(ownedPartitions.parked).isEmpty();
+
+    processor = newProcessor(builder());
+    processor.onOpen(context);
+    processor.onEvents(context, asList(event1, event2));
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void checkpointWriter_retriesFailedCheckpoint() throws Exception {
+    CheckpointWriter writer = new CheckpointWriter(TimeUnit.HOURS.toMillis(1));
+    AtomicBoolean fail = new AtomicBoolean(true);
+    RecordingMetrics metrics = new RecordingMetrics();
+    try {
+      processor =
+          new ZipkinEventProcessor(
+              logger,
+              builder().checkpointBatchSize(3).eventHubMetrics(metrics),
+              new HostResources().checkpointWriter(writer)) {
+            @Override
+            String partitionId(PartitionContext context) {
+              return "1";
+            }
+
+            @Override
+            void checkpoint(PartitionContext context, EventData data) {
+              if (fail.getAndSet(false)) throw new IllegalStateException("blob storage down");
+              checkpointEvents.add(data);
+            }
+
+            @Override
+            long lastEnqueuedSequenceNumber(PartitionContext context) {
+              return -1L;
+            }
+          };
+      EventData event1 = jsonMessageWithThreeSpans("a", 1);
+
+      processor.onEvents(context, asList(event1));
+      processor.flushCheckpoint(context);
+      assertThat(checkpointEvents).isEmpty();
+      assertThat(metrics.checkpointFailures).isEqualTo(1);
+
+      processor.flushCheckpoint(context);
+      assertThat(checkpointEvents).containsExactly(event1);
+      assertThat(metrics.checkpoints).isEqualTo(2);
+    } finally {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void partitionMetrics() throws Exception {
+    RecordingMetrics metrics = new RecordingMetrics();
+    lastEnqueuedSequenceNumber = 10L;
+    processor = newProcessor(builder().checkpointBatchSize(3).eventHubMetrics(metrics));
+
+    processor.onEvents(
+        context,
+        asList(jsonMessageWithThreeSpans("a", 1), json2MessageWithThreeSpans("b", 2)));
+
+    assertThat(metrics.partitionIds).containsExactly("1");
+    assertThat(metrics.batches).containsExactly(asList(2, 6));
+    assertThat(metrics.lag).isEqualTo(8L);
+    assertThat(metrics.decodes).hasValue(2);
+    assertThat(metrics.writes).isEqualTo(2); // a checkpoint is due each event
+    assertThat(metrics.checkpoints).isEqualTo(2);
+    assertThat(metrics.checkpointFailures).isZero();
+  }
+
+  @Test
+  public void partitionMetrics_parallelDecode() throws Exception {
+    RecordingMetrics metrics = new RecordingMetrics();
+    ParallelDecoder decoder = new ParallelDecoder(2);
+    try {
+      resources.decoder(decoder);
+      processor = newProcessor(builder().eventHubMetrics(metrics));
+
+      processor.onEvents(
+          context,
+          asList(jsonMessageWithThreeSpans("a", 1), json2MessageWithThreeSpans("b", 2)));
+
+      assertThat(metrics.batches).containsExactly(asList(2, 6));
+      assertThat(metrics.decodes).hasValue(2);
+      assertThat(metrics.lag).isNull(); // not known
+    } finally {
+      decoder.close();
+    }
+  }
+
   /** This shows that checkpointing is consistent when callbacks are on different threads. */
   @Test
   public void parallelCheckpoint() throws Exception {
@@ -117,8 +1052,9 @@ public class ZipkinEventProcessorTest {
 
     // We checkpoint at or over the checkpoint batch size. By default, our batch size is
     // 10, so if we have 3 spans per event, we checkpoint on the 3rd event (span count 12 not 10).
-    int eventsPerCheckpoint = processor.checkpointBatchSize / spansPerEvent;
-    if (processor.checkpointBatchSize % spansPerEvent > 0) eventsPerCheckpoint++;
+    int checkpointBatchSize = 10;
+    int eventsPerCheckpoint = checkpointBatchSize / spansPerEvent;
+    if (checkpointBatchSize % spansPerEvent > 0) eventsPerCheckpoint++;
 
     // make a lot of events to ensure concurrency works.
     int eventCount = 1000;
@@ -183,6 +1119,116 @@ public class ZipkinEventProcessorTest {
     return data;
   }
 
+  /** Storage which doesn't complete writes until a test invokes their callbacks. */
+  static class PendingStorage extends StorageComponent {
+    ConcurrentLinkedQueue<List<Span>> writes = new ConcurrentLinkedQueue<>();
+    ConcurrentLinkedQueue<Callback<Void>> callbacks = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public SpanStore spanStore() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SpanConsumer spanConsumer() {
+      return spans ->
+          new Call.Base<Void>() {
+            @Override
+            protected Void doExecute() {
+              throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected void doEnqueue(Callback<Void> callback) {
+              writes.add(spans);
+              callbacks.add(callback);
+            }
+
+            @Override
+            public Call<Void> clone() {
+              throw new UnsupportedOperationException();
+            }
+          };
+    }
+  }
+
+  static final class RecordingMetrics
+      implements EventHubMetrics, EventHubMetrics.PartitionMetrics {
+    final List<String> partitionIds = new ArrayList<>();
+    final List<List<Integer>> batches = new ArrayList<>();
+    final AtomicInteger decodes = new AtomicInteger();
+    volatile Long lag;
+    int writes, checkpoints, checkpointFailures, dedupeChecked, duplicates; // guarded by this
+    int groupedTraces, groupedRuns, memoryWaits, shed; // guarded by this
+    volatile List<Integer> adaptiveSizes;
+
+    @Override
+    public void gauge(String name, Gauge gauge) {}
+
+    @Override
+    public PartitionMetrics forPartition(String partitionId) {
+      partitionIds.add(partitionId);
+      return this;
+    }
+
+    @Override
+    public void lag(long events) {
+      lag = events;
+    }
+
+    @Override
+    public void recordBatch(int events, int spans) {
+      batches.add(asList(events, spans));
+    }
+
+    @Override
+    public void recordDecodeNanos(long nanos) {
+      decodes.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void recordWriteNanos(long nanos) {
+      writes++;
+    }
+
+    @Override
+    public synchronized void recordCheckpointNanos(long nanos) {
+      checkpoints++;
+    }
+
+    @Override
+    public synchronized void incrementCheckpointFailures() {
+      checkpointFailures++;
+    }
+
+    @Override
+    public synchronized void recordDeduplication(int spans, int duplicates) {
+      dedupeChecked += spans;
+      this.duplicates += duplicates;
+    }
+
+    @Override
+    public synchronized void recordTraceGrouping(int traces, int runs) {
+      groupedTraces += traces;
+      groupedRuns += runs;
+    }
+
+    @Override
+    public synchronized void recordMemoryWaitNanos(long nanos) {
+      memoryWaits++;
+    }
+
+    @Override
+    public synchronized void recordShed(int spans) {
+      shed += spans;
+    }
+
+    @Override
+    public void adaptiveSizes(int checkpointBatchSize, int writeMaxSpans) {
+      adaptiveSizes = asList(checkpointBatchSize, writeMaxSpans);
+    }
+  }
+
   static class TestLogger extends Logger {
     ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<>();
 